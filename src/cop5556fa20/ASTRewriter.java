@@ -0,0 +1,378 @@
+package cop5556fa20;
+
+import cop5556fa20.AST.*;
+import cop5556fa20.Scanner.Token;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base class of the optimization passes that run between type checking and code generation.
+ *
+ * Each visit method returns the node that replaces the visited one.  By default a node is rebuilt
+ * from its rewritten children, keeping its type and declaration, and returned unchanged if none of
+ * its children changed.  Subclasses override the methods of the nodes they rewrite, and may replace
+ * a statement or declaration of the program by several by overriding rewriteDecOrStatement, or change
+ * the first tokens of the nodes by overriding rewrite(Token).
+ *
+ * Expressions are rewritten with a stack in the heap instead of recursive visits, so that their nesting
+ * is not limited by the size of the thread's stack: the visit method of an expression is called once its
+ * subexpressions have been rewritten, and finds them with rewrite(Expression, Object).  Subclasses may act
+ * before the subexpressions of an expression are rewritten by overriding enter, and after it is rewritten
+ * by overriding leave.
+ */
+public abstract class ASTRewriter implements ASTVisitor {
+
+	// The expressions rewritten by the outermost call of rewrite(Expression, Object), keyed by the original ones
+	private final Map<Expression, Expression> rewritten = new IdentityHashMap<>();
+
+	// Number of calls of rewrite(Expression, Object) running
+	private int rewriting = 0;
+
+	/**
+	 * An expression to rewrite, and whether its subexpressions were pushed.
+	 */
+	@SuppressWarnings("preview")
+	private record Pending(Expression e, boolean expanded) {
+	}
+
+	/**
+	 * Returns the rewritten program.
+	 */
+	public Program rewrite(Program program) throws Exception {
+		return (Program) program.visit(this, null);
+	}
+
+	/**
+	 * Rewrites a child expression.  The visit methods of expressions call it for their subexpressions, which
+	 * have already been rewritten.  Otherwise e and its subexpressions are rewritten here, subexpressions first
+	 * to last before the expression that contains them.
+	 */
+	protected Expression rewrite(Expression e, Object arg) throws Exception {
+		Expression result = rewritten.get(e);
+		if (result != null) {
+			return result;
+		}
+		rewriting++;
+		try {
+			ArrayDeque<Pending> stack = new ArrayDeque<>();
+			stack.push(new Pending(e, false));
+			while (!stack.isEmpty()) {
+				Pending pending = stack.pop();
+				Expression next = pending.e();
+				if (pending.expanded()) {
+					Expression nextResult = (Expression) next.visit(this, arg);
+					rewritten.put(next, nextResult);
+					leave(next, nextResult);
+					continue;
+				}
+				Expression replacement = enter(next, arg);
+				if (replacement != null) {
+					rewritten.put(next, replacement);
+					continue;
+				}
+				stack.push(new Pending(next, true));
+				// Pushed last to first, so that they are rewritten first to last
+				Expression[] subexpressions = subexpressions(next);
+				for (int i = subexpressions.length - 1; i >= 0; i--) {
+					stack.push(new Pending(subexpressions[i], false));
+				}
+			}
+			return rewritten.get(e);
+		} finally {
+			if (--rewriting == 0) {
+				rewritten.clear();
+			}
+		}
+	}
+
+	/**
+	 * Called before the subexpressions of e are rewritten.  Returns the expression replacing e, whose
+	 * subexpressions are then not rewritten, or null to rewrite e and its subexpressions.
+	 */
+	protected Expression enter(Expression e, Object arg) throws Exception {
+		return null;
+	}
+
+	/**
+	 * Called once e has been rewritten to result by its visit method.
+	 */
+	protected void leave(Expression e, Expression result) throws Exception {
+	}
+
+	/**
+	 * Returns the subexpressions of e, in the order of evaluation.
+	 */
+	static Expression[] subexpressions(Expression e) {
+		if (e instanceof ExprArg) {
+			return new Expression[] { ((ExprArg) e).e() };
+		}
+		if (e instanceof ExprBinary) {
+			return new Expression[] { ((ExprBinary) e).e0(), ((ExprBinary) e).e1() };
+		}
+		if (e instanceof ExprConditional) {
+			ExprConditional conditional = (ExprConditional) e;
+			return new Expression[] { conditional.condition(), conditional.trueCase(), conditional.falseCase() };
+		}
+		if (e instanceof ExprHash) {
+			return new Expression[] { ((ExprHash) e).e() };
+		}
+		if (e instanceof ExprPixelConstructor) {
+			ExprPixelConstructor constructor = (ExprPixelConstructor) e;
+			return new Expression[] { constructor.redExpr(), constructor.greenExpr(), constructor.blueExpr() };
+		}
+		if (e instanceof ExprPixelSelector) {
+			ExprPixelSelector selector = (ExprPixelSelector) e;
+			return new Expression[] { selector.image(), selector.X(), selector.Y() };
+		}
+		if (e instanceof ExprUnary) {
+			return new Expression[] { ((ExprUnary) e).e() };
+		}
+		return new Expression[0];
+	}
+
+	/**
+	 * Returns the first token of the node rebuilt from a node with first token token.
+	 */
+	protected Token rewrite(Token token) {
+		return token;
+	}
+
+	/**
+	 * Adds the nodes replacing the given declaration or statement to decOrStatement.
+	 */
+	protected void rewriteDecOrStatement(ASTNode node, List<ASTNode> decOrStatement) throws Exception {
+		decOrStatement.add((ASTNode) node.visit(this, null));
+	}
+
+	static <T extends Expression> T typed(T e, Type type) {
+		e.setType(type);
+		return e;
+	}
+
+	static <T extends Statement> T withDec(T statement, Dec dec) {
+		statement.setDec(dec);
+		return statement;
+	}
+
+	@Override
+	public Object visitProgram(Program program, Object arg) throws Exception {
+		List<ASTNode> decOrStatement = new ArrayList<>();
+		for (ASTNode node : program.decOrStatement()) {
+			rewriteDecOrStatement(node, decOrStatement);
+		}
+		Token first = rewrite(program.first());
+		if (first == program.first() && decOrStatement.size() == program.decOrStatement().size()) {
+			boolean changed = false;
+			for (int i = 0; i < decOrStatement.size(); i++) {
+				changed |= decOrStatement.get(i) != program.decOrStatement().get(i);
+			}
+			if (!changed) {
+				return program;
+			}
+		}
+		return new Program(first, decOrStatement);
+	}
+
+	@Override
+	public Object visitDecImage(DecImage decImage, Object arg) throws Exception {
+		Token first = rewrite(decImage.first());
+		Expression width = rewrite(decImage.width(), arg);
+		Expression height = rewrite(decImage.height(), arg);
+		Expression source = rewrite(decImage.source(), arg);
+		if (first == decImage.first() && width == decImage.width() && height == decImage.height()
+				&& source == decImage.source()) {
+			return decImage;
+		}
+		return new DecImage(first, decImage.type(), decImage.name(), width, height, decImage.op(), source);
+	}
+
+	@Override
+	public Object visitDecVar(DecVar decVar, Object arg) throws Exception {
+		Token first = rewrite(decVar.first());
+		Expression e = rewrite(decVar.expression(), arg);
+		if (first == decVar.first() && e == decVar.expression()) {
+			return decVar;
+		}
+		return new DecVar(first, decVar.type(), decVar.name(), e);
+	}
+
+	@Override
+	public Object visitStatementAssign(StatementAssign statementAssign, Object arg) throws Exception {
+		Token first = rewrite(statementAssign.first());
+		Expression e = rewrite(statementAssign.expression(), arg);
+		if (first == statementAssign.first() && e == statementAssign.expression()) {
+			return statementAssign;
+		}
+		return withDec(new StatementAssign(first, statementAssign.name(), e), statementAssign.dec());
+	}
+
+	@Override
+	public Object visitStatementImageIn(StatementImageIn statementImageIn, Object arg) throws Exception {
+		Token first = rewrite(statementImageIn.first());
+		Expression source = rewrite(statementImageIn.source(), arg);
+		if (first == statementImageIn.first() && source == statementImageIn.source()) {
+			return statementImageIn;
+		}
+		return withDec(new StatementImageIn(first, statementImageIn.name(), source),
+				statementImageIn.dec());
+	}
+
+	@Override
+	public Object visitStatementLoop(StatementLoop statementLoop, Object arg) throws Exception {
+		Token first = rewrite(statementLoop.first());
+		Expression cond = rewrite(statementLoop.cond(), arg);
+		Expression e = rewrite(statementLoop.e(), arg);
+		if (first == statementLoop.first() && cond == statementLoop.cond() && e == statementLoop.e()) {
+			return statementLoop;
+		}
+		return withDec(new StatementLoop(first, statementLoop.name(), cond, e), statementLoop.dec());
+	}
+
+	@Override
+	public Object visitStatementOutFile(StatementOutFile statementOutFile, Object arg) throws Exception {
+		Token first = rewrite(statementOutFile.first());
+		Expression filename = rewrite(statementOutFile.filename(), arg);
+		if (first == statementOutFile.first() && filename == statementOutFile.filename()) {
+			return statementOutFile;
+		}
+		return withDec(new StatementOutFile(first, statementOutFile.name(), filename),
+				statementOutFile.dec());
+	}
+
+	@Override
+	public Object visitStatementOutScreen(StatementOutScreen statementOutScreen, Object arg) throws Exception {
+		Token first = rewrite(statementOutScreen.first());
+		Expression x = rewrite(statementOutScreen.X(), arg);
+		Expression y = rewrite(statementOutScreen.Y(), arg);
+		if (first == statementOutScreen.first() && x == statementOutScreen.X() && y == statementOutScreen.Y()) {
+			return statementOutScreen;
+		}
+		return withDec(new StatementOutScreen(first, statementOutScreen.name(), x, y),
+				statementOutScreen.dec());
+	}
+
+	@Override
+	public Object visitExprArg(ExprArg exprArg, Object arg) throws Exception {
+		Token first = rewrite(exprArg.first());
+		Expression e = rewrite(exprArg.e(), arg);
+		if (first == exprArg.first() && e == exprArg.e()) {
+			return exprArg;
+		}
+		return typed(new ExprArg(first, e), exprArg.type());
+	}
+
+	@Override
+	public Object visitExprBinary(ExprBinary exprBinary, Object arg) throws Exception {
+		Token first = rewrite(exprBinary.first());
+		Expression e0 = rewrite(exprBinary.e0(), arg);
+		Expression e1 = rewrite(exprBinary.e1(), arg);
+		if (first == exprBinary.first() && e0 == exprBinary.e0() && e1 == exprBinary.e1()) {
+			return exprBinary;
+		}
+		return typed(new ExprBinary(first, e0, exprBinary.op(), e1), exprBinary.type());
+	}
+
+	@Override
+	public Object visitExprConditional(ExprConditional exprConditional, Object arg) throws Exception {
+		Token first = rewrite(exprConditional.first());
+		Expression condition = rewrite(exprConditional.condition(), arg);
+		Expression trueCase = rewrite(exprConditional.trueCase(), arg);
+		Expression falseCase = rewrite(exprConditional.falseCase(), arg);
+		if (first == exprConditional.first() && condition == exprConditional.condition()
+				&& trueCase == exprConditional.trueCase() && falseCase == exprConditional.falseCase()) {
+			return exprConditional;
+		}
+		return typed(new ExprConditional(first, condition, trueCase, falseCase), exprConditional.type());
+	}
+
+	@Override
+	public Object visitExprConst(ExprConst exprConst, Object arg) throws Exception {
+		Token first = rewrite(exprConst.first());
+		if (first == exprConst.first()) {
+			return exprConst;
+		}
+		return typed(new ExprConst(first, exprConst.name(), exprConst.value()), exprConst.type());
+	}
+
+	@Override
+	public Object visitExprHash(ExprHash exprHash, Object arg) throws Exception {
+		Token first = rewrite(exprHash.first());
+		Expression e = rewrite(exprHash.e(), arg);
+		if (first == exprHash.first() && e == exprHash.e()) {
+			return exprHash;
+		}
+		return typed(new ExprHash(first, e, exprHash.attr()), exprHash.type());
+	}
+
+	@Override
+	public Object visitExprIntLit(ExprIntLit exprIntLit, Object arg) throws Exception {
+		Token first = rewrite(exprIntLit.first());
+		if (first == exprIntLit.first()) {
+			return exprIntLit;
+		}
+		return typed(new ExprIntLit(first, exprIntLit.value()), exprIntLit.type());
+	}
+
+	@Override
+	public Object visitExprPixelConstructor(ExprPixelConstructor exprPixelConstructor, Object arg) throws Exception {
+		Token first = rewrite(exprPixelConstructor.first());
+		Expression red = rewrite(exprPixelConstructor.redExpr(), arg);
+		Expression green = rewrite(exprPixelConstructor.greenExpr(), arg);
+		Expression blue = rewrite(exprPixelConstructor.blueExpr(), arg);
+		if (first == exprPixelConstructor.first() && red == exprPixelConstructor.redExpr()
+				&& green == exprPixelConstructor.greenExpr() && blue == exprPixelConstructor.blueExpr()) {
+			return exprPixelConstructor;
+		}
+		return typed(new ExprPixelConstructor(first, red, green, blue), exprPixelConstructor.type());
+	}
+
+	@Override
+	public Object visitExprPixelSelector(ExprPixelSelector exprPixelSelector, Object arg) throws Exception {
+		Token first = rewrite(exprPixelSelector.first());
+		Expression image = rewrite(exprPixelSelector.image(), arg);
+		Expression x = rewrite(exprPixelSelector.X(), arg);
+		Expression y = rewrite(exprPixelSelector.Y(), arg);
+		if (first == exprPixelSelector.first() && image == exprPixelSelector.image() && x == exprPixelSelector.X()
+				&& y == exprPixelSelector.Y()) {
+			return exprPixelSelector;
+		}
+		return typed(new ExprPixelSelector(first, image, x, y), exprPixelSelector.type());
+	}
+
+	@Override
+	public Object visitExprStringLit(ExprStringLit exprStringLit, Object arg) throws Exception {
+		Token first = rewrite(exprStringLit.first());
+		if (first == exprStringLit.first()) {
+			return exprStringLit;
+		}
+		return typed(new ExprStringLit(first, exprStringLit.text()), exprStringLit.type());
+	}
+
+	@Override
+	public Object visitExprUnary(ExprUnary exprUnary, Object arg) throws Exception {
+		Token first = rewrite(exprUnary.first());
+		Expression e = rewrite(exprUnary.e(), arg);
+		if (first == exprUnary.first() && e == exprUnary.e()) {
+			return exprUnary;
+		}
+		return typed(new ExprUnary(first, exprUnary.op(), e), exprUnary.type());
+	}
+
+	@Override
+	public Object visitExprVar(ExprVar exprVar, Object arg) throws Exception {
+		Token first = rewrite(exprVar.first());
+		if (first == exprVar.first()) {
+			return exprVar;
+		}
+		return typed(new ExprVar(first, exprVar.name()), exprVar.type());
+	}
+
+	@Override
+	public Object visitExprEmpty(ExprEmpty exprEmpty, Object arg) throws Exception {
+		return exprEmpty;
+	}
+}
@@ -29,6 +29,13 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import javax.imageio.ImageIO;
 
 import org.junit.jupiter.api.Test;
 
@@ -36,9 +43,11 @@ import cop5556fa20.AST.Program;
 import cop5556fa20.CodeGenUtils.DynamicClassLoader;
 import cop5556fa20.TypeCheckVisitor.TypeException;
 import cop5556fa20.runtime.BufferedImageUtils;
+import cop5556fa20.runtime.ExecutionContext;
 import cop5556fa20.runtime.LoggedIO;
 import cop5556fa20.runtime.PLPImage;
 import cop5556fa20.runtime.PLPImage.PLPImageException;
+import cop5556fa20.runtime.ParallelLoops;
 import cop5556fa20.runtime.PixelOps;
 import cop5556fa20.resources.ImageResources;
 import cop5556fa20.resources.ImageResources.*;
@@ -62,6 +71,9 @@ class CodeGen6Test {
 	}
 	
 	static boolean writeClassFile = true;
+
+	// Options applied to the code generator by genCode
+	Consumer<CodeGenVisitorComplete> codeGenOptions = cv -> {};
 	
 	/**
 	 * Generates and returns byte[] containing classfile implmenting given input program.
@@ -87,6 +99,7 @@ class CodeGen6Test {
 
 		//generate code
 		CodeGenVisitorComplete cv = new CodeGenVisitorComplete(className);
+		codeGenOptions.accept(cv);
 		byte[] bytecode = (byte[]) program.visit(cv, null);
 		//output the generated bytecode
 		show(CodeGenUtils.bytecodeToString(bytecode));
@@ -312,4 +325,270 @@ class CodeGen6Test {
 		});
 		show(exception);
 	}
+
+	@Test
+	public void loopReadingOtherPixelsOfItsImage() throws Exception {
+		String input = """
+				image[33,17] a;
+				a = *[X,Y]::X*7+Y;
+				a = *[X,Y]: X > 0 : a[X-1,Y] + a[X,(Y+1)%17];
+				int k = a[32,16];
+				k -> screen;
+				""";
+		genRun(input);
+		// The second loop reads pixels written earlier in the same loop, so it must keep the X-outer order
+		int[][] a = new int[33][17];
+		for (int X = 0; X < 33; X++) {
+			for (int Y = 0; Y < 17; Y++) {
+				a[X][Y] = X*7+Y;
+			}
+		}
+		for (int X = 0; X < 33; X++) {
+			for (int Y = 0; Y < 17; Y++) {
+				if (X > 0) {
+					a[X][Y] = a[X-1][Y] + a[X][(Y+1)%17];
+				}
+			}
+		}
+		ArrayList<Object> expectedLog = new ArrayList<Object>();
+		expectedLog.add(a[32][16]);
+		assertEquals(expectedLog, LoggedIO.globalLog);
+	}
+
+	@Test
+	public void tiledLoops() throws Exception {
+		// 8 x 8 tiles, with partial tiles on the right and bottom edges
+		String input = """
+				image[45,23] a;
+				a = *[X,Y]::X*100+Y;
+				a = *[X,Y]: (X+Y)%3 == 0 : a[X,Y] * 2 + X;
+				int k0 = a[0,0];
+				int k1 = a[7,8];
+				int k2 = a[8,7];
+				int k3 = a[40,22];
+				int k4 = a[44,22];
+				int k5 = a[44,21];
+				k0 -> screen;
+				k1 -> screen;
+				k2 -> screen;
+				k3 -> screen;
+				k4 -> screen;
+				k5 -> screen;
+				""";
+		genRun(input);
+		List<Object> untiled = new ArrayList<>(LoggedIO.globalLog);
+		codeGenOptions = cv -> cv.setLoopTileSize(8);
+		genRun(input);
+		assertEquals(untiled, LoggedIO.globalLog);
+		// A single tile larger than the image
+		codeGenOptions = cv -> cv.setLoopTileSize(CodeGenVisitorComplete.MAX_LOOP_TILE_SIZE);
+		genRun(input);
+		assertEquals(untiled, LoggedIO.globalLog);
+		// Larger tiles would not fit in the increment of an IINC
+		for (int size : new int[] { -1, CodeGenVisitorComplete.MAX_LOOP_TILE_SIZE + 1, 40000, 65536 }) {
+			assertThrows(IllegalArgumentException.class, () -> new CodeGenVisitorComplete("Tiled").setLoopTileSize(size));
+		}
+		ArrayList<Object> expectedLog = new ArrayList<Object>();
+		int[][] pixels = { { 0, 0 }, { 7, 8 }, { 8, 7 }, { 40, 22 }, { 44, 22 }, { 44, 21 } };
+		for (int[] pixel : pixels) {
+			int X = pixel[0], Y = pixel[1];
+			expectedLog.add((X+Y)%3 == 0 ? (X*100+Y) * 2 + X : X*100+Y);
+		}
+		assertEquals(expectedLog, LoggedIO.globalLog);
+	}
+
+	@Test
+	public void directPixelAccess() throws Exception {
+		// b has no declared size.  a is read at [X,Y] by a loop over b of another size, which takes the
+		// getRGB/setRGB path, and b is read at [X,Y] by a loop over c of its size, which takes the int[] path.
+		BufferedImage source = new BufferedImage(50, 20, BufferedImage.TYPE_INT_RGB);
+		for (int X = 0; X < 50; X++) {
+			for (int Y = 0; Y < 20; Y++) {
+				source.setRGB(X, Y, X * 0x10203 + Y * 0x30201);
+			}
+		}
+		Path file = Files.createTempFile("directPixelAccess", ".png");
+		try {
+			ImageIO.write(source, "png", file.toFile());
+			String input = """
+					image b <- @0;
+					image[40,30] a;
+					a = *[X,Y]:: X*Y;
+					b = *[X,Y]: X < 40 & Y < 30 : b[X,Y] + a[X,Y];
+					image[50,20] c;
+					c = *[X,Y]:: b[X,Y] * 2 + X;
+					int k0 = b[3,4];
+					int k1 = b[45,10];
+					int k2 = c[3,4];
+					int k3 = c[49,19];
+					k0 -> screen;
+					k1 -> screen;
+					k2 -> screen;
+					k3 -> screen;
+					""";
+			String[] args = { file.toString() };
+			genRun(input, args);
+			List<Object> getRGB = new ArrayList<>(LoggedIO.globalLog);
+			codeGenOptions = cv -> cv.setDirectPixelAccess(true);
+			genRun(input, args);
+			assertEquals(getRGB, LoggedIO.globalLog);
+			assertEquals(source.getRGB(3, 4) + 12, LoggedIO.globalLog.get(0));
+			assertEquals(source.getRGB(49, 19) * 2 + 49, LoggedIO.globalLog.get(3));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void failsLikeUnoptimizedWhenAllocationFails() throws Exception {
+		// The first loop over an image declared with a size <= 0 throws when it allocates the image
+		String[] inputs = {
+				"image[0,5] a; a = *[X,Y]::1; int k = 1; k -> screen;",
+				"image[0,5] a; a = *[X,Y]::1; int k = 1; k -> screen; a = *[X,Y]::2; int m = a[0,0]; m -> screen;",
+				"image[-1,5] a; image[4,4] b; a = *[X,Y]::1; int k = @5; b = *[X,Y]::a[X,Y]; k -> screen;",
+				"image[0,5] a; a = *[X,Y]:: @5 + X; int k = a[0,0]; k -> screen;" };
+		for (String input : inputs) {
+			List<Object> logs = new ArrayList<>();
+			for (boolean optimize : new boolean[] { false, true }) {
+				codeGenOptions = cv -> cv.setFoldConstants(optimize).setEliminateDeadCode(optimize)
+						.setHoistLoopInvariants(optimize).setFuseLoops(optimize);
+				Exception e = assertThrows(Exception.class, () -> genRun(input, new String[] { "1" }));
+				logs.add(List.of(e.getClass(), String.valueOf(e.getMessage()), new ArrayList<>(LoggedIO.globalLog)));
+			}
+			assertEquals(IllegalArgumentException.class, ((List<?>) logs.get(0)).get(0), input);
+			assertEquals(logs.get(0), logs.get(1), input);
+		}
+	}
+
+	@Test
+	public void parallelLoops() throws Exception {
+		String input = """
+				image[300,200] a;
+				a = *[X,Y]::X*Y;
+				image[300,200] b;
+				b = *[X,Y]: (X+Y)%3 == 0 : a[X,Y] + a[299-X,199-Y];
+				int k = b[150,99];
+				int m = b[151,99];
+				k -> screen;
+				m -> screen;
+				""";
+		int parallelism = ParallelLoops.getParallelism();
+		ParallelLoops.setParallelism(4);
+		try {
+			codeGenOptions = cv -> cv.setParallelLoops(true);
+			genRun(input);
+		} finally {
+			ParallelLoops.setParallelism(parallelism);
+		}
+		ArrayList<Object> expectedLog = new ArrayList<Object>();
+		expectedLog.add(150*99 + 149*100);
+		expectedLog.add(0);
+		assertEquals(expectedLog, LoggedIO.globalLog);
+	}
+
+	@Test
+	public void outlinedStatements() throws Exception {
+		// More declarations than STATEMENTS_PER_METHOD, so they are split into several methods
+		StringBuilder input = new StringBuilder("int v0 = @0;\nimage[30,20] a;\n");
+		for (int i = 1; i <= 2 * CodeGenVisitorComplete.STATEMENTS_PER_METHOD; i++) {
+			input.append("int v" + i + " = v" + (i - 1) + " + " + i + ";\n");
+		}
+		input.append("a = *[X,Y]:: X + v1;\n");
+		input.append("int k = a[2,3] + v" + 2 * CodeGenVisitorComplete.STATEMENTS_PER_METHOD + ";\n");
+		input.append("k -> screen;\n");
+		String[] args = { "5" };
+		genRun(input.toString(), args);
+		ArrayList<Object> expectedLog = new ArrayList<Object>();
+		int n = 2 * CodeGenVisitorComplete.STATEMENTS_PER_METHOD;
+		expectedLog.add(2 + 6 + 5 + n * (n + 1) / 2);
+		assertEquals(expectedLog, LoggedIO.globalLog);
+	}
+
+	@Test
+	public void instanceProgramsRunConcurrently() throws Exception {
+		String input = """
+				int n = @0;
+				image[200,100] a;
+				a = *[X,Y]::X*Y + n;
+				int k = a[150,99];
+				k -> screen;
+				n -> screen;
+				""";
+		codeGenOptions = cv -> cv.setInstancePrograms(true).setLocalVariables(false).setParallelLoops(true);
+		String classname = name(1);
+		byte[] bytecode = genCode(input, classname, writeClassFile);
+		DynamicClassLoader loader = new DynamicClassLoader(Thread.currentThread().getContextClassLoader());
+		Class<?> testClass = loader.define(classname, bytecode);
+		Method run = testClass.getMethod("run", String[].class, ExecutionContext.class);
+
+		// One class, many executions at once, each with its own instance and output log
+		int executions = 16;
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<List<Object>>> logs = new ArrayList<>();
+			for (int i = 0; i < executions; i++) {
+				String[] args = { Integer.toString(i) };
+				logs.add(executor.submit(() -> {
+					ExecutionContext context = new ExecutionContext();
+					run.invoke(testClass.getConstructor().newInstance(), args, context);
+					return context.getLog();
+				}));
+			}
+			for (int i = 0; i < executions; i++) {
+				assertEquals(List.of(150 * 99 + i, i), logs.get(i).get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		// main runs with the global context
+		runCode(classname, bytecode, new String[] { "7" });
+		assertEquals(List.of(150 * 99 + 7, 7), LoggedIO.globalLog);
+	}
+
+	@Test
+	public void compilesDeeplyNestedExpressions() throws Throwable {
+		int depth = 20000;
+		// Smaller, so that the code of each method stays under 64KB
+		int loopDepth = depth / 10;
+		String input = "int a = @0;\n"
+				+ "int b = " + "(-".repeat(depth) + "a" + ")".repeat(depth) + ";\n"
+				+ "int c = " + "a == 0 ? 0 : ".repeat(loopDepth / 2) + "a + 1;\n"
+				+ "int f = " + "1 + ".repeat(depth) + "0;\n"
+				+ "image[4,3] d;\n"
+				// The condition is a chain of &, and the invariant part of the expression is moved out of the loop
+				+ "d = *[X,Y]: " + "X >= 0 & ".repeat(loopDepth) + "Y >= 0 : "
+				+ "(".repeat(loopDepth) + "b" + " + a)".repeat(loopDepth) + " + X;\n"
+				+ "int e = d[3,2];\n"
+				+ "b -> screen;\n"
+				+ "c -> screen;\n"
+				+ "e -> screen;\n"
+				+ "f -> screen;\n";
+		String classname = name(1);
+		List<Object> log = new ArrayList<>();
+		// A small stack, which the recursive parser and visits would overflow
+		Thread thread = new Thread(null, () -> {
+			try {
+				Program program = new Parser(new Scanner(input).scan()).parse();
+				program.visit(new TypeCheckVisitor(), classname);
+				CodeGenVisitorComplete cv = new CodeGenVisitorComplete(classname).setInstancePrograms(true);
+				byte[] bytecode = (byte[]) program.visit(cv, null);
+				Class<?> testClass = CodeGenUtils.loadClass(classname, bytecode);
+				ExecutionContext context = new ExecutionContext();
+				testClass.getMethod("run", String[].class, ExecutionContext.class)
+						.invoke(testClass.getConstructor().newInstance(), new String[] { "3" }, context);
+				log.addAll(context.getLog());
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}, "small stack", 1 << 18);
+		Throwable[] failure = new Throwable[1];
+		thread.setUncaughtExceptionHandler((t, e) -> failure[0] = e);
+		thread.start();
+		thread.join();
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		assertEquals(List.of(3, 4, 3 + 3 * loopDepth + 3, depth), log);
+	}
 }
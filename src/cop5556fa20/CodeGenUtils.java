@@ -1,5 +1,7 @@
 package cop5556fa20;
 
+import java.io.File;
+import java.io.InputStream;
 import java.io.PrintStream;
 /**
  * This class contains several static methods useful when developing
@@ -8,10 +10,33 @@ import java.io.PrintStream;
  */
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.util.TraceClassVisitor;
@@ -65,7 +90,217 @@ public class CodeGenUtils{
 		}
 	};
 
-	
+
+	/**
+	 * Number of classes kept by loadClass.  When a class is added to a full cache, the least recently
+	 * used one is dropped, so that it may be unloaded.
+	 */
+	public static final int PROGRAM_CACHE_SIZE = 64;
+
+	// Classes defined by loadClass, keyed by the SHA-256 digest of their bytecode, in access order.
+	private static final Map<String, Class<?>> programCache = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Class<?>> eldest) {
+			return size() > PROGRAM_CACHE_SIZE;
+		}
+	};
+
+	// Lookup.defineHiddenClass and an empty ClassOption[], or null if the JVM has no hidden classes (before Java 15).
+	private static final Method defineHiddenClass;
+	private static final Object noClassOptions;
+	static {
+		Method method = null;
+		Object options = null;
+		try {
+			Class<?> classOption = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			options = Array.newInstance(classOption, 0);
+			method = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class,
+					options.getClass());
+		} catch (ClassNotFoundException | NoSuchMethodException e) {
+			method = null;
+		}
+		defineHiddenClass = method;
+		noClassOptions = options;
+	}
+
+	// Loader of the host classes, and lookups of the host class of each package, see hostLookup.
+	private static final DynamicClassLoader hostLoader = new DynamicClassLoader(CodeGenUtils.class.getClassLoader());
+	private static final Map<String, MethodHandles.Lookup> hostLookups = new HashMap<>();
+
+	/**
+	 * Returns the class defined by bytecode.  It is defined only if the cache does not already hold a class
+	 * with the same bytecode, so running the same program again skips definition, verification and JIT warmup.
+	 *
+	 * Classes with static fields that are not final, such as programs generated without instancePrograms, which
+	 * keep their variables in static fields, are not cached: each call defines a new class, so programs loaded
+	 * separately never share their variables, even if they run at the same time.
+	 *
+	 * Classes are defined as hidden classes when the JVM supports them (Java 15 and later), and otherwise each
+	 * one by a DynamicClassLoader of its own, as are classes using
+	 * invokedynamic.  Either way a class evicted from the cache is unloaded once it is
+	 * no longer used.
+	 */
+	public static Class<?> loadClass(String name, byte[] bytecode) throws Exception {
+		if (hasStaticState(bytecode)) {
+			return defineClass(name, bytecode);
+		}
+		String key = digest(bytecode);
+		synchronized (programCache) {
+			Class<?> loaded = programCache.get(key);
+			if (loaded == null) {
+				loaded = defineClass(name, bytecode);
+				programCache.put(key, loaded);
+			}
+			return loaded;
+		}
+	}
+
+	private static Class<?> defineClass(String name, byte[] bytecode) throws Exception {
+		if (defineHiddenClass == null || isUsedByName(bytecode)) {
+			return new DynamicClassLoader(CodeGenUtils.class.getClassLoader()).define(name, bytecode);
+		}
+		String internalName = name.replace('.', '/');
+		int lastSlash = internalName.lastIndexOf('/');
+		MethodHandles.Lookup host = hostLookup(lastSlash < 0 ? "" : internalName.substring(0, lastSlash));
+		try {
+			return ((MethodHandles.Lookup) defineHiddenClass.invoke(host, bytecode, true, noClassOptions)).lookupClass();
+		} catch (InvocationTargetException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+
+	/**
+	 * Returns true if the class of bytecode has a static field that is not final.
+	 */
+	private static boolean hasStaticState(byte[] bytecode) {
+		boolean[] found = new boolean[1];
+		new ClassReader(bytecode).accept(new ClassVisitor(Opcodes.ASM8) {
+			@Override
+			public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+				found[0] |= (access & (Opcodes.ACC_STATIC | Opcodes.ACC_FINAL)) == Opcodes.ACC_STATIC;
+				return null;
+			}
+		}, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+		return found[0];
+	}
+
+	/**
+	 * Returns true if the class of bytecode is looked up by its name, which fails for a hidden class, so that it
+	 * must be defined by a DynamicClassLoader.  That is the case if it contains an invokedynamic instruction, as
+	 * the lambdas created by such instructions (for instance the row bands of parallel pixel loops) call back into
+	 * the class by name, and if one of its methods has a parameter of its own type (for instance the methods of
+	 * instance programs that receive the instance), as the verifier loads the type of the arguments by name.
+	 */
+	private static boolean isUsedByName(byte[] bytecode) {
+		boolean[] found = new boolean[1];
+		new ClassReader(bytecode).accept(new ClassVisitor(Opcodes.ASM8) {
+			String ownType;
+
+			@Override
+			public void visit(int version, int access, String name, String signature, String superName,
+					String[] interfaces) {
+				ownType = "L" + name + ";";
+			}
+
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+					String[] exceptions) {
+				found[0] |= descriptor.contains(ownType);
+				return new MethodVisitor(Opcodes.ASM8) {
+					@Override
+					public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle,
+							Object... bootstrapMethodArguments) {
+						found[0] = true;
+					}
+				};
+			}
+		}, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+		return found[0];
+	}
+
+	/**
+	 * Returns a full privilege lookup on a class of the given package, which defineHiddenClass requires
+	 * to define classes of that package.  The class is generated and defined by hostLoader the first time.
+	 */
+	private static MethodHandles.Lookup hostLookup(String packageName) throws Exception {
+		synchronized (hostLookups) {
+			MethodHandles.Lookup lookup = hostLookups.get(packageName);
+			if (lookup == null) {
+				String hostName = (packageName.isEmpty() ? "" : packageName + "/") + "PLPProgramHost";
+				String lookupDesc = "()Ljava/lang/invoke/MethodHandles$Lookup;";
+				ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+				cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, hostName, null,
+						"java/lang/Object", null);
+				// public static Lookup lookup() { return MethodHandles.lookup(); }
+				MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "lookup", lookupDesc, null, null);
+				mv.visitCode();
+				mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup", lookupDesc, false);
+				mv.visitInsn(Opcodes.ARETURN);
+				mv.visitMaxs(0, 0);
+				mv.visitEnd();
+				cw.visitEnd();
+				Class<?> host = hostLoader.define(hostName.replace('/', '.'), cw.toByteArray());
+				lookup = (MethodHandles.Lookup) host.getMethod("lookup").invoke(null);
+				hostLookups.put(packageName, lookup);
+			}
+			return lookup;
+		}
+	}
+
+	static String digest(byte[] bytecode) throws NoSuchAlgorithmException {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : MessageDigest.getInstance("SHA-256").digest(bytecode)) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Returns the SHA-256 digest of the names and contents of the class files of the package of c and of its
+	 * subpackages, read from the directory or jar file c was loaded from.  If they cannot be read, returns a
+	 * random value, which differs in each JVM.
+	 */
+	static String classFilesDigest(Class<?> c) {
+		String packagePath = c.getPackageName().replace('.', '/') + "/";
+		// SHA-256 digest of each class file, keyed by its name
+		Map<String, String> classFiles = new TreeMap<>();
+		try {
+			Path location = Path.of(c.getProtectionDomain().getCodeSource().getLocation().toURI());
+			if (Files.isDirectory(location)) {
+				List<Path> files;
+				try (Stream<Path> walk = Files.walk(location.resolve(packagePath))) {
+					files = walk.filter(file -> file.toString().endsWith(".class")).collect(Collectors.toList());
+				}
+				for (Path file : files) {
+					String name = location.relativize(file).toString().replace(File.separatorChar, '/');
+					classFiles.put(name, digest(Files.readAllBytes(file)));
+				}
+			} else {
+				try (JarFile jar = new JarFile(location.toFile())) {
+					for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements();) {
+						JarEntry entry = entries.nextElement();
+						if (entry.getName().startsWith(packagePath) && entry.getName().endsWith(".class")) {
+							try (InputStream in = jar.getInputStream(entry)) {
+								classFiles.put(entry.getName(), digest(in.readAllBytes()));
+							}
+						}
+					}
+				}
+			}
+		} catch (Exception e) {
+			return UUID.randomUUID().toString();
+		}
+		StringBuilder digests = new StringBuilder();
+		for (Map.Entry<String, String> classFile : classFiles.entrySet()) {
+			digests.append(classFile.getKey()).append(' ').append(classFile.getValue()).append('\n');
+		}
+		try {
+			return digest(digests.toString().getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			return UUID.randomUUID().toString();
+		}
+	}
+
 	/**
 	 * Creates an instance of the indicated class from the provided byteCode.
 	 * args is passed as a parameter to the constructor, and in order to
@@ -76,18 +311,10 @@ public class CodeGenUtils{
 	 * @param byteCode
 	 * @param args
 	 * @return
-	 * @throws NoSuchMethodException
-	 * @throws SecurityException
-	 * @throws InstantiationException
-	 * @throws IllegalAccessException
-	 * @throws IllegalArgumentException
-	 * @throws InvocationTargetException
+	 * @throws Exception
 	 */
-	public static Runnable getInstance(String name, byte[] byteCode, Object args)
-			throws NoSuchMethodException, SecurityException, InstantiationException, IllegalAccessException,
-			IllegalArgumentException, InvocationTargetException {
-		DynamicClassLoader loader = new DynamicClassLoader(Thread.currentThread().getContextClassLoader());
-		Class<?> testClass = loader.define(name, byteCode);
+	public static Runnable getInstance(String name, byte[] byteCode, Object args) throws Exception {
+		Class<?> testClass = loadClass(name, byteCode);
 		Constructor<?> constructor = testClass.getConstructor(args.getClass());
 		return (Runnable) constructor.newInstance(args);
 	}
@@ -0,0 +1,112 @@
+package cop5556fa20;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import cop5556fa20.AST.Program;
+import cop5556fa20.runtime.ExecutionContext;
+
+class CodeGenUtilsTest {
+
+	/**
+	 * Returns the bytecode of a class with a static method value() returning value.
+	 */
+	static byte[] valueClass(String className, int value) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, className, null, "java/lang/Object", null);
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "value", "()I", null, null);
+		mv.visitCode();
+		mv.visitLdcInsn(value);
+		mv.visitInsn(Opcodes.IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Returns the bytecode of a class with a static int field count and a static method value() incrementing it.
+	 */
+	static byte[] counterClass(String className) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, className, null, "java/lang/Object", null);
+		cw.visitField(Opcodes.ACC_STATIC, "count", "I", null, null).visitEnd();
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "value", "()I", null, null);
+		mv.visitCode();
+		mv.visitFieldInsn(Opcodes.GETSTATIC, className, "count", "I");
+		mv.visitInsn(Opcodes.ICONST_1);
+		mv.visitInsn(Opcodes.IADD);
+		mv.visitInsn(Opcodes.DUP);
+		mv.visitFieldInsn(Opcodes.PUTSTATIC, className, "count", "I");
+		mv.visitInsn(Opcodes.IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	static int value(Class<?> c) throws Exception {
+		return (Integer) c.getMethod("value").invoke(null);
+	}
+
+	@Test
+	public void reusesLoadedClasses() throws Exception {
+		Class<?> a = CodeGenUtils.loadClass("CacheTest", valueClass("CacheTest", 1));
+		Class<?> b = CodeGenUtils.loadClass("CacheTest", valueClass("CacheTest", 1));
+		Class<?> c = CodeGenUtils.loadClass("CacheTest", valueClass("CacheTest", 2));
+		assertSame(a, b);
+		assertNotSame(a, c);
+		assertEquals(1, value(a));
+		assertEquals(2, value(c));
+	}
+
+	@Test
+	public void loadsClassesOfPackages() throws Exception {
+		Class<?> c = CodeGenUtils.loadClass("plp.programs.CacheTest", valueClass("plp/programs/CacheTest", 3));
+		assertEquals(3, value(c));
+		assertEquals("plp.programs", c.getPackageName());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsedClasses() throws Exception {
+		Class<?> first = CodeGenUtils.loadClass("EvictionTest", valueClass("EvictionTest", -1));
+		Class<?> second = CodeGenUtils.loadClass("EvictionTest", valueClass("EvictionTest", -2));
+		for (int i = 0; i < CodeGenUtils.PROGRAM_CACHE_SIZE - 1; i++) {
+			CodeGenUtils.loadClass("EvictionTest", valueClass("EvictionTest", i));
+			// Keep first in use
+			assertSame(first, CodeGenUtils.loadClass("EvictionTest", valueClass("EvictionTest", -1)));
+		}
+		assertSame(first, CodeGenUtils.loadClass("EvictionTest", valueClass("EvictionTest", -1)));
+		assertNotSame(second, CodeGenUtils.loadClass("EvictionTest", valueClass("EvictionTest", -2)));
+	}
+
+	@Test
+	public void doesNotShareStaticFields() throws Exception {
+		Class<?> a = CodeGenUtils.loadClass("CounterTest", counterClass("CounterTest"));
+		Class<?> b = CodeGenUtils.loadClass("CounterTest", counterClass("CounterTest"));
+		assertNotSame(a, b);
+		assertEquals(1, value(a));
+		assertEquals(2, value(a));
+		assertEquals(1, value(b));
+	}
+
+	@Test
+	public void loadsClassesWithMethodsTakingThemselves() throws Exception {
+		// The outlined loop of an instance program receives the instance
+		String source = "image[4,3] a; a = *[X,Y]:: X*Y; int k = a[3,2]; k -> screen;";
+		Program program = new Parser(new Scanner(source).scan()).parse();
+		program.visit(new TypeCheckVisitor(), "SelfTest");
+		byte[] bytecode = (byte[]) program.visit(new CodeGenVisitorComplete("SelfTest").setInstancePrograms(true), null);
+		Class<?> c = CodeGenUtils.loadClass("SelfTest", bytecode);
+		ExecutionContext context = new ExecutionContext();
+		c.getMethod("run", String[].class, ExecutionContext.class).invoke(c.getConstructor().newInstance(),
+				new String[0], context);
+		assertEquals(List.of(6), context.getLog());
+	}
+}
@@ -16,13 +16,24 @@ package cop5556fa20;
 
 import cop5556fa20.AST.Type;
 import cop5556fa20.AST.*;
+import cop5556fa20.runtime.ExecutionContext;
 import cop5556fa20.runtime.LoggedIO;
 import cop5556fa20.runtime.PLPImage;
 import cop5556fa20.runtime.PLPImageUtils;
+import cop5556fa20.runtime.ParallelLoops;
 import cop5556fa20.runtime.PixelOps;
 import org.objectweb.asm.*;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class CodeGenVisitorComplete implements ASTVisitor, Opcodes {
 	private static final String STRING_DESC = "Ljava/lang/String;";
@@ -30,135 +41,459 @@ public class CodeGenVisitorComplete implements ASTVisitor, Opcodes {
 	private static final String INT_DESC = "I";
 
 	private static final String INTEGER_CLASS_NAME = "java/lang/Integer";
+
+	// Local variable slots of main.  Slot 0 holds args, or the program instance if instancePrograms is set.
+	private static final int ARGS_SLOT = 0;
+	private static final int MAIN_X_SLOT = 1;
+	private static final int MAIN_Y_SLOT = 2;
+	private static final int MAIN_WIDTH_SLOT = 3;
+	private static final int MAIN_HEIGHT_SLOT = 4;
+	private static final int MAIN_FIRST_FREE_SLOT = 5;
+
+	// The methods running a band of rows of a pixel loop have parameters args (or the program instance), width and
+	// height, followed by the local variables of main used by the loop, and by yStart and yEnd.
+	private static final int BAND_WIDTH_SLOT = 1;
+	private static final int BAND_HEIGHT_SLOT = 2;
+	private static final int BAND_FIRST_CAPTURED_SLOT = 3;
+
+	// Local variable slots of run, see instancePrograms.
+	private static final int RUN_ARGS_SLOT = 1;
+	private static final int RUN_CONTEXT_SLOT = 2;
+	private static final int RUN_X_SLOT = 3;
+	private static final int RUN_Y_SLOT = 4;
+	private static final int RUN_WIDTH_SLOT = 5;
+	private static final int RUN_HEIGHT_SLOT = 6;
+	private static final int RUN_FIRST_FREE_SLOT = 7;
+	private static final String RUN_SIG = "([Ljava/lang/String;" + ExecutionContext.desc + ")V";
+
+	// Fields of instance programs holding the arguments of run.  The names are not PLP identifiers.
+	private static final String ARGS_FIELD = "#args";
+	private static final String CONTEXT_FIELD = "#context";
+
+	// Class file version of the generated classes: Java 14 with preview features.
+	static final int CLASS_VERSION = -65478;
+
+	// Name and descriptor of the method running a pixel loop in the classes generated by compileLoop.
+	public static final String LOOP_METHOD = "run";
+	public static final String LOOP_METHOD_SIG = "([Ljava/lang/String;[Ljava/lang/Object;)V";
+	private static final int LOOP_VALUES_SLOT = 1;
+
+	// Most declarations and statements, other than pixel loops, generated in the same method, see outlineMethods.
+	static final int STATEMENTS_PER_METHOD = 64;
+
+	/**
+	 * Version of the code generator, part of the key of the classes stored by ProgramCache.  It is the digest of
+	 * the class files of the compiler and of the runtime classes called by generated code, so it changes with any
+	 * change of them that may change the code generated for some program.
+	 */
+	public static final String VERSION = CodeGenUtils.classFilesDigest(CodeGenVisitorComplete.class);
+
 	final String className;
 	final boolean isInterface = false;
 	ClassWriter cw;
 	MethodVisitor mv;
+	LoopDependenceAnalysis dependences;
+
+	// Local variable slots of X, Y and the size of the image written by the current pixel loop, in the method mv.
+	int xSlot = MAIN_X_SLOT;
+	int ySlot = MAIN_Y_SLOT;
+	int widthSlot = MAIN_WIDTH_SLOT;
+	int heightSlot = MAIN_HEIGHT_SLOT;
+
+	// Next unused local variable slot of the method mv.  Slots allocated for a loop are released at its end.
+	int nextLocalSlot = MAIN_FIRST_FREE_SLOT;
+
+	/**
+	 * If true, the variables of the program are local variables of main instead of static fields,
+	 * so the JIT may keep them in registers.  Row band methods receive the ones they use as parameters.
+	 */
+	boolean localVariables = true;
+
+	/**
+	 * If true, the program is rewritten by ConstantFolding before generating its code.
+	 */
+	boolean foldConstants = true;
+
+	/**
+	 * If true, the program is rewritten by DeadCodeElimination before generating its code.
+	 */
+	boolean eliminateDeadCode = true;
+
+	/**
+	 * If true, the program only runs the computations needed by its outputs, skipping the dead loads and
+	 * pixel loops even if they would throw an exception.
+	 */
+	boolean lazyExecution = false;
+
+	/**
+	 * If true, the program is rewritten by LoopInvariantCodeMotion before generating its code.
+	 */
+	boolean hoistLoopInvariants = true;
+
+	/**
+	 * If true, consecutive pixel loops grouped by LoopFusion run in a single traversal when their images
+	 * have the same size.
+	 */
+	boolean fuseLoops = true;
+
+	/**
+	 * If true, and loops are not run in parallel, a pixel loop that reads the image of the loops just before it
+	 * in rows Y+c runs with them as a row pipeline, each row being computed once the rows it reads are computed.
+	 */
+	boolean pipelineRows = true;
+
+	// Types of the declared variables, and local variable slots in the method mv of the ones that are not fields.
+	final Map<String, Type> variableTypes = new HashMap<>();
+	Map<String, Integer> variableSlots = new HashMap<>();
+
+	// Variables that are static fields even if localVariables is set, as they are used by several methods.
+	final Set<String> fieldVariables = new HashSet<>();
+
+	// Declarations of the local variables of the method mv, added to its LocalVariableTable.
+	List<LocalVariable> methodLocals = new ArrayList<>();
+
+	@SuppressWarnings("preview")
+	private record LocalVariable(String name, String desc, Label start, int slot) {
+	}
+
+	// Number of methods generated besides main, used to name them.
+	int methodCount = 0;
+
+	/**
+	 * If true, each group of pixel loops is generated in its own private static method, and if the program has
+	 * more than STATEMENTS_PER_METHOD other declarations and statements, they are split into methods of at most
+	 * STATEMENTS_PER_METHOD.  Small methods stay under HotSpot's HugeMethodLimit (8000 bytes of bytecode), above
+	 * which a method is never JIT compiled, and a loop in its own method is compiled, or replaced on stack, alone.
+	 */
+	boolean outlineMethods = true;
+
+	/**
+	 * If true, pixel loops that may visit their pixels in any order walk the image in raster order,
+	 * Y in the outer loop and X in the inner loop, so that consecutive writes are adjacent in memory.
+	 */
+	boolean rowMajorLoops = true;
+
+	/**
+	 * If positive, raster order loops are split into loopTileSize x loopTileSize tiles.  At most
+	 * MAX_LOOP_TILE_SIZE, so that the tiles of any image are generated without overflow.
+	 */
+	int loopTileSize = 0;
+
+	public static final int MAX_LOOP_TILE_SIZE = Short.MAX_VALUE;
+
+	/**
+	 * If true, pixel loops read and write the int[] backing TYPE_INT_ARGB images directly
+	 * instead of calling BufferedImage.getRGB and setRGB for every pixel.
+	 */
+	boolean directPixelAccess = false;
+
+	/**
+	 * While generating the direct access version of a pixel loop, the local variables holding the
+	 * pixel arrays of the images read or written by the loop, keyed by image name.  Otherwise null.
+	 */
+	Map<String, PixelArray> pixelArrays = null;
+
+	/**
+	 * Local variables holding the pixel array, width and height of an image.
+	 */
+	@SuppressWarnings("preview")
+	private record PixelArray(int data, int width, int height) {
+	}
+
+	// Local variable holding Y * width + X while generating the direct access version of a pixel loop.
+	int pixelIndexSlot;
+
+	/**
+	 * If true, pixel loops that may visit their pixels in any order are split into bands of rows
+	 * that run in parallel, see ParallelLoops.
+	 */
+	boolean parallelLoops = false;
+
+	/**
+	 * If true, the program is an instance of the generated class: its variables are instance fields, it runs with
+	 * run(String[] args, ExecutionContext context), and its outputs go to the context instead of LoggedIO.  Each
+	 * execution runs on its own instance and context, so one class may run on several threads at once.  main runs
+	 * a new instance with ExecutionContext.global.  The methods generated besides run stay static, and receive
+	 * the instance in place of args.
+	 */
+	boolean instancePrograms = false;
+
+	/**
+	 * Generates the code of a loop body, or of some other nested construct.
+	 */
+	private interface CodeEmitter {
+		void emit() throws Exception;
+	}
 
 	public CodeGenVisitorComplete(String className) {
 		super();
 		this.className = className;
 	}
+
+	public CodeGenVisitorComplete setRowMajorLoops(boolean rowMajorLoops) {
+		this.rowMajorLoops = rowMajorLoops;
+		return this;
+	}
+
+	/**
+	 * Sets the size of the tiles of raster order loops, 0 for no tiling.  Throws an IllegalArgumentException if
+	 * loopTileSize is negative or larger than MAX_LOOP_TILE_SIZE.
+	 */
+	public CodeGenVisitorComplete setLoopTileSize(int loopTileSize) {
+		if (loopTileSize < 0 || loopTileSize > MAX_LOOP_TILE_SIZE) {
+			throw new IllegalArgumentException(
+					"Loop tile size " + loopTileSize + " is not in 0.." + MAX_LOOP_TILE_SIZE);
+		}
+		this.loopTileSize = loopTileSize;
+		return this;
+	}
+
+	public CodeGenVisitorComplete setDirectPixelAccess(boolean directPixelAccess) {
+		this.directPixelAccess = directPixelAccess;
+		return this;
+	}
+
+	public CodeGenVisitorComplete setParallelLoops(boolean parallelLoops) {
+		this.parallelLoops = parallelLoops;
+		return this;
+	}
+
+	public CodeGenVisitorComplete setLocalVariables(boolean localVariables) {
+		this.localVariables = localVariables;
+		return this;
+	}
+
+	public CodeGenVisitorComplete setFoldConstants(boolean foldConstants) {
+		this.foldConstants = foldConstants;
+		return this;
+	}
+
+	public CodeGenVisitorComplete setEliminateDeadCode(boolean eliminateDeadCode) {
+		this.eliminateDeadCode = eliminateDeadCode;
+		return this;
+	}
+
+	public CodeGenVisitorComplete setLazyExecution(boolean lazyExecution) {
+		this.lazyExecution = lazyExecution;
+		return this;
+	}
+
+	public CodeGenVisitorComplete setHoistLoopInvariants(boolean hoistLoopInvariants) {
+		this.hoistLoopInvariants = hoistLoopInvariants;
+		return this;
+	}
+
+	public CodeGenVisitorComplete setFuseLoops(boolean fuseLoops) {
+		this.fuseLoops = fuseLoops;
+		return this;
+	}
+
+	public CodeGenVisitorComplete setPipelineRows(boolean pipelineRows) {
+		this.pipelineRows = pipelineRows;
+		return this;
+	}
+
+	public CodeGenVisitorComplete setOutlineMethods(boolean outlineMethods) {
+		this.outlineMethods = outlineMethods;
+		return this;
+	}
+
+	public CodeGenVisitorComplete setInstancePrograms(boolean instancePrograms) {
+		this.instancePrograms = instancePrograms;
+		return this;
+	}
+
+	/**
+	 * Returns the options of this code generator, which with VERSION, the class name and the source of a program
+	 * determine its generated code.
+	 */
+	public String options() {
+		return "rowMajorLoops=" + rowMajorLoops + ",loopTileSize=" + loopTileSize + ",directPixelAccess="
+				+ directPixelAccess + ",parallelLoops=" + parallelLoops + ",localVariables=" + localVariables
+				+ ",foldConstants=" + foldConstants + ",eliminateDeadCode=" + eliminateDeadCode + ",lazyExecution="
+				+ lazyExecution + ",hoistLoopInvariants=" + hoistLoopInvariants + ",fuseLoops=" + fuseLoops
+				+ ",pipelineRows=" + pipelineRows + ",outlineMethods=" + outlineMethods + ",instancePrograms="
+				+ instancePrograms;
+	}
 	
 	
 	@Override
 	public Object visitDecImage(DecImage decImage, Object arg) throws Exception {
-		// create the static variable
-		FieldVisitor fieldVisitor = cw.visitField(ACC_STATIC, decImage.name(), PLPImage.desc, null, null);
-		fieldVisitor.visitEnd();
+		decImage(decImage.name(), decImage.op(), emitter(decImage.width()), emitter(decImage.height()),
+				emitter(decImage.source()), decImage.first().line(), decImage.first().posInLine());
+		return null;
+	}
+
+	/**
+	 * Generates the code of an image declaration, whose expressions are generated by the given emitters, null
+	 * for empty ones.  The declarations and statements of AST nodes and of FlatAST nodes share these methods.
+	 */
+	private void decImage(String name, Scanner.Kind op, CodeEmitter width, CodeEmitter height, CodeEmitter source,
+			int line, int posInLine) throws Exception {
+		// create the variable
+		declareVariable(name, Type.Image);
 
 		// Load operator
-		mv.visitFieldInsn(GETSTATIC, Scanner.KIND_CLASS_NAME, decImage.op().toString(), Scanner.KIND_DESC);
+		mv.visitFieldInsn(GETSTATIC, Scanner.KIND_CLASS_NAME, op.toString(), Scanner.KIND_DESC);
 
 		// Load width
-		if (decImage.width() == Expression.empty) {
+		if (width == null) {
 			mv.visitInsn(ACONST_NULL);
 		} else {
-			decImage.width().visit(this, null);
+			width.emit();
 			mv.visitMethodInsn(INVOKESTATIC, INTEGER_CLASS_NAME, "valueOf", "(I)"+INTEGER_DESC, false);
 		}
 
 		// Load height
-		if (decImage.height() == Expression.empty) {
+		if (height == null) {
 			mv.visitInsn(ACONST_NULL);
 		} else {
-			decImage.height().visit(this, null);
+			height.emit();
 			mv.visitMethodInsn(INVOKESTATIC, INTEGER_CLASS_NAME, "valueOf", "(I)"+INTEGER_DESC, false);
 		}
 
 		// Load source
-		if (decImage.source() == Expression.empty) {
+		if (source == null) {
 			mv.visitInsn(ACONST_NULL);
 		} else {
-			decImage.source().visit(this, null);
+			source.emit();
 		}
 
 		// Load line number
-		mv.visitLdcInsn(decImage.first().line());
+		mv.visitLdcInsn(line);
 
 		// Load pos in line
-		mv.visitLdcInsn(decImage.first().posInLine());
+		mv.visitLdcInsn(posInLine);
 
 		// Call the java method which will create the image
 		mv.visitMethodInsn(INVOKESTATIC, PLPImageUtils.className, "createImage", PLPImageUtils.createImageSig, false);
 
-		// put the value of the static variable
-		mv.visitFieldInsn(PUTSTATIC, className, decImage.name(), PLPImage.desc);
-
-		return null;
+		// store the value of the variable
+		storeVariable(name);
 	}
 
 
 	/**
-	 * Add a static field to the class for this variable.
+	 * Add a local variable of main, or a static field to the class, for this variable.
 	 */
 	@Override
 	public Object visitDecVar(DecVar decVar, Object arg) throws Exception {
-		String varName = decVar.name();
-		Type type = decVar.type();
-
-		String desc = STRING_DESC;
-		Object defaultValue = null;
-		if (type == Type.Int) {
-			desc = INT_DESC;
-			defaultValue = 0;
-		}
+		decVar(decVar.name(), decVar.type(), emitter(decVar.expression()));
+		return null;
+	}
 
-		FieldVisitor fieldVisitor = cw.visitField(ACC_STATIC, varName, desc, null, defaultValue);
-		fieldVisitor.visitEnd();
+	private void decVar(String varName, Type type, CodeEmitter e) throws Exception {
+		declareVariable(varName, type);
 
 		//evaluate initial value and store in variable, if one is given.
-		Expression e = decVar.expression();
-		if (e != Expression.empty) {
-			e.visit(this, null); // generates code to evaluate expression and leave value on top of the stack
-			mv.visitFieldInsn(PUTSTATIC, className, varName, desc);
+		if (e != null) {
+			e.emit(); // generates code to evaluate expression and leave value on top of the stack
+			storeVariable(varName);
+		} else {
+			// local variables have no default value, and fields keep the value of a previous run of main
+			mv.visitInsn(type == Type.Int || type == Type.Boolean ? ICONST_0 : ACONST_NULL);
+			storeVariable(varName);
 		}
+	}
 
+	/**
+	 * Returns the emitter of the code of e, or null if e is empty.
+	 */
+	private CodeEmitter emitter(Expression e) {
+		return e == Expression.empty ? null : () -> e.visit(this, null);
+	}
+
+	// Steps of the code of expressions that generate has not run yet, the next one first, or null
+	private ArrayDeque<Object> steps;
+
+	/**
+	 * Generates code made of steps, each an Expression, whose code is generated by its visit method, or a
+	 * Runnable that generates instructions.  The visit methods of expressions generate the code of their
+	 * subexpressions by calling generate instead of visiting them.  The steps are pushed on a stack in the heap
+	 * and run by the outermost call, so that the nesting of expressions is not limited by the size of the
+	 * thread's stack.
+	 */
+	private Object generate(Object... code) throws Exception {
+		boolean outermost = steps == null;
+		if (outermost) {
+			steps = new ArrayDeque<>();
+		}
+		for (int i = code.length - 1; i >= 0; i--) {
+			steps.push(code[i]);
+		}
+		if (outermost) {
+			try {
+				while (!steps.isEmpty()) {
+					Object step = steps.pop();
+					if (step instanceof Runnable) {
+						((Runnable) step).run();
+					} else {
+						((Expression) step).visit(this, null);
+					}
+				}
+			} finally {
+				steps = null;
+			}
+		}
 		return null;
 	}
 
 	@Override
 	public Object visitExprArg(ExprArg exprArg, Object arg) throws Exception {
+		loadArgs();
+		// Load the index, then the corresponding element
+		return generate(exprArg.e(), (Runnable) () -> argument(exprArg.type()));
+	}
+
+	private void loadArgs() {
 		// Loading local variable args
-		mv.visitVarInsn(ALOAD, 0);
-		// Load the index
-		exprArg.e().visit(this, null);
-		// Load the corresponding element
+		mv.visitVarInsn(ALOAD, ARGS_SLOT);
+		if (instancePrograms) {
+			mv.visitFieldInsn(GETFIELD, className, ARGS_FIELD, "[Ljava/lang/String;");
+		}
+	}
+
+	/**
+	 * Generates the code of an ExprArg of the given type, whose args and index are on the stack.
+	 */
+	private void argument(Type type) {
 		mv.visitInsn(AALOAD);
 
-		if (exprArg.type() == Type.Int) {
+		if (type == Type.Int) {
 			mv.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "parseInt", "(Ljava/lang/String;)I", false);
 		}
-
-		return null;
 	}
 
 	@Override
 	public Object visitExprBinary(ExprBinary exprBinary, Object arg) throws Exception {
-		exprBinary.e0().visit(this, null);
-		exprBinary.e1().visit(this, null);
+		return generate(exprBinary.e0(), exprBinary.e1(),
+				(Runnable) () -> binaryOperator(exprBinary.op(), exprBinary.e0().type()));
+	}
 
-		Scanner.Kind op = exprBinary.op();
+	/**
+	 * Generates the instruction of the operator op, whose operands of type t0 are on the stack.
+	 */
+	private void binaryOperator(Scanner.Kind op, Type t0) {
 		switch (op) {
 			case AND ->
 					mv.visitInsn(IAND);
 			case OR ->
 					mv.visitInsn(IOR);
 			case EQ -> {
-				if (exprBinary.e0().type() == Type.Int) {
+				if (t0 == Type.Int) {
 					addBooleanJumpLogic(IF_ICMPEQ);
-				} else if (exprBinary.e0().type() == Type.String) {
+				} else if (t0 == Type.String) {
 					addBooleanJumpLogic(IF_ACMPEQ);
-				} else if (exprBinary.e0().type() == Type.Image) {
+				} else if (t0 == Type.Image) {
 					mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "equals", "(Ljava/lang/Object;)Z", isInterface);
 				}
 			}
 			case NEQ -> {
-				if (exprBinary.e0().type() == Type.Int) {
+				if (t0 == Type.Int) {
 					addBooleanJumpLogic(IF_ICMPNE);
-				} else if (exprBinary.e0().type() == Type.String) {
+				} else if (t0 == Type.String) {
 					addBooleanJumpLogic(IF_ACMPNE);
-				} else if (exprBinary.e0().type() == Type.Image) {
+				} else if (t0 == Type.Image) {
 					mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "notEquals", "(Ljava/lang/Object;)Z", isInterface);
 				}
 			}
@@ -171,7 +506,7 @@ public class CodeGenVisitorComplete implements ASTVisitor, Opcodes {
 			case GE ->
 					addBooleanJumpLogic(IF_ICMPGE);
 			case PLUS -> {
-				if (exprBinary.e0().type() == Type.Int) {
+				if (t0 == Type.Int) {
 					mv.visitInsn(IADD);
 				} else {
 					mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "concat", "(Ljava/lang/String;)Ljava/lang/String;", isInterface);
@@ -188,27 +523,22 @@ public class CodeGenVisitorComplete implements ASTVisitor, Opcodes {
 			default ->
 					throw new UnsupportedOperationException("Operator " + op + " not supported in binary expression");
 		}
-		return null;
 	}
 
 	@Override
 	public Object visitExprConditional(ExprConditional exprConditional, Object arg) throws Exception {
-		exprConditional.condition().visit(this, null);
-
 		Label falseLabel = new Label();
 		Label endLabel = new Label();
 
-		mv.visitJumpInsn(IFEQ, falseLabel);
-
-		exprConditional.trueCase().visit(this, null);
-		mv.visitJumpInsn(GOTO, endLabel);
-
-		mv.visitLabel(falseLabel);
-		exprConditional.falseCase().visit(this, null);
-
-		mv.visitLabel(endLabel);
-
-		return null;
+		return generate(exprConditional.condition(),
+				(Runnable) () -> mv.visitJumpInsn(IFEQ, falseLabel),
+				exprConditional.trueCase(),
+				(Runnable) () -> {
+					mv.visitJumpInsn(GOTO, endLabel);
+					mv.visitLabel(falseLabel);
+				},
+				exprConditional.falseCase(),
+				(Runnable) () -> mv.visitLabel(endLabel));
 	}
 
 	@Override
@@ -219,34 +549,39 @@ public class CodeGenVisitorComplete implements ASTVisitor, Opcodes {
 
 	@Override
 	public Object visitExprHash(ExprHash exprHash, Object arg) throws Exception {
-		Type eType = exprHash.e().type();
-		exprHash.e().visit(this, null);
+		return generate(exprHash.e(), (Runnable) () -> attribute(exprHash.e().type(), exprHash.attr(),
+				exprHash.first().line(), exprHash.first().posInLine()));
+	}
+
+	/**
+	 * Generates the code of the attribute attr of an expression of type eType, which is on the stack.
+	 */
+	private void attribute(Type eType, String attr, int line, int posInLine) {
 		if (eType == Type.Int) {
-			if (exprHash.attr().equals("red")) {
+			if (attr.equals("red")) {
 				mv.visitMethodInsn(INVOKESTATIC, PixelOps.className, "getRed", PixelOps.getRedSig, false);
 			}
-			if (exprHash.attr().equals("green")) {
+			if (attr.equals("green")) {
 				mv.visitMethodInsn(INVOKESTATIC, PixelOps.className, "getGreen", PixelOps.getGreenSig, false);
 			}
-			if (exprHash.attr().equals("blue")) {
+			if (attr.equals("blue")) {
 				mv.visitMethodInsn(INVOKESTATIC, PixelOps.className, "getBlue", PixelOps.getBlueSig, false);
 			}
 		}
 		if (eType == Type.Image) {
 			// Load line number
-			mv.visitLdcInsn(exprHash.first().line());
+			mv.visitLdcInsn(line);
 
 			// Load pos in line
-			mv.visitLdcInsn(exprHash.first().posInLine());
+			mv.visitLdcInsn(posInLine);
 
-			if (exprHash.attr().equals("width")) {
+			if (attr.equals("width")) {
 				mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "getWidthThrows", PLPImage.getWidthThrowsSig, false);
-			} else if (exprHash.attr().equals("height")) {
+			} else if (attr.equals("height")) {
 				mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "getHeightThrows", PLPImage.getHeightThrowsSig, false);
 			}
 
 		}
-		return null;
 	}
 
 	@Override
@@ -257,21 +592,35 @@ public class CodeGenVisitorComplete implements ASTVisitor, Opcodes {
 
 	@Override
 	public Object visitExprPixelConstructor(ExprPixelConstructor exprPixelConstructor, Object arg) throws Exception {
-		exprPixelConstructor.redExpr().visit(this, null);
-		exprPixelConstructor.greenExpr().visit(this, null);
-		exprPixelConstructor.blueExpr().visit(this, null);
-
-		mv.visitMethodInsn(INVOKESTATIC, PixelOps.className, "makePixel", PixelOps.makePixelSig, false);
-		return null;
+		return generate(exprPixelConstructor.redExpr(), exprPixelConstructor.greenExpr(),
+				exprPixelConstructor.blueExpr(), (Runnable) () -> mv.visitMethodInsn(INVOKESTATIC,
+						PixelOps.className, "makePixel", PixelOps.makePixelSig, false));
 	}
 
 	@Override
 	public Object visitExprPixelSelector(ExprPixelSelector exprPixelSelector, Object arg) throws Exception {
-		exprPixelSelector.image().visit(this, null);
-		exprPixelSelector.X().visit(this, null);
-		exprPixelSelector.Y().visit(this, null);
-		mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "selectPixel", PLPImage.selectPixelSig, false);
-		return null;
+		PixelArray pixels = pixelArrays == null || !(exprPixelSelector.image() instanceof ExprVar) ? null
+				: pixelArrays.get(((ExprVar) exprPixelSelector.image()).name());
+		if (pixels != null) {
+			// Images read at [X,Y] have the size of the image written, see loadPixelArrays
+			if (isVar(exprPixelSelector.X(), "X") && isVar(exprPixelSelector.Y(), "Y")) {
+				// pixels[Y * width + X]
+				mv.visitVarInsn(ALOAD, pixels.data());
+				mv.visitVarInsn(ILOAD, pixelIndexSlot);
+				mv.visitInsn(IALOAD);
+			} else {
+				mv.visitVarInsn(ALOAD, pixels.data());
+				mv.visitVarInsn(ILOAD, pixels.width());
+				mv.visitVarInsn(ILOAD, pixels.height());
+				return generate(exprPixelSelector.X(), exprPixelSelector.Y(), (Runnable) () -> mv.visitMethodInsn(
+						INVOKESTATIC, PLPImage.className, "selectPixel", PLPImage.selectPixelDataSig, false));
+			}
+			return null;
+		}
+
+		return generate(exprPixelSelector.image(), exprPixelSelector.X(), exprPixelSelector.Y(),
+				(Runnable) () -> mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "selectPixel",
+						PLPImage.selectPixelSig, false));
 	}
 	
 	/**
@@ -285,47 +634,212 @@ public class CodeGenVisitorComplete implements ASTVisitor, Opcodes {
 
 	@Override
 	public Object visitExprUnary(ExprUnary exprUnary, Object arg) throws Exception {
-		Scanner.Kind op = exprUnary.op();
-
-		if (isKind(op, Scanner.Kind.PLUS, Scanner.Kind.MINUS)) {
-			exprUnary.e().visit(this, Type.Int);
-			if (isKind(op, Scanner.Kind.MINUS)) {
-				mv.visitInsn(INEG);
-			}
-		}
+		return generate(exprUnary.e(), (Runnable) () -> unaryOperator(exprUnary.op()));
+	}
 
-		if (isKind(op, Scanner.Kind.EXCL)) {
-			exprUnary.e().visit(this, null);
+	/**
+	 * Generates the code of the operator op, whose operand is on the stack.
+	 */
+	private void unaryOperator(Scanner.Kind op) {
+		if (isKind(op, Scanner.Kind.MINUS)) {
+			mv.visitInsn(INEG);
+		} else if (isKind(op, Scanner.Kind.EXCL)) {
 			addBooleanJumpLogic(IFEQ);
 		}
-
-		return null;
 	}
 
 	@Override
 	public Object visitExprVar(ExprVar exprVar, Object arg) throws Exception {
-		String name = exprVar.name();
-		switch (exprVar.type()) {
+		variable(exprVar.name(), exprVar.type());
+		return null;
+	}
+
+	private void variable(String name, Type type) {
+		switch (type) {
 			case Int -> {
 				if (name.equals("X")) {
-					mv.visitVarInsn(ILOAD, 1);
+					mv.visitVarInsn(ILOAD, xSlot);
 				} else if (name.equals("Y")) {
-					mv.visitVarInsn(ILOAD, 2);
+					mv.visitVarInsn(ILOAD, ySlot);
 				} else {
-					mv.visitFieldInsn(GETSTATIC, className, name, INT_DESC);
+					loadVariable(name);
 				}
 			}
 
-			case String -> mv.visitFieldInsn(GETSTATIC, className, name, STRING_DESC);
-			case Image -> mv.visitFieldInsn(GETSTATIC, className, name, PLPImage.desc);
+			case String, Image, Boolean -> loadVariable(name);
 		}
-
-		return null;
 	}
 	
 	
 	@Override
 	public Object visitProgram(Program program, Object arg) throws Exception {
+		if (foldConstants) {
+			program = new ConstantFolding().rewrite(program);
+		}
+		if (eliminateDeadCode || lazyExecution) {
+			program = new DeadCodeElimination(lazyExecution).rewrite(program);
+		}
+		if (hoistLoopInvariants) {
+			program = new LoopInvariantCodeMotion().rewrite(program);
+		}
+		dependences = new LoopDependenceAnalysis(program);
+		Label mainStart = startMain();
+
+		// visit children to add instructions to method
+		List<ASTNode> nodes = program.decOrStatement();
+		List<LoopFusion.Step> steps;
+		if (fuseLoops) {
+			steps = LoopFusion.schedule(nodes, dependences, pipelineRows && !parallelLoops);
+		} else {
+			steps = new ArrayList<>();
+			for (ASTNode node : nodes) {
+				steps.add(node instanceof StatementLoop ? new LoopFusion.Step(null, List.of((StatementLoop) node), null)
+						: new LoopFusion.Step(node, null, null));
+			}
+		}
+		if (outlineMethods) {
+			emitOutlined(steps);
+		} else {
+			for (LoopFusion.Step step : steps) {
+				emitStep(step);
+			}
+		}
+		return finishMain(mainStart);
+	}
+
+	/**
+	 * Generates the code of the program of ast, which has been type checked by TypeCheckVisitor.check(FlatAST),
+	 * walking its nodes instead of the objects of an AST.  The rewrites of the program, loop fusion and
+	 * outlining work on AST objects, so foldConstants, eliminateDeadCode, lazyExecution, hoistLoopInvariants,
+	 * fuseLoops and outlineMethods must be off, and the code is the code visitProgram generates with them off.
+	 * Pixel loops are generated from their objects, built by FlatAST.toStatementLoop, and their
+	 * LoopDependenceAnalysis is computed from the nodes.
+	 */
+	public byte[] compile(FlatAST ast) throws Exception {
+		if (foldConstants || eliminateDeadCode || lazyExecution || hoistLoopInvariants || fuseLoops
+				|| outlineMethods) {
+			throw new IllegalStateException("compile(FlatAST) applies none of foldConstants, eliminateDeadCode, "
+					+ "lazyExecution, hoistLoopInvariants, fuseLoops and outlineMethods: " + options());
+		}
+		StatementLoop[] loops = new StatementLoop[ast.itemCount()];
+		for (int i = 0; i < ast.itemCount(); i++) {
+			if (ast.kind(ast.item(i)) == FlatAST.STATEMENT_LOOP) {
+				loops[i] = ast.toStatementLoop(ast.item(i));
+			}
+		}
+		dependences = new LoopDependenceAnalysis(ast, loops);
+		Label mainStart = startMain();
+
+		for (int i = 0; i < ast.itemCount(); i++) {
+			int node = ast.item(i);
+			String name = ast.name(node);
+			CodeEmitter e0 = emitter(ast, ast.child(node, 0));
+			CodeEmitter e1 = emitter(ast, ast.child(node, 1));
+			switch (ast.kind(node)) {
+				case FlatAST.DEC_IMAGE -> decImage(name, ast.op(node), e0, e1, emitter(ast, ast.child(node, 2)),
+						ast.line(node), ast.posInLine(node));
+				case FlatAST.DEC_VAR -> decVar(name, ast.type(node), e0);
+				case FlatAST.STATEMENT_ASSIGN -> statementAssign(name, ast.type(node), e0, ast.line(node),
+						ast.posInLine(node));
+				case FlatAST.STATEMENT_IMAGE_IN -> statementImageIn(name, e0);
+				case FlatAST.STATEMENT_LOOP -> emitLoopGroup(List.of(loops[i]), null);
+				case FlatAST.STATEMENT_OUT_FILE -> statementOutFile(name, e0);
+				case FlatAST.STATEMENT_OUT_SCREEN -> statementOutScreen(name, ast.type(node), e0, e1);
+			}
+		}
+		return finishMain(mainStart);
+	}
+
+	/**
+	 * Returns the emitter of the code of the expression node of ast, or null if node is NONE.
+	 */
+	private CodeEmitter emitter(FlatAST ast, int node) {
+		return node == FlatAST.NONE ? null : () -> generate(ast, node);
+	}
+
+	/**
+	 * Generates the code of the expression root of ast, outside of pixel loops.  The nodes are walked with a
+	 * stack of ints instead of recursive calls: an entry is a node and the number of its children whose code
+	 * has been generated, which tells the code to generate before its next child or after its last one.
+	 */
+	private void generate(FlatAST ast, int root) {
+		int[] stack = new int[16];
+		int top = 0;
+		stack[top++] = root << 2;
+		// The false and end labels of the conditional expressions being generated
+		ArrayDeque<Label> labels = new ArrayDeque<>();
+		while (top > 0) {
+			int entry = stack[--top];
+			int node = entry >> 2;
+			int done = entry & 3;
+			switch (ast.kind(node)) {
+				case FlatAST.EXPR_ARG -> {
+					if (done == 0) {
+						loadArgs();
+					} else {
+						argument(ast.type(node));
+					}
+				}
+				case FlatAST.EXPR_BINARY -> {
+					if (done == 2) {
+						binaryOperator(ast.op(node), ast.type(ast.child(node, 0)));
+					}
+				}
+				case FlatAST.EXPR_CONDITIONAL -> {
+					if (done == 0) {
+						labels.push(new Label());
+						labels.push(new Label());
+					} else if (done == 1) {
+						mv.visitJumpInsn(IFEQ, labels.peek());
+					} else if (done == 2) {
+						Label falseLabel = labels.pop();
+						mv.visitJumpInsn(GOTO, labels.peek());
+						mv.visitLabel(falseLabel);
+					} else {
+						mv.visitLabel(labels.pop());
+					}
+				}
+				case FlatAST.EXPR_CONST, FlatAST.EXPR_INT_LIT -> mv.visitLdcInsn(ast.value(node));
+				case FlatAST.EXPR_HASH -> {
+					if (done == 1) {
+						attribute(ast.type(ast.child(node, 0)), ast.name(node), ast.line(node), ast.posInLine(node));
+					}
+				}
+				case FlatAST.EXPR_PIXEL_CONSTRUCTOR -> {
+					if (done == 3) {
+						mv.visitMethodInsn(INVOKESTATIC, PixelOps.className, "makePixel", PixelOps.makePixelSig, false);
+					}
+				}
+				case FlatAST.EXPR_PIXEL_SELECTOR -> {
+					if (done == 3) {
+						mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "selectPixel", PLPImage.selectPixelSig,
+								false);
+					}
+				}
+				case FlatAST.EXPR_STRING_LIT -> mv.visitLdcInsn(ast.name(node));
+				case FlatAST.EXPR_UNARY -> {
+					if (done == 1) {
+						unaryOperator(ast.op(node));
+					}
+				}
+				case FlatAST.EXPR_VAR -> variable(ast.name(node), ast.type(node));
+			}
+			int child = done < FlatAST.CHILDREN ? ast.child(node, done) : FlatAST.NONE;
+			if (child != FlatAST.NONE) {
+				if (top + 2 > stack.length) {
+					stack = Arrays.copyOf(stack, stack.length * 2);
+				}
+				stack[top++] = entry + 1;
+				stack[top++] = child << 2;
+			}
+		}
+	}
+
+	/**
+	 * Starts the class and its main method, or run method for instance programs, and returns the label of the
+	 * start of the method.
+	 */
+	private Label startMain() {
 		cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
 //		cw = new ClassWriter(0); //If the call to methodVisitor.visitMaxs crashes, it
 		// is
@@ -336,22 +850,42 @@ public class CodeGenVisitorComplete implements ASTVisitor, Opcodes {
 		// generated.
 
 		// String sourceFileName = className; //TODO Temporary solution, FIX THIS
-		int version = -65478;
-		cw.visit(version, ACC_PUBLIC | ACC_SUPER, className, null, "java/lang/Object", null);
+		cw.visit(CLASS_VERSION, ACC_PUBLIC | ACC_SUPER, className, null, "java/lang/Object", null);
 		cw.visitSource(null, null);
-		// create main method
-		mv = cw.visitMethod(ACC_PUBLIC + ACC_STATIC, "main", "([Ljava/lang/String;)V", null, new String[] { "java/lang/Exception" });
+		if (instancePrograms) {
+			emitInstanceMembers();
+			// create run method, which holds the code of main
+			mv = cw.visitMethod(ACC_PUBLIC, "run", RUN_SIG, null, new String[] { "java/lang/Exception" });
+		} else {
+			// create main method
+			mv = cw.visitMethod(ACC_PUBLIC + ACC_STATIC, "main", "([Ljava/lang/String;)V", null, new String[] { "java/lang/Exception" });
+		}
 		// initialize
 		mv.visitCode();
 		// insert label before first instruction
 		Label mainStart = new Label();
 		mv.visitLabel(mainStart);
-
-		// visit children to add instructions to method
-		List<ASTNode> nodes = program.decOrStatement();
-		for (ASTNode node : nodes) {
-			node.visit(this, null);
+		if (instancePrograms) {
+			// this.#args = args; this.#context = context
+			mv.visitVarInsn(ALOAD, ARGS_SLOT);
+			mv.visitVarInsn(ALOAD, RUN_ARGS_SLOT);
+			mv.visitFieldInsn(PUTFIELD, className, ARGS_FIELD, "[Ljava/lang/String;");
+			mv.visitVarInsn(ALOAD, ARGS_SLOT);
+			mv.visitVarInsn(ALOAD, RUN_CONTEXT_SLOT);
+			mv.visitFieldInsn(PUTFIELD, className, CONTEXT_FIELD, ExecutionContext.desc);
+			xSlot = RUN_X_SLOT;
+			ySlot = RUN_Y_SLOT;
+			widthSlot = RUN_WIDTH_SLOT;
+			heightSlot = RUN_HEIGHT_SLOT;
+			nextLocalSlot = RUN_FIRST_FREE_SLOT;
 		}
+		return mainStart;
+	}
+
+	/**
+	 * Ends the method started by startMain and the class, and returns the bytecode of the class.
+	 */
+	private byte[] finishMain(Label mainStart) {
 		// add  required (by the JVM) return statement to main
 		mv.visitInsn(RETURN);
 
@@ -359,11 +893,20 @@ public class CodeGenVisitorComplete implements ASTVisitor, Opcodes {
 		Label mainEnd = new Label();
 		mv.visitLabel(mainEnd);
 		// handles parameters and local variables of main. The only local var is args
-		mv.visitLocalVariable("args", "[Ljava/lang/String;", null, mainStart, mainEnd, 0);
-		mv.visitLocalVariable("X", INT_DESC, null, mainStart, mainEnd, 1);
-		mv.visitLocalVariable("Y", INT_DESC, null, mainStart, mainEnd, 2);
-		mv.visitLocalVariable("width", INT_DESC, null, mainStart, mainEnd, 3);
-		mv.visitLocalVariable("height", INT_DESC, null, mainStart, mainEnd, 4);
+		if (instancePrograms) {
+			mv.visitLocalVariable("this", argsDesc(), null, mainStart, mainEnd, ARGS_SLOT);
+			mv.visitLocalVariable("args", "[Ljava/lang/String;", null, mainStart, mainEnd, RUN_ARGS_SLOT);
+			mv.visitLocalVariable("context", ExecutionContext.desc, null, mainStart, mainEnd, RUN_CONTEXT_SLOT);
+		} else {
+			mv.visitLocalVariable("args", "[Ljava/lang/String;", null, mainStart, mainEnd, ARGS_SLOT);
+		}
+		mv.visitLocalVariable("X", INT_DESC, null, mainStart, mainEnd, xSlot);
+		mv.visitLocalVariable("Y", INT_DESC, null, mainStart, mainEnd, ySlot);
+		mv.visitLocalVariable("width", INT_DESC, null, mainStart, mainEnd, widthSlot);
+		mv.visitLocalVariable("height", INT_DESC, null, mainStart, mainEnd, heightSlot);
+		for (LocalVariable local : methodLocals) {
+			mv.visitLocalVariable(local.name(), local.desc(), null, local.start(), mainEnd, local.slot());
+		}
 
 		// Sets max stack size and number of local vars.
 		// Because we use ClassWriter.COMPUTE_FRAMES as a parameter in the constructor,
@@ -384,163 +927,789 @@ public class CodeGenVisitorComplete implements ASTVisitor, Opcodes {
 		return cw.toByteArray();
 	}
 
+	/**
+	 * Generates the fields holding the arguments of run, a public constructor without parameters, and a main
+	 * method running a new instance with ExecutionContext.global.
+	 */
+	private void emitInstanceMembers() {
+		cw.visitField(ACC_PRIVATE, ARGS_FIELD, "[Ljava/lang/String;", null, null).visitEnd();
+		cw.visitField(ACC_PRIVATE, CONTEXT_FIELD, ExecutionContext.desc, null, null).visitEnd();
+
+		mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		// new className().run(args, ExecutionContext.global)
+		mv = cw.visitMethod(ACC_PUBLIC + ACC_STATIC, "main", "([Ljava/lang/String;)V", null, new String[] { "java/lang/Exception" });
+		mv.visitCode();
+		mv.visitTypeInsn(NEW, className);
+		mv.visitInsn(DUP);
+		mv.visitMethodInsn(INVOKESPECIAL, className, "<init>", "()V", false);
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitFieldInsn(GETSTATIC, ExecutionContext.className, "global", ExecutionContext.desc);
+		mv.visitMethodInsn(INVOKEVIRTUAL, className, "run", RUN_SIG, false);
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/**
+	 * Generates a class whose public static method run(String[] args, Object[] values) runs the given pixel loop of
+	 * program, and returns its bytecode.  values holds the values of the variables used by the loop, in the order
+	 * of LoopDependenceAnalysis.variables(loop) without X and Y, Int and Boolean values being boxed.  Used by
+	 * Interpreter to compile the loops worth compiling.
+	 */
+	public byte[] compileLoop(Program program, StatementLoop loop) throws Exception {
+		dependences = new LoopDependenceAnalysis(program);
+		Map<String, Type> declaredTypes = new HashMap<>();
+		for (ASTNode node : program.decOrStatement()) {
+			if (node instanceof DecImage) {
+				declaredTypes.put(((DecImage) node).name(), Type.Image);
+			} else if (node instanceof DecVar) {
+				declaredTypes.put(((DecVar) node).name(), ((DecVar) node).type());
+			}
+		}
+		cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+		cw.visit(CLASS_VERSION, ACC_PUBLIC | ACC_SUPER, className, null, "java/lang/Object", null);
+		mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, LOOP_METHOD, LOOP_METHOD_SIG, null,
+				new String[] { "java/lang/Exception" });
+		mv.visitCode();
+
+		int slot = LOOP_VALUES_SLOT + 1;
+		int index = 0;
+		for (String name : dependences.variables(loop)) {
+			if (name.equals("X") || name.equals("Y")) {
+				continue;
+			}
+			Type type = declaredTypes.get(name);
+			variableTypes.put(name, type);
+			variableSlots.put(name, slot++);
+
+			// name = values[index], unboxed
+			mv.visitVarInsn(ALOAD, LOOP_VALUES_SLOT);
+			mv.visitLdcInsn(index++);
+			mv.visitInsn(AALOAD);
+			switch (type) {
+				case Int -> {
+					mv.visitTypeInsn(CHECKCAST, INTEGER_CLASS_NAME);
+					mv.visitMethodInsn(INVOKEVIRTUAL, INTEGER_CLASS_NAME, "intValue", "()I", false);
+				}
+				case Boolean -> {
+					mv.visitTypeInsn(CHECKCAST, "java/lang/Boolean");
+					mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z", false);
+				}
+				case String -> mv.visitTypeInsn(CHECKCAST, "java/lang/String");
+				default -> mv.visitTypeInsn(CHECKCAST, PLPImage.className);
+			}
+			storeVariable(name);
+		}
+		xSlot = slot++;
+		ySlot = slot++;
+		widthSlot = slot++;
+		heightSlot = slot++;
+		nextLocalSlot = slot;
+
+		emitLoopGroup(List.of(loop), null);
+
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	private void emitStep(LoopFusion.Step step) throws Exception {
+		if (step.loops() != null) {
+			emitLoopGroup(step.loops(), step.delays());
+		} else {
+			step.node().visit(this, null);
+		}
+	}
+
+	/**
+	 * Generates main as calls to the methods running the given steps, see outlineMethods.
+	 */
+	private void emitOutlined(List<LoopFusion.Step> steps) throws Exception {
+		// The steps of each method: a group of pixel loops, or consecutive other steps
+		List<List<LoopFusion.Step>> methods = new ArrayList<>();
+		List<LoopFusion.Step> statements = null;
+		int statementCount = 0;
+		for (LoopFusion.Step step : steps) {
+			if (step.loops() != null) {
+				methods.add(List.of(step));
+				statements = null;
+			} else {
+				if (statements == null || statements.size() == STATEMENTS_PER_METHOD) {
+					statements = new ArrayList<>();
+					methods.add(statements);
+				}
+				statements.add(step);
+				statementCount++;
+			}
+		}
+		boolean outlineStatements = statementCount > STATEMENTS_PER_METHOD;
+
+		if (outlineStatements) {
+			// Variables used by several methods are fields, as main no longer holds them
+			Map<String, Integer> firstMethod = new HashMap<>();
+			for (int i = 0; i < methods.size(); i++) {
+				for (LoopFusion.Step step : methods.get(i)) {
+					for (String name : variables(step)) {
+						Integer first = firstMethod.putIfAbsent(name, i);
+						if (first != null && first != i) {
+							fieldVariables.add(name);
+						}
+					}
+				}
+			}
+		}
+
+		for (List<LoopFusion.Step> method : methods) {
+			if (method.get(0).loops() != null) {
+				emitLoopMethod(method.get(0));
+			} else if (outlineStatements) {
+				String name = "statements$" + methodCount++;
+				String sig = "(" + argsDesc() + ")V";
+				emitMethod(name, sig, () -> {
+					xSlot = MAIN_X_SLOT;
+					ySlot = MAIN_Y_SLOT;
+					widthSlot = MAIN_WIDTH_SLOT;
+					heightSlot = MAIN_HEIGHT_SLOT;
+					nextLocalSlot = MAIN_FIRST_FREE_SLOT;
+					for (LoopFusion.Step step : method) {
+						emitStep(step);
+					}
+				});
+				mv.visitVarInsn(ALOAD, ARGS_SLOT);
+				mv.visitMethodInsn(INVOKESTATIC, className, name, sig, false);
+			} else {
+				for (LoopFusion.Step step : method) {
+					emitStep(step);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Generates a static method with parameters args (see argsDesc) and the local variables used by the loops of
+	 * step, that runs them, and a call to it.
+	 */
+	private void emitLoopMethod(LoopFusion.Step step) throws Exception {
+		List<String> captured = capturedVariables(step.loops());
+		StringBuilder sig = new StringBuilder("(" + argsDesc());
+		for (String variable : captured) {
+			sig.append(descriptor(variableTypes.get(variable)));
+		}
+		sig.append(")V");
+		String name = "loop$" + methodCount++;
+		emitMethod(name, sig.toString(), () -> {
+			int slot = ARGS_SLOT + 1;
+			for (String variable : captured) {
+				variableSlots.put(variable, slot++);
+			}
+			xSlot = slot++;
+			ySlot = slot++;
+			widthSlot = slot++;
+			heightSlot = slot++;
+			nextLocalSlot = slot;
+			emitLoopGroup(step.loops(), step.delays());
+		});
+
+		// name(args, captured...)
+		mv.visitVarInsn(ALOAD, ARGS_SLOT);
+		for (String variable : captured) {
+			loadVariable(variable);
+		}
+		mv.visitMethodInsn(INVOKESTATIC, className, name, sig.toString(), false);
+	}
+
+	/**
+	 * Returns the local variables of the method mv used by the given loops.
+	 */
+	private List<String> capturedVariables(List<StatementLoop> loops) throws Exception {
+		List<String> captured = new ArrayList<>();
+		for (StatementLoop statementLoop : loops) {
+			for (String name : dependences.variables(statementLoop)) {
+				if (variableSlots.containsKey(name) && !captured.contains(name)) {
+					captured.add(name);
+				}
+			}
+		}
+		return captured;
+	}
+
+	/**
+	 * Returns the names of the variables declared or used by the given step.
+	 */
+	private Set<String> variables(LoopFusion.Step step) throws Exception {
+		Set<String> variables = new HashSet<>();
+		if (step.loops() != null) {
+			for (StatementLoop statementLoop : step.loops()) {
+				variables.addAll(dependences.variables(statementLoop));
+			}
+		} else if (step.node() instanceof DecVar) {
+			DecVar decVar = (DecVar) step.node();
+			variables.add(decVar.name());
+			variables.addAll(dependences.variables(decVar.expression()));
+		} else if (step.node() instanceof DecImage) {
+			DecImage decImage = (DecImage) step.node();
+			variables.add(decImage.name());
+			variables.addAll(dependences.variables(decImage.width()));
+			variables.addAll(dependences.variables(decImage.height()));
+			variables.addAll(dependences.variables(decImage.source()));
+		} else if (step.node() instanceof StatementAssign) {
+			StatementAssign statementAssign = (StatementAssign) step.node();
+			variables.add(statementAssign.name());
+			variables.addAll(dependences.variables(statementAssign.expression()));
+		} else if (step.node() instanceof StatementImageIn) {
+			StatementImageIn statementImageIn = (StatementImageIn) step.node();
+			variables.add(statementImageIn.name());
+			variables.addAll(dependences.variables(statementImageIn.source()));
+		} else if (step.node() instanceof StatementOutFile) {
+			StatementOutFile statementOutFile = (StatementOutFile) step.node();
+			variables.add(statementOutFile.name());
+			variables.addAll(dependences.variables(statementOutFile.filename()));
+		} else if (step.node() instanceof StatementOutScreen) {
+			StatementOutScreen statementOutScreen = (StatementOutScreen) step.node();
+			variables.add(statementOutScreen.name());
+			variables.addAll(dependences.variables(statementOutScreen.X()));
+			variables.addAll(dependences.variables(statementOutScreen.Y()));
+		}
+		return variables;
+	}
+
 	@Override
 	public Object visitStatementAssign(StatementAssign statementAssign, Object arg) throws Exception {
-		String name = statementAssign.name();
-		statementAssign.expression().visit(this, null);
-
-		switch (statementAssign.dec().type()) {
-			case Int ->
-					mv.visitFieldInsn(PUTSTATIC, className, name, INT_DESC);
-			case String ->
-					mv.visitFieldInsn(PUTSTATIC, className, name, STRING_DESC);
+		statementAssign(statementAssign.name(), statementAssign.dec().type(), emitter(statementAssign.expression()),
+				statementAssign.first().line(), statementAssign.first().posInLine());
+		return null;
+	}
+
+	private void statementAssign(String name, Type type, CodeEmitter expression, int line, int posInLine)
+			throws Exception {
+		expression.emit();
+
+		switch (type) {
+			case Int, String ->
+					storeVariable(name);
 			case Image -> {
 				// Load the LHS image
-				mv.visitFieldInsn(GETSTATIC, className, name, PLPImage.desc);
+				loadVariable(name);
 
 				// Load the RHS image
-				statementAssign.expression().visit(this, null);
+				expression.emit();
 
 				// Load line number
-				mv.visitLdcInsn(statementAssign.first().line());
+				mv.visitLdcInsn(line);
 
 				// Load pos in line
-				mv.visitLdcInsn(statementAssign.first().posInLine());
+				mv.visitLdcInsn(posInLine);
 
 				// Call the java method which will assign the image
 				mv.visitMethodInsn(INVOKESTATIC, PLPImageUtils.className, "assignImage", PLPImageUtils.assignImageSig, false);
 
-				// put the value of the static variable
-				// mv.visitFieldInsn(PUTSTATIC, className, name, PLPImage.desc);
+				// assignImage updates the LHS image, so the variable itself is unchanged
 			}
 
 		}
-		return null;
 	}
 
 	@Override
 	public Object visitStatementImageIn(StatementImageIn statementImageIn, Object arg) throws Exception {
+		statementImageIn(statementImageIn.name(), emitter(statementImageIn.source()));
+		return null;
+	}
 
+	private void statementImageIn(String name, CodeEmitter source) throws Exception {
 		// Load the image
-		mv.visitFieldInsn(GETSTATIC, className, statementImageIn.name(), PLPImage.desc);
+		loadVariable(name);
 
 		// Load the source
-		statementImageIn.source().visit(this, null);
+		source.emit();
 
 		// Call the java method which will copy the image
 		mv.visitMethodInsn(INVOKESTATIC, PLPImageUtils.className, "copyImage", PLPImageUtils.copyImageSig, false);
 
-		// put the value of the static variable
-		// mv.visitFieldInsn(PUTSTATIC, className, statementImageIn.name(), PLPImage.desc);
-
-		return null;
+		// copyImage updates the image, so the variable itself is unchanged
 	}
 
 	@Override
 	public Object visitStatementLoop(StatementLoop statementLoop, Object arg) throws Exception {
+		emitLoopGroup(List.of(statementLoop), null);
+		return null;
+	}
 
+	/**
+	 * Generates the code of consecutive pixel loops grouped by LoopFusion.  If the images written by the
+	 * loops, and the images they read at [X,Y], all have the same size, the loops run in a single traversal,
+	 * each pixel being written by all the loops in turn, or as a row pipeline if delays is not null.
+	 * Otherwise they run one after the other.
+	 */
+	private void emitLoopGroup(List<StatementLoop> loops, List<Integer> delays) throws Exception {
+		StatementLoop first = loops.get(0);
+		emitLoopPrologue(first, widthSlot, heightSlot);
+		if (loops.size() == 1) {
+			emitLoops(loops, null);
+			return;
+		}
+
+		Label separateLoops = new Label();
+		Label endLoops = new Label();
+
+		// Images read at [X,Y] that are not written by the group, or only by a later loop, must already have
+		// the size of the first image: checked before the prologues of the other loops allocate their images.
+		for (int i = 0; i < loops.size(); i++) {
+			for (LoopDependenceAnalysis.PixelRead read : dependences.reads(loops.get(i))) {
+				if (read.isAtXY() && !isWrittenBy(read.image(), loops.subList(0, i + 1))) {
+					loadVariable(read.image());
+					mv.visitVarInsn(ILOAD, widthSlot);
+					mv.visitVarInsn(ILOAD, heightSlot);
+					mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "hasSize", PLPImage.hasSizeSig, isInterface);
+					mv.visitJumpInsn(IFEQ, separateLoops);
+				}
+			}
+		}
+
+		int firstSizeSlot = nextLocalSlot;
+		for (int i = 1; i < loops.size(); i++) {
+			int loopWidthSlot = nextLocalSlot++;
+			int loopHeightSlot = nextLocalSlot++;
+			emitLoopPrologue(loops.get(i), loopWidthSlot, loopHeightSlot);
+		}
+		for (int i = 1; i < loops.size(); i++) {
+			mv.visitVarInsn(ILOAD, firstSizeSlot + 2 * (i - 1));
+			mv.visitVarInsn(ILOAD, widthSlot);
+			mv.visitJumpInsn(IF_ICMPNE, separateLoops);
+			mv.visitVarInsn(ILOAD, firstSizeSlot + 2 * (i - 1) + 1);
+			mv.visitVarInsn(ILOAD, heightSlot);
+			mv.visitJumpInsn(IF_ICMPNE, separateLoops);
+		}
+		emitLoops(loops, delays);
+		mv.visitJumpInsn(GOTO, endLoops);
+
+		// Each loop in turn, with the prologue of its original position
+		mv.visitLabel(separateLoops);
+		for (int i = 0; i < loops.size(); i++) {
+			if (i > 0) {
+				emitLoopPrologue(loops.get(i), widthSlot, heightSlot);
+			}
+			emitLoops(List.of(loops.get(i)), null);
+		}
+		mv.visitLabel(endLoops);
+		nextLocalSlot = firstSizeSlot;
+	}
+
+	/**
+	 * Generates code that allocates the image of the loop if needed, and stores its size in the given slots.
+	 */
+	private void emitLoopPrologue(StatementLoop statementLoop, int loopWidthSlot, int loopHeightSlot) {
 		// Ensure Image is allocated
-		mv.visitFieldInsn(GETSTATIC, className, statementLoop.name(), PLPImage.desc);
+		loadVariable(statementLoop.name());
 		mv.visitLdcInsn(statementLoop.first().line());
 		mv.visitLdcInsn(statementLoop.first().posInLine());
 		mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "ensureImageAllocated", PLPImage.ensureImageAllocatedSig, isInterface);
 
 		// Getting width of the image
-		mv.visitFieldInsn(GETSTATIC, className, statementLoop.name(), PLPImage.desc);
+		loadVariable(statementLoop.name());
 		mv.visitLdcInsn(statementLoop.first().line());
 		mv.visitLdcInsn(statementLoop.first().posInLine());
 		mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "getWidthThrows", PLPImage.getWidthThrowsSig, isInterface);
-		mv.visitVarInsn(ISTORE, 3);
+		mv.visitVarInsn(ISTORE, loopWidthSlot);
 
 		// Getting height of the image
-		mv.visitFieldInsn(GETSTATIC, className, statementLoop.name(), PLPImage.desc);
+		loadVariable(statementLoop.name());
 		mv.visitLdcInsn(statementLoop.first().line());
 		mv.visitLdcInsn(statementLoop.first().posInLine());
 		mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "getHeightThrows", PLPImage.getHeightThrowsSig, isInterface);
-		mv.visitVarInsn(ISTORE, 4);
-
-		// All labels
-		Label outerLoop = new Label();
-		Label endOuterForLoop = new Label();
-
-		Label innerLoop = new Label();
-		Label endInnerLoop = new Label();
-
-		{
-			// Initialization: int x = 0;
-			{
-				mv.visitInsn(ICONST_0);
-				mv.visitVarInsn(ISTORE, 1);
-			}
-			// Outer loop
-			mv.visitLabel(outerLoop);
-			{
-				// Load x
-				mv.visitVarInsn(ILOAD, 1);
-				// Load width
-				mv.visitVarInsn(ILOAD, 3);
-				// condition check
-				mv.visitJumpInsn(IF_ICMPGE, endOuterForLoop);
-				{
-					// Initialization: int y = 0;
-					{
-						mv.visitInsn(ICONST_0);
-						mv.visitVarInsn(ISTORE, 2);
-					}
-					// Inner loop
-					mv.visitLabel(innerLoop);
-					{
-						// Load y
-						mv.visitVarInsn(ILOAD, 2);
-						// Load height
-						mv.visitVarInsn(ILOAD, 4);
-						// condition check
-						mv.visitJumpInsn(IF_ICMPGE, endInnerLoop);
-						{
-							if (statementLoop.cond() == Expression.empty) {
-								executeLoopStatement(statementLoop.name(), statementLoop.e());
-							} else {
-								Label endStatement = new Label();
-								statementLoop.cond().visit(this, null);
-								mv.visitJumpInsn(IFEQ, endStatement);
-								executeLoopStatement(statementLoop.name(), statementLoop.e());
-								mv.visitLabel(endStatement);
-							}
-						}
-					}
+		mv.visitVarInsn(ISTORE, loopHeightSlot);
+	}
 
-					// Post loop: Increment y
-					mv.visitInsn(ICONST_1);
-					mv.visitVarInsn(ILOAD, 2);
-					mv.visitInsn(IADD);
-					mv.visitVarInsn(ISTORE, 2);
+	/**
+	 * Generates a single traversal running the given loops, or a row pipeline with the given row delays if delays
+	 * is not null.  The images of the loops have the size in widthSlot and heightSlot.
+	 */
+	private void emitLoops(List<StatementLoop> loops, List<Integer> delays) throws Exception {
+		if (parallelLoops && delays == null && isOrderIndependent(loops)) {
+			// Local variables used by the loops are passed to the row band method
+			List<String> captured = capturedVariables(loops);
+			StringBuilder params = new StringBuilder(argsDesc() + "II");
+			for (String name : captured) {
+				params.append(descriptor(variableTypes.get(name)));
+			}
+			String rowBandMethod = emitRowBandMethod(loops, captured, "(" + params + "II)V");
+
+			// ParallelLoops.forEachRowBand(width, height, (yStart, yEnd) -> rowBandMethod(args, width, height, captured..., yStart, yEnd))
+			mv.visitVarInsn(ILOAD, widthSlot);
+			mv.visitVarInsn(ILOAD, heightSlot);
+			mv.visitVarInsn(ALOAD, ARGS_SLOT);
+			mv.visitVarInsn(ILOAD, widthSlot);
+			mv.visitVarInsn(ILOAD, heightSlot);
+			for (String name : captured) {
+				loadVariable(name);
+			}
+			Handle lambdaMetafactory = new Handle(H_INVOKESTATIC, "java/lang/invoke/LambdaMetafactory", "metafactory",
+					"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+					+ "Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)"
+					+ "Ljava/lang/invoke/CallSite;", false);
+			org.objectweb.asm.Type runSig = org.objectweb.asm.Type.getMethodType("(II)V");
+			mv.visitInvokeDynamicInsn("run", "(" + params + ")" + ParallelLoops.RowBandDesc, lambdaMetafactory,
+					runSig, new Handle(H_INVOKESTATIC, className, rowBandMethod, "(" + params + "II)V", false), runSig);
+			mv.visitMethodInsn(INVOKESTATIC, ParallelLoops.className, "forEachRowBand", ParallelLoops.forEachRowBandSig, false);
+		} else {
+			emitLoopRows(loops, delays, -1, heightSlot);
+		}
+	}
+
+	/**
+	 * Generates a static method with parameters args, width, height, the captured local variables, yStart and
+	 * yEnd, that runs the given loops for the rows yStart (inclusive) to yEnd (exclusive) of their images, and
+	 * returns its name.
+	 */
+	private String emitRowBandMethod(List<StatementLoop> loops, List<String> captured, String sig) throws Exception {
+		String name = "band$" + methodCount++;
+		emitMethod(name, sig, () -> {
+			int slot = BAND_FIRST_CAPTURED_SLOT;
+			for (String variable : captured) {
+				variableSlots.put(variable, slot++);
+			}
+			int yStartSlot = slot++;
+			int yEndSlot = slot++;
+			xSlot = slot++;
+			ySlot = slot++;
+			widthSlot = BAND_WIDTH_SLOT;
+			heightSlot = BAND_HEIGHT_SLOT;
+			nextLocalSlot = slot;
+
+			emitLoopRows(loops, null, yStartSlot, yEndSlot);
+		});
+		return name;
+	}
+
+	/**
+	 * Generates the private static method name with descriptor sig, whose code is generated by body, then
+	 * restores the state of the method mv.  body starts with no local variable slots, and sets them up.
+	 */
+	private void emitMethod(String name, String sig, CodeEmitter body) throws Exception {
+		MethodVisitor callerMv = mv;
+		int callerXSlot = xSlot, callerYSlot = ySlot, callerWidthSlot = widthSlot, callerHeightSlot = heightSlot;
+		int callerNextLocalSlot = nextLocalSlot;
+		Map<String, Integer> callerVariableSlots = variableSlots;
+		List<LocalVariable> callerMethodLocals = methodLocals;
+
+		mv = cw.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, name, sig, null,
+				new String[] { "java/lang/Exception" });
+		mv.visitCode();
+		variableSlots = new HashMap<>();
+		methodLocals = new ArrayList<>();
+
+		body.emit();
+
+		mv.visitInsn(RETURN);
+		Label end = new Label();
+		mv.visitLabel(end);
+		for (LocalVariable local : methodLocals) {
+			mv.visitLocalVariable(local.name(), local.desc(), null, local.start(), end, local.slot());
+		}
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		mv = callerMv;
+		xSlot = callerXSlot;
+		ySlot = callerYSlot;
+		widthSlot = callerWidthSlot;
+		heightSlot = callerHeightSlot;
+		nextLocalSlot = callerNextLocalSlot;
+		variableSlots = callerVariableSlots;
+		methodLocals = callerMethodLocals;
+	}
 
-					// Again run the loop
-					mv.visitJumpInsn(GOTO, innerLoop);
+	/**
+	 * Generates the pixel loops for the rows from the int local variable yStartSlot (or 0 if yStartSlot is -1)
+	 * to the local variable yEndSlot.
+	 */
+	private void emitLoopRows(List<StatementLoop> loops, List<Integer> delays, int yStartSlot, int yEndSlot)
+			throws Exception {
+		if (directPixelAccess) {
+			// The direct access version runs only if every image it reads or writes directly
+			// is a standard TYPE_INT_ARGB image.  Otherwise the getRGB/setRGB version runs.
+			Label slowPath = new Label();
+			Label endLoop = new Label();
+			int firstLoopSlot = nextLocalSlot;
+			pixelArrays = loadPixelArrays(loops, slowPath);
+			pixelIndexSlot = nextLocalSlot++;
+			emitLoopTraversal(loops, delays, yStartSlot, yEndSlot);
+			pixelArrays = null;
+			nextLocalSlot = firstLoopSlot;
+			mv.visitJumpInsn(GOTO, endLoop);
+
+			mv.visitLabel(slowPath);
+			emitLoopTraversal(loops, delays, yStartSlot, yEndSlot);
+			mv.visitLabel(endLoop);
+		} else {
+			emitLoopTraversal(loops, delays, yStartSlot, yEndSlot);
+		}
+	}
 
+	private void emitLoopTraversal(List<StatementLoop> loops, List<Integer> delays, int yStartSlot, int yEndSlot)
+			throws Exception {
+		if (delays != null) {
+			emitRowPipeline(loops, delays);
+			return;
+		}
+		CodeEmitter body = () -> emitPixel(loops);
+
+		// Loops that read their own image at other pixels keep the original X-outer order,
+		// as the values they read depend on which pixels have already been written.
+		if (!rowMajorLoops || !isOrderIndependent(loops)) {
+			emitCountedLoop(xSlot, -1, widthSlot, 1, () ->
+					emitCountedLoop(ySlot, yStartSlot, yEndSlot, 1, body));
+		} else if (loopTileSize == 0) {
+			emitCountedLoop(ySlot, yStartSlot, yEndSlot, 1, () ->
+					emitCountedLoop(xSlot, -1, widthSlot, 1, body));
+		} else {
+			// Tiles are visited in raster order, and so are the pixels inside each tile.
+			int tileYSlot = nextLocalSlot++;
+			int tileYEndSlot = nextLocalSlot++;
+			int tileXSlot = nextLocalSlot++;
+			int tileXEndSlot = nextLocalSlot++;
+			emitTileLoop(tileYSlot, yStartSlot, yEndSlot, tileYEndSlot, () ->
+				emitTileLoop(tileXSlot, -1, widthSlot, tileXEndSlot, () ->
+					emitCountedLoop(ySlot, tileYSlot, tileYEndSlot, 1, () ->
+							emitCountedLoop(xSlot, tileXSlot, tileXEndSlot, 1, body))));
+			nextLocalSlot -= 4;
+		}
+	}
+
+	/**
+	 * Generates a row pipeline: at step s, loop i computes row s - delays[i] of its image if there is such a row.
+	 */
+	private void emitRowPipeline(List<StatementLoop> loops, List<Integer> delays) throws Exception {
+		int maxDelay = Collections.max(delays);
+		int stepSlot = nextLocalSlot++;
+		int stepEndSlot = nextLocalSlot++;
+		mv.visitVarInsn(ILOAD, heightSlot);
+		mv.visitLdcInsn(maxDelay);
+		mv.visitInsn(IADD);
+		mv.visitVarInsn(ISTORE, stepEndSlot);
+		emitCountedLoop(stepSlot, -1, stepEndSlot, 1, () -> {
+			for (int i = 0; i < loops.size(); i++) {
+				StatementLoop statementLoop = loops.get(i);
+				int delay = delays.get(i);
+				Label endRow = new Label();
+
+				// Y = step - delay, skipped if not in 0 .. height - 1
+				mv.visitVarInsn(ILOAD, stepSlot);
+				mv.visitLdcInsn(delay);
+				mv.visitInsn(ISUB);
+				mv.visitVarInsn(ISTORE, ySlot);
+				if (delay > 0) {
+					mv.visitVarInsn(ILOAD, ySlot);
+					mv.visitJumpInsn(IFLT, endRow);
 				}
-				mv.visitLabel(endInnerLoop);
+				if (delay < maxDelay) {
+					mv.visitVarInsn(ILOAD, ySlot);
+					mv.visitVarInsn(ILOAD, heightSlot);
+					mv.visitJumpInsn(IF_ICMPGE, endRow);
+				}
+				emitCountedLoop(xSlot, -1, widthSlot, 1, () -> emitPixel(List.of(statementLoop)));
+				mv.visitLabel(endRow);
 			}
+		});
+		nextLocalSlot -= 2;
+	}
 
-
-			// Post loop: Increment x
-			mv.visitInsn(ICONST_1);
-			mv.visitVarInsn(ILOAD, 1);
+	/**
+	 * Generates the code computing pixel [X,Y] of the images of the given loops, in order.
+	 */
+	private void emitPixel(List<StatementLoop> loops) throws Exception {
+		if (pixelArrays != null) {
+			// pixelIndex = Y * width + X
+			mv.visitVarInsn(ILOAD, ySlot);
+			mv.visitVarInsn(ILOAD, widthSlot);
+			mv.visitInsn(IMUL);
+			mv.visitVarInsn(ILOAD, xSlot);
 			mv.visitInsn(IADD);
-			mv.visitVarInsn(ISTORE, 1);
+			mv.visitVarInsn(ISTORE, pixelIndexSlot);
+		}
+		for (StatementLoop statementLoop : loops) {
+			if (statementLoop.cond() == Expression.empty) {
+				executeLoopStatement(statementLoop.name(), statementLoop.e());
+			} else {
+				Label endStatement = new Label();
+				statementLoop.cond().visit(this, null);
+				mv.visitJumpInsn(IFEQ, endStatement);
+				executeLoopStatement(statementLoop.name(), statementLoop.e());
+				mv.visitLabel(endStatement);
+			}
+		}
+	}
 
-			// Again run the loop
-			mv.visitJumpInsn(GOTO, outerLoop);
+	private boolean isOrderIndependent(List<StatementLoop> loops) throws Exception {
+		for (StatementLoop statementLoop : loops) {
+			if (!dependences.isOrderIndependent(statementLoop)) {
+				return false;
+			}
 		}
-		mv.visitLabel(endOuterForLoop);
+		return true;
+	}
 
-		return null;
+	private boolean isWrittenBy(String image, List<StatementLoop> loops) {
+		for (StatementLoop statementLoop : loops) {
+			if (dependences.mayAlias(image, statementLoop.name())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Generates code that loads the pixel arrays of the images written by the loops and of the image variables
+	 * they read with a pixel selector, and jumps to slowPath if any of them is not a standard TYPE_INT_ARGB image,
+	 * or if an image read at [X,Y] has a different size than the images written.
+	 */
+	private Map<String, PixelArray> loadPixelArrays(List<StatementLoop> loops, Label slowPath) throws Exception {
+		Map<String, PixelArray> arrays = new LinkedHashMap<>();
+		for (StatementLoop statementLoop : loops) {
+			if (!arrays.containsKey(statementLoop.name())) {
+				arrays.put(statementLoop.name(), new PixelArray(nextLocalSlot++, widthSlot, heightSlot));
+			}
+		}
+		for (StatementLoop statementLoop : loops) {
+			for (LoopDependenceAnalysis.PixelRead read : dependences.reads(statementLoop)) {
+				if (read.x() != null && !arrays.containsKey(read.image())) {
+					arrays.put(read.image(), new PixelArray(nextLocalSlot++, nextLocalSlot++, nextLocalSlot++));
+				}
+			}
+		}
+
+		for (Map.Entry<String, PixelArray> entry : arrays.entrySet()) {
+			String name = entry.getKey();
+			PixelArray pixels = entry.getValue();
+
+			// pixels = image.pixelData(), or the slow path if null
+			loadVariable(name);
+			mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "pixelData", PLPImage.pixelDataSig, isInterface);
+			mv.visitInsn(DUP);
+			mv.visitVarInsn(ASTORE, pixels.data());
+			mv.visitJumpInsn(IFNULL, slowPath);
+
+			if (pixels.width() != widthSlot) {
+				loadVariable(name);
+				mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "getWidth", PLPImage.getWidthSig, isInterface);
+				mv.visitVarInsn(ISTORE, pixels.width());
+				loadVariable(name);
+				mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "getHeight", PLPImage.getHeightSig, isInterface);
+				mv.visitVarInsn(ISTORE, pixels.height());
+			}
+		}
+
+		// Images read at [X,Y] are indexed with the width of the images written, so they must have the same size.
+		for (StatementLoop statementLoop : loops) {
+			for (LoopDependenceAnalysis.PixelRead read : dependences.reads(statementLoop)) {
+				PixelArray pixels = arrays.get(read.image());
+				if (read.isAtXY() && pixels.width() != widthSlot) {
+					mv.visitVarInsn(ILOAD, pixels.width());
+					mv.visitVarInsn(ILOAD, widthSlot);
+					mv.visitJumpInsn(IF_ICMPNE, slowPath);
+					mv.visitVarInsn(ILOAD, pixels.height());
+					mv.visitVarInsn(ILOAD, heightSlot);
+					mv.visitJumpInsn(IF_ICMPNE, slowPath);
+				}
+			}
+		}
+		return arrays;
+	}
+
+	/**
+	 * Generates the loop
+	 *     for (index = start; index < limit; index += step) { body }
+	 * where start and limit are int local variables.  A start slot of -1 starts the loop at 0.  step is the
+	 * increment of an IINC, a signed 16-bit value.
+	 */
+	private void emitCountedLoop(int indexSlot, int startSlot, int limitSlot, int step, CodeEmitter body) throws Exception {
+		Label loop = new Label();
+		Label endLoop = new Label();
+
+		// Initialization: index = start;
+		if (startSlot < 0) {
+			mv.visitInsn(ICONST_0);
+		} else {
+			mv.visitVarInsn(ILOAD, startSlot);
+		}
+		mv.visitVarInsn(ISTORE, indexSlot);
+
+		mv.visitLabel(loop);
+		// condition check
+		mv.visitVarInsn(ILOAD, indexSlot);
+		mv.visitVarInsn(ILOAD, limitSlot);
+		mv.visitJumpInsn(IF_ICMPGE, endLoop);
+
+		body.emit();
+
+		// Post loop: increment index and run the loop again
+		mv.visitIincInsn(indexSlot, step);
+		mv.visitJumpInsn(GOTO, loop);
+		mv.visitLabel(endLoop);
+	}
+
+	/**
+	 * Generates the loop over the tiles
+	 *     for (tile = start; tile < limit; tile = tileEnd) {
+	 *         tileEnd = tile + Math.min(loopTileSize, limit - tile);
+	 *         body
+	 *     }
+	 * like emitCountedLoop.  tileEnd is at most limit, so neither it nor tile overflows.
+	 */
+	private void emitTileLoop(int tileSlot, int startSlot, int limitSlot, int tileEndSlot, CodeEmitter body)
+			throws Exception {
+		Label loop = new Label();
+		Label endLoop = new Label();
+
+		if (startSlot < 0) {
+			mv.visitInsn(ICONST_0);
+		} else {
+			mv.visitVarInsn(ILOAD, startSlot);
+		}
+		mv.visitVarInsn(ISTORE, tileSlot);
+
+		mv.visitLabel(loop);
+		mv.visitVarInsn(ILOAD, tileSlot);
+		mv.visitVarInsn(ILOAD, limitSlot);
+		mv.visitJumpInsn(IF_ICMPGE, endLoop);
+
+		mv.visitVarInsn(ILOAD, tileSlot);
+		mv.visitLdcInsn(loopTileSize);
+		mv.visitVarInsn(ILOAD, limitSlot);
+		mv.visitVarInsn(ILOAD, tileSlot);
+		mv.visitInsn(ISUB);
+		mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "min", "(II)I", false);
+		mv.visitInsn(IADD);
+		mv.visitVarInsn(ISTORE, tileEndSlot);
+
+		body.emit();
+
+		mv.visitVarInsn(ILOAD, tileEndSlot);
+		mv.visitVarInsn(ISTORE, tileSlot);
+		mv.visitJumpInsn(GOTO, loop);
+		mv.visitLabel(endLoop);
 	}
 
 	private void executeLoopStatement(String name, Expression e) throws Exception {
-		mv.visitFieldInsn(GETSTATIC, className, name, PLPImage.desc);
-		mv.visitVarInsn(ILOAD, 1);
-		mv.visitVarInsn(ILOAD, 2);
+		if (pixelArrays != null) {
+			// pixels[Y * width + X] = e
+			mv.visitVarInsn(ALOAD, pixelArrays.get(name).data());
+			mv.visitVarInsn(ILOAD, pixelIndexSlot);
+			e.visit(this, null);
+			mv.visitInsn(IASTORE);
+			return;
+		}
+		loadVariable(name);
+		mv.visitVarInsn(ILOAD, xSlot);
+		mv.visitVarInsn(ILOAD, ySlot);
 		e.visit(this, null);
 		mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "updatePixel", PLPImage.updatePixelSig, isInterface);
 	}
@@ -552,60 +1721,153 @@ public class CodeGenVisitorComplete implements ASTVisitor, Opcodes {
 
 	@Override
 	public Object visitStatementOutFile(StatementOutFile statementOutFile, Object arg) throws Exception {
+		statementOutFile(statementOutFile.name(), emitter(statementOutFile.filename()));
+		return null;
+	}
+
+	private void statementOutFile(String name, CodeEmitter filename) throws Exception {
+		loadOutputContext();
+
 		// Load the image
-		mv.visitFieldInsn(GETSTATIC, className, statementOutFile.name(), PLPImage.desc);
+		loadVariable(name);
 
 		// Load the file name
-		statementOutFile.filename().visit(this, null);
+		filename.emit();
 
 		// Call the LoggedIO.imageToFile method
-		mv.visitMethodInsn(INVOKESTATIC, LoggedIO.className, "imageToFile", LoggedIO.imageToFileSig, isInterface);
-
-		return null;
+		invokeOutput("imageToFile", LoggedIO.imageToFileSig);
 	}
 
 	@Override
 	public Object visitStatementOutScreen(StatementOutScreen statementOutScreen, Object arg) throws Exception {
-		String name = statementOutScreen.name();
+		statementOutScreen(statementOutScreen.name(), statementOutScreen.dec().type(),
+				emitter(statementOutScreen.X()), emitter(statementOutScreen.Y()));
+		return null;
+	}
 
-		Type type = statementOutScreen.dec().type();
+	private void statementOutScreen(String name, Type type, CodeEmitter x, CodeEmitter y) throws Exception {
+		loadOutputContext();
 		switch (type) {
 			case String -> {
-				mv.visitFieldInsn(GETSTATIC, className, name, STRING_DESC);
-				mv.visitMethodInsn(INVOKESTATIC, LoggedIO.className, "stringToScreen", LoggedIO.stringToScreenSig,
-						isInterface);
+				loadVariable(name);
+				invokeOutput("stringToScreen", LoggedIO.stringToScreenSig);
 			}
 			case Int -> {
-				mv.visitFieldInsn(GETSTATIC, className, name, INT_DESC);
-				mv.visitMethodInsn(INVOKESTATIC, LoggedIO.className, "intToScreen", LoggedIO.intToScreenSig,
-						isInterface);
+				loadVariable(name);
+				invokeOutput("intToScreen", LoggedIO.intToScreenSig);
 			}
 			case Image -> {
 				// Load the image
-				mv.visitFieldInsn(GETSTATIC, className, statementOutScreen.name(), PLPImage.desc);
+				loadVariable(name);
 
 				// Load the xloc
-				if (statementOutScreen.X() == Expression.empty) {
+				if (x == null) {
 					mv.visitInsn(ICONST_0);
 				} else {
-					statementOutScreen.X().visit(this, null);
+					x.emit();
 				}
 
 				// Load the yloc
-				if (statementOutScreen.Y() == Expression.empty) {
+				if (y == null) {
 					mv.visitInsn(ICONST_0);
 				} else {
-					statementOutScreen.Y().visit(this, null);
+					y.emit();
 				}
 
 				// Call the LoggedIO.imageToScreen method
-				mv.visitMethodInsn(INVOKESTATIC, LoggedIO.className, "imageToScreen", LoggedIO.imageToScreenSig,
-						isInterface);
+				invokeOutput("imageToScreen", LoggedIO.imageToScreenSig);
 			}
 			default ->
 				throw new UnsupportedOperationException("not yet implemented");
 		}
-		return null;
+	}
+
+	/**
+	 * Loads the ExecutionContext receiving the outputs of an instance program.  Other programs call the static
+	 * methods of LoggedIO.
+	 */
+	private void loadOutputContext() {
+		if (instancePrograms) {
+			mv.visitVarInsn(ALOAD, ARGS_SLOT);
+			mv.visitFieldInsn(GETFIELD, className, CONTEXT_FIELD, ExecutionContext.desc);
+		}
+	}
+
+	/**
+	 * Calls the output method name, of ExecutionContext for an instance program and of LoggedIO otherwise.
+	 * Both classes have the same output methods.
+	 */
+	private void invokeOutput(String name, String sig) {
+		if (instancePrograms) {
+			mv.visitMethodInsn(INVOKEVIRTUAL, ExecutionContext.className, name, sig, isInterface);
+		} else {
+			mv.visitMethodInsn(INVOKESTATIC, LoggedIO.className, name, sig, isInterface);
+		}
+	}
+
+	/**
+	 * Returns the descriptor of the first parameter of main and of the other generated methods: args, or the
+	 * program instance if instancePrograms is set.
+	 */
+	private String argsDesc() {
+		return instancePrograms ? "L" + className + ";" : "[Ljava/lang/String;";
+	}
+
+	/**
+	 * Creates the variable as a local variable of the method mv if localVariables is set and the variable is not
+	 * used by other methods, and as a field otherwise: a static field, or an instance field if instancePrograms
+	 * is set.
+	 */
+	private void declareVariable(String name, Type type) {
+		variableTypes.put(name, type);
+		if (localVariables && !fieldVariables.contains(name)) {
+			Label start = new Label();
+			mv.visitLabel(start);
+			int slot = nextLocalSlot++;
+			variableSlots.put(name, slot);
+			methodLocals.add(new LocalVariable(name, descriptor(type), start, slot));
+		} else {
+			FieldVisitor fieldVisitor = instancePrograms ? cw.visitField(0, name, descriptor(type), null, null)
+					: cw.visitField(ACC_STATIC, name, descriptor(type), null, type == Type.Int ? 0 : null);
+			fieldVisitor.visitEnd();
+		}
+	}
+
+	private void loadVariable(String name) {
+		Type type = variableTypes.get(name);
+		Integer slot = variableSlots.get(name);
+		if (slot == null && instancePrograms) {
+			mv.visitVarInsn(ALOAD, ARGS_SLOT);
+			mv.visitFieldInsn(GETFIELD, className, name, descriptor(type));
+		} else if (slot == null) {
+			mv.visitFieldInsn(GETSTATIC, className, name, descriptor(type));
+		} else {
+			mv.visitVarInsn(type == Type.Int || type == Type.Boolean ? ILOAD : ALOAD, slot);
+		}
+	}
+
+	private void storeVariable(String name) {
+		Type type = variableTypes.get(name);
+		Integer slot = variableSlots.get(name);
+		if (slot == null && instancePrograms) {
+			mv.visitVarInsn(ALOAD, ARGS_SLOT);
+			mv.visitInsn(SWAP);
+			mv.visitFieldInsn(PUTFIELD, className, name, descriptor(type));
+		} else if (slot == null) {
+			mv.visitFieldInsn(PUTSTATIC, className, name, descriptor(type));
+		} else {
+			mv.visitVarInsn(type == Type.Int || type == Type.Boolean ? ISTORE : ASTORE, slot);
+		}
+	}
+
+	private String descriptor(Type type) {
+		return switch (type) {
+			case Int -> INT_DESC;
+			case String -> STRING_DESC;
+			case Image -> PLPImage.desc;
+			case Boolean -> "Z";
+			default -> throw new UnsupportedOperationException("No variables of type " + type);
+		};
 	}
 
 	private void addBooleanJumpLogic(int opCode) {
@@ -620,6 +1882,10 @@ public class CodeGenVisitorComplete implements ASTVisitor, Opcodes {
 		mv.visitLabel(endLabel);
 	}
 
+	private boolean isVar(Expression e, String name) {
+		return e instanceof ExprVar && ((ExprVar) e).name().equals(name);
+	}
+
 	private boolean isKind(Scanner.Kind actual, Scanner.Kind...expectedKinds) {
 		for (Scanner.Kind expectedKind : expectedKinds) {
 			if (actual == expectedKind) {
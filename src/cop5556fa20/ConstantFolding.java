@@ -0,0 +1,262 @@
+package cop5556fa20;
+
+import cop5556fa20.AST.*;
+import cop5556fa20.Scanner.Kind;
+import cop5556fa20.runtime.PixelOps;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replaces the int expressions whose operands are all constants by their value, and the uses of the
+ * int variables that are initialized with a constant and never assigned by that constant.
+ *
+ * Boolean expressions have no literal, so constant conditions are only folded where they are used:
+ * a conditional expression with a constant condition is replaced by one of its cases, and a pixel
+ * loop whose condition is always true loses its condition.  Expressions that throw (/ and % by zero)
+ * are left for the generated code to evaluate.  String expressions are not folded, since == compares
+ * String references and "a" + "b" is not the same String as the literal "ab".
+ */
+public class ConstantFolding extends ASTRewriter {
+
+	// Values of the int variables that are initialized with a constant and never assigned.
+	final Map<String, Integer> constants = new HashMap<>();
+
+	// Names of the variables assigned by a StatementAssign.
+	final Set<String> assigned = new HashSet<>();
+
+	// Values of the boolean expressions found by booleanValue, null for those that are not constant.
+	final Map<Expression, Boolean> booleanValues = new IdentityHashMap<>();
+
+	@Override
+	public Program rewrite(Program program) throws Exception {
+		for (ASTNode node : program.decOrStatement()) {
+			if (node instanceof StatementAssign) {
+				assigned.add(((StatementAssign) node).name());
+			}
+		}
+		return super.rewrite(program);
+	}
+
+	/**
+	 * Returns the value of e if it is an int constant, and null otherwise.
+	 */
+	static Integer intValue(Expression e) {
+		if (e instanceof ExprIntLit) {
+			return ((ExprIntLit) e).value();
+		}
+		if (e instanceof ExprConst) {
+			return ((ExprConst) e).value();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the value of e if it is a boolean expression of int constants, and null otherwise.  The operands
+	 * of !, & and | are walked with a stack in the heap, and the values found are kept in booleanValues, so
+	 * that long chains of them are walked once.
+	 */
+	Boolean booleanValue(Expression e) {
+		// Operators of e in preorder, so that each one comes after the operator containing it
+		List<Expression> preorder = new ArrayList<>();
+		ArrayDeque<Expression> stack = new ArrayDeque<>();
+		stack.push(e);
+		while (!stack.isEmpty()) {
+			Expression next = stack.pop();
+			if (booleanValues.containsKey(next)) {
+				continue;
+			}
+			preorder.add(next);
+			if (isNot(next)) {
+				stack.push(((ExprUnary) next).e());
+			} else if (isAndOr(next)) {
+				stack.push(((ExprBinary) next).e0());
+				stack.push(((ExprBinary) next).e1());
+			}
+		}
+		for (int i = preorder.size() - 1; i >= 0; i--) {
+			Expression next = preorder.get(i);
+			Boolean value;
+			if (isNot(next)) {
+				Boolean operand = booleanValues.get(((ExprUnary) next).e());
+				value = operand == null ? null : !operand;
+			} else if (isAndOr(next)) {
+				ExprBinary binary = (ExprBinary) next;
+				Boolean left = booleanValues.get(binary.e0());
+				Boolean right = booleanValues.get(binary.e1());
+				value = left == null || right == null ? null : binary.op() == Kind.AND ? left && right : left || right;
+			} else {
+				value = comparisonValue(next);
+			}
+			booleanValues.put(next, value);
+		}
+		return booleanValues.get(e);
+	}
+
+	private static boolean isNot(Expression e) {
+		return e instanceof ExprUnary && ((ExprUnary) e).op() == Kind.EXCL;
+	}
+
+	private static boolean isAndOr(Expression e) {
+		return e instanceof ExprBinary && e.type() == Type.Boolean
+				&& (((ExprBinary) e).op() == Kind.AND || ((ExprBinary) e).op() == Kind.OR);
+	}
+
+	/**
+	 * Returns the value of e if it compares two int constants, and null otherwise.
+	 */
+	private static Boolean comparisonValue(Expression e) {
+		if (!(e instanceof ExprBinary) || e.type() != Type.Boolean) {
+			return null;
+		}
+		ExprBinary binary = (ExprBinary) e;
+		Integer left = intValue(binary.e0());
+		Integer right = intValue(binary.e1());
+		if (left == null || right == null) {
+			return null;
+		}
+		return switch (binary.op()) {
+			case EQ -> left.intValue() == right.intValue();
+			case NEQ -> left.intValue() != right.intValue();
+			case LT -> left < right;
+			case GT -> left > right;
+			case LE -> left <= right;
+			case GE -> left >= right;
+			default -> null;
+		};
+	}
+
+	private static Expression intLit(Expression e, int value) {
+		return typed(new ExprIntLit(e.first(), value), Type.Int);
+	}
+
+	@Override
+	public Object visitDecVar(DecVar decVar, Object arg) throws Exception {
+		DecVar result = (DecVar) super.visitDecVar(decVar, arg);
+		Integer value = intValue(result.expression());
+		if (result.type() == Type.Int && value != null && !assigned.contains(result.name())) {
+			constants.put(result.name(), value);
+		}
+		return result;
+	}
+
+	@Override
+	public Object visitStatementLoop(StatementLoop statementLoop, Object arg) throws Exception {
+		StatementLoop result = (StatementLoop) super.visitStatementLoop(statementLoop, arg);
+		if (booleanValue(result.cond()) == Boolean.TRUE) {
+			return withDec(new StatementLoop(result.first(), result.name(), Expression.empty, result.e()), result.dec());
+		}
+		return result;
+	}
+
+	@Override
+	public Object visitExprVar(ExprVar exprVar, Object arg) throws Exception {
+		Integer value = constants.get(exprVar.name());
+		return value == null ? exprVar : intLit(exprVar, value);
+	}
+
+	@Override
+	public Object visitExprBinary(ExprBinary exprBinary, Object arg) throws Exception {
+		Expression result = (Expression) super.visitExprBinary(exprBinary, arg);
+		if (!(result instanceof ExprBinary)) {
+			return result;
+		}
+		ExprBinary binary = (ExprBinary) result;
+
+		// true & e and false | e have the value of e, which is still evaluated
+		Boolean left = booleanValue(binary.e0());
+		if ((binary.op() == Kind.AND && left == Boolean.TRUE) || (binary.op() == Kind.OR && left == Boolean.FALSE)) {
+			return binary.e1();
+		}
+		Boolean right = booleanValue(binary.e1());
+		if ((binary.op() == Kind.AND && right == Boolean.TRUE) || (binary.op() == Kind.OR && right == Boolean.FALSE)) {
+			return binary.e0();
+		}
+
+		if (binary.type() != Type.Int) {
+			return binary;
+		}
+		Integer e0 = intValue(binary.e0());
+		Integer e1 = intValue(binary.e1());
+		if (e0 == null || e1 == null) {
+			return binary;
+		}
+		return switch (binary.op()) {
+			case PLUS -> intLit(binary, e0 + e1);
+			case MINUS -> intLit(binary, e0 - e1);
+			case STAR -> intLit(binary, e0 * e1);
+			case DIV -> e1 == 0 ? binary : intLit(binary, e0 / e1);
+			case MOD -> e1 == 0 ? binary : intLit(binary, e0 % e1);
+			default -> binary;
+		};
+	}
+
+	@Override
+	public Object visitExprUnary(ExprUnary exprUnary, Object arg) throws Exception {
+		Expression result = (Expression) super.visitExprUnary(exprUnary, arg);
+		if (!(result instanceof ExprUnary)) {
+			return result;
+		}
+		ExprUnary unary = (ExprUnary) result;
+		Integer value = intValue(unary.e());
+		if (value == null || unary.op() == Kind.EXCL) {
+			return unary;
+		}
+		return intLit(unary, unary.op() == Kind.MINUS ? -value : value);
+	}
+
+	@Override
+	public Object visitExprConditional(ExprConditional exprConditional, Object arg) throws Exception {
+		Expression result = (Expression) super.visitExprConditional(exprConditional, arg);
+		if (!(result instanceof ExprConditional)) {
+			return result;
+		}
+		ExprConditional conditional = (ExprConditional) result;
+		Boolean condition = booleanValue(conditional.condition());
+		if (condition == null) {
+			return conditional;
+		}
+		return condition ? conditional.trueCase() : conditional.falseCase();
+	}
+
+	@Override
+	public Object visitExprHash(ExprHash exprHash, Object arg) throws Exception {
+		Expression result = (Expression) super.visitExprHash(exprHash, arg);
+		if (!(result instanceof ExprHash)) {
+			return result;
+		}
+		ExprHash hash = (ExprHash) result;
+		Integer pixel = intValue(hash.e());
+		if (pixel == null) {
+			return hash;
+		}
+		return switch (hash.attr()) {
+			case "red" -> intLit(hash, PixelOps.getRed(pixel));
+			case "green" -> intLit(hash, PixelOps.getGreen(pixel));
+			case "blue" -> intLit(hash, PixelOps.getBlue(pixel));
+			default -> hash;
+		};
+	}
+
+	@Override
+	public Object visitExprPixelConstructor(ExprPixelConstructor exprPixelConstructor, Object arg) throws Exception {
+		Expression result = (Expression) super.visitExprPixelConstructor(exprPixelConstructor, arg);
+		if (!(result instanceof ExprPixelConstructor)) {
+			return result;
+		}
+		ExprPixelConstructor constructor = (ExprPixelConstructor) result;
+		Integer red = intValue(constructor.redExpr());
+		Integer green = intValue(constructor.greenExpr());
+		Integer blue = intValue(constructor.blueExpr());
+		if (red == null || green == null || blue == null) {
+			return constructor;
+		}
+		return intLit(constructor, PixelOps.makePixel(red, green, blue));
+	}
+}
@@ -0,0 +1,96 @@
+package cop5556fa20;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import cop5556fa20.AST.*;
+import cop5556fa20.runtime.PixelOps;
+
+class ConstantFoldingTest {
+
+	static final boolean doPrint = true;
+	private void show(Object input) {
+		if (doPrint) {
+			System.out.println(input.toString());
+		}
+	}
+
+	/**
+	 * Parses, type checks and rewrites the input, and returns the declarations and statements of the result.
+	 */
+	List<ASTNode> fold(String input) throws Exception {
+		show(input);
+		Program program = new Parser(new Scanner(input).scan()).parse();
+		program.visit(new TypeCheckVisitor(), null);
+		Program result = new ConstantFolding().rewrite(program);
+		for (ASTNode node : result.decOrStatement()) {
+			show(node);
+		}
+		return result.decOrStatement();
+	}
+
+	static int intLit(ASTNode decVar) {
+		return ((ExprIntLit) ((DecVar) decVar).expression()).value();
+	}
+
+	@Test
+	public void foldsArithmetic() throws Exception {
+		String input = """
+				int a = 1 + 2 * 3 - -4;
+				int b = 17 / 5 % 2;
+				int c = 2 > 1 & !(3 == 4) ? 10 : 20;
+				""";
+		List<ASTNode> nodes = fold(input);
+		assertEquals(11, intLit(nodes.get(0)));
+		assertEquals(1, intLit(nodes.get(1)));
+		assertEquals(10, intLit(nodes.get(2)));
+	}
+
+	@Test
+	public void foldsPixels() throws Exception {
+		String input = """
+				int a = <<255, 128, 300>>;
+				int b = RED#red + Z#green;
+				""";
+		List<ASTNode> nodes = fold(input);
+		assertEquals(PixelOps.makePixel(255, 128, 300), intLit(nodes.get(0)));
+		assertEquals(255, intLit(nodes.get(1)));
+	}
+
+	@Test
+	public void propagatesConstantVariables() throws Exception {
+		String input = """
+				int k = 7;
+				int j = k * 3;
+				int m = 1;
+				m = m + 1;
+				int n = m + k;
+				image[k, j] a;
+				a = *[X,Y]: k > 3 : X + j;
+				""";
+		List<ASTNode> nodes = fold(input);
+		assertEquals(21, intLit(nodes.get(1)));
+		ExprBinary n = (ExprBinary) ((DecVar) nodes.get(4)).expression();
+		assertTrue(n.e0() instanceof ExprVar);
+		assertEquals(7, ((ExprIntLit) n.e1()).value());
+		assertEquals(7, ((ExprIntLit) ((DecImage) nodes.get(5)).width()).value());
+		StatementLoop loop = (StatementLoop) nodes.get(6);
+		assertEquals(Expression.empty, loop.cond());
+		assertEquals(21, ((ExprIntLit) ((ExprBinary) loop.e()).e1()).value());
+	}
+
+	@Test
+	public void keepsDivisionByZeroAndStrings() throws Exception {
+		String input = """
+				int a = 5 / (3 - 3);
+				string s = "a" + "b";
+				""";
+		List<ASTNode> nodes = fold(input);
+		ExprBinary a = (ExprBinary) ((DecVar) nodes.get(0)).expression();
+		assertEquals(0, ((ExprIntLit) a.e1()).value());
+		assertTrue(((DecVar) nodes.get(1)).expression() instanceof ExprBinary);
+	}
+}
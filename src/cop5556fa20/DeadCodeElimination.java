@@ -0,0 +1,181 @@
+package cop5556fa20;
+
+import cop5556fa20.AST.*;
+import cop5556fa20.Scanner.Kind;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Removes the computations whose result never reaches an output statement (-> screen or -> file).
+ *
+ * The program is scanned backwards, keeping the set of variables whose current value may still be
+ * needed.  A pixel loop, an image load (a <- source, image a <- source) or an assignment whose variable
+ * is not in that set is dead: it is removed, or the source of a declaration is dropped, and the
+ * variables it uses are not needed for it.  A load, and a pixel loop without condition over an image
+ * with a declared size, overwrite every pixel, so the values written before them are not needed.
+ * Images that share a BufferedImage with another variable are never removed nor overwritten.
+ *
+ * Computations that may throw an exception are only removed in lazy mode, where a program runs
+ * only what its outputs need, so a failing load or loop whose image is never output is skipped.
+ * A loop also throws when it allocates an image declared with a size <= 0, so outside lazy mode it is
+ * only removed if LoopDependenceAnalysis.hasSizedImage.
+ */
+public class DeadCodeElimination {
+
+	final boolean lazy;
+
+	LoopDependenceAnalysis dependences;
+
+	// Variables whose value may be needed by the statements after the one being visited.
+	final Set<String> live = new HashSet<>();
+
+	// Images declared with a size, which the pixel loops keep.
+	final Set<String> declaredSizes = new HashSet<>();
+
+	public DeadCodeElimination(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	/**
+	 * Returns the program without its dead computations.
+	 */
+	public Program rewrite(Program program) throws Exception {
+		dependences = new LoopDependenceAnalysis(program);
+		List<ASTNode> nodes = program.decOrStatement();
+		for (ASTNode node : nodes) {
+			if (node instanceof DecImage && ((DecImage) node).width() != Expression.empty) {
+				declaredSizes.add(((DecImage) node).name());
+			}
+		}
+		List<ASTNode> decOrStatement = new ArrayList<>();
+		boolean changed = false;
+		for (int i = nodes.size() - 1; i >= 0; i--) {
+			ASTNode node = eliminate(nodes.get(i));
+			if (node != null) {
+				decOrStatement.add(node);
+			}
+			changed |= node != nodes.get(i);
+		}
+		if (!changed) {
+			return program;
+		}
+		Collections.reverse(decOrStatement);
+		return new Program(program.first(), decOrStatement);
+	}
+
+	/**
+	 * Returns the node replacing the given one, or null if it is removed, and updates live to the variables
+	 * needed before it.
+	 */
+	private ASTNode eliminate(ASTNode node) throws Exception {
+		if (node instanceof DecVar) {
+			DecVar decVar = (DecVar) node;
+			boolean dead = !isLive(decVar.name()) && canRemove(decVar.expression());
+			live.remove(decVar.name());
+			if (dead && decVar.expression() != Expression.empty) {
+				return new DecVar(decVar.first(), decVar.type(), decVar.name(), Expression.empty);
+			}
+			use(decVar.expression());
+			return decVar;
+		}
+
+		if (node instanceof DecImage) {
+			DecImage decImage = (DecImage) node;
+			if (decImage.op() == Kind.ASSIGN || dependences.isAliased(decImage.name())) {
+				use(decImage.source());
+			} else if (!isLive(decImage.name()) && decImage.source() != Expression.empty && lazy) {
+				decImage = new DecImage(decImage.first(), decImage.type(), decImage.name(), decImage.width(),
+						decImage.height(), Kind.NOP, Expression.empty);
+			} else {
+				live.remove(decImage.name());
+				use(decImage.source());
+			}
+			use(decImage.width());
+			use(decImage.height());
+			return decImage;
+		}
+
+		if (node instanceof StatementAssign) {
+			StatementAssign statementAssign = (StatementAssign) node;
+			if (statementAssign.dec().type() == Type.Image) {
+				// Both images share a BufferedImage from now on
+				live.add(statementAssign.name());
+				use(statementAssign.expression());
+				return statementAssign;
+			}
+			if (!isLive(statementAssign.name()) && canRemove(statementAssign.expression())) {
+				return null;
+			}
+			live.remove(statementAssign.name());
+			use(statementAssign.expression());
+			return statementAssign;
+		}
+
+		if (node instanceof StatementImageIn) {
+			StatementImageIn statementImageIn = (StatementImageIn) node;
+			boolean aliased = dependences.isAliased(statementImageIn.name());
+			if (!aliased && !isLive(statementImageIn.name()) && lazy) {
+				return null;
+			}
+			if (!aliased) {
+				live.remove(statementImageIn.name());
+			}
+			use(statementImageIn.source());
+			return statementImageIn;
+		}
+
+		if (node instanceof StatementLoop) {
+			StatementLoop statementLoop = (StatementLoop) node;
+			String name = statementLoop.name();
+			boolean aliased = dependences.isAliased(name);
+			if (!aliased && !isLive(name) && (lazy || (dependences.hasSizedImage(statementLoop)
+					&& !LoopDependenceAnalysis.mayThrow(statementLoop.cond())
+					&& !LoopDependenceAnalysis.mayThrow(statementLoop.e())))) {
+				return null;
+			}
+			if (aliased || statementLoop.cond() != Expression.empty || !declaredSizes.contains(name)) {
+				// Pixels where the condition is false keep their value, and an image without declared size its size
+				live.add(name);
+			} else {
+				live.remove(name);
+			}
+			use(statementLoop.cond());
+			use(statementLoop.e());
+			return statementLoop;
+		}
+
+		if (node instanceof StatementOutFile) {
+			StatementOutFile statementOutFile = (StatementOutFile) node;
+			live.add(statementOutFile.name());
+			use(statementOutFile.filename());
+			return statementOutFile;
+		}
+
+		StatementOutScreen statementOutScreen = (StatementOutScreen) node;
+		live.add(statementOutScreen.name());
+		use(statementOutScreen.X());
+		use(statementOutScreen.Y());
+		return statementOutScreen;
+	}
+
+	private boolean isLive(String name) {
+		for (String variable : live) {
+			if (dependences.mayAlias(variable, name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean canRemove(Expression e) {
+		return lazy || !LoopDependenceAnalysis.mayThrow(e);
+	}
+
+	private void use(Expression e) throws Exception {
+		live.addAll(dependences.variables(e));
+	}
+}
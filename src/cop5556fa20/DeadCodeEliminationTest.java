@@ -0,0 +1,114 @@
+package cop5556fa20;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import cop5556fa20.AST.*;
+
+class DeadCodeEliminationTest {
+
+	static final boolean doPrint = true;
+	private void show(Object input) {
+		if (doPrint) {
+			System.out.println(input.toString());
+		}
+	}
+
+	/**
+	 * Parses, type checks and rewrites the input, and returns the declarations and statements of the result.
+	 */
+	List<ASTNode> eliminate(String input, boolean lazy) throws Exception {
+		show(input);
+		Program program = new Parser(new Scanner(input).scan()).parse();
+		program.visit(new TypeCheckVisitor(), null);
+		Program result = new DeadCodeElimination(lazy).rewrite(program);
+		for (ASTNode node : result.decOrStatement()) {
+			show(node);
+		}
+		return result.decOrStatement();
+	}
+
+	@Test
+	public void removesOverwrittenAndUnusedImages() throws Exception {
+		String input = """
+				image[20,20] a;
+				image[20,20] b;
+				image[20,20] c;
+				a = *[X,Y]:: X;
+				b = *[X,Y]:: Y;
+				c = *[X,Y]:: X + Y;
+				b = *[X,Y]:: a[X,Y] + 1;
+				b -> "b.png";
+				""";
+		List<ASTNode> nodes = eliminate(input, false);
+		assertEquals(6, nodes.size());
+		assertEquals("a", ((StatementLoop) nodes.get(3)).name());
+		assertEquals("b", ((StatementLoop) nodes.get(4)).name());
+		assertTrue(((StatementLoop) nodes.get(4)).e() instanceof ExprBinary);
+	}
+
+	@Test
+	public void keepsPartiallyWrittenImages() throws Exception {
+		String input = """
+				image[20,20] a;
+				a = *[X,Y]:: X;
+				a = *[X,Y]: X > 5 : Y;
+				image b;
+				b = *[X,Y]:: a[X,Y];
+				a = *[X,Y]:: b[X,Y];
+				a -> screen;
+				""";
+		List<ASTNode> nodes = eliminate(input, false);
+		assertEquals(7, nodes.size());
+	}
+
+	@Test
+	public void keepsAliasedImages() throws Exception {
+		String input = """
+				image[20,20] a;
+				a = *[X,Y]:: X;
+				image b = a;
+				b = *[X,Y]:: a[X,Y] * 2;
+				a -> screen;
+				""";
+		List<ASTNode> nodes = eliminate(input, false);
+		assertEquals(5, nodes.size());
+	}
+
+	@Test
+	public void skipsDeadLoadsWhenLazy() throws Exception {
+		String input = """
+				image[20,20] a <- "missing.png";
+				a = *[X,Y]:: X;
+				int m = 100 / 0;
+				a -> screen;
+				""";
+		List<ASTNode> nodes = eliminate(input, false);
+		assertEquals(Scanner.Kind.LARROW, ((DecImage) nodes.get(0)).op());
+		assertTrue(((DecVar) nodes.get(2)).expression() instanceof ExprBinary);
+
+		nodes = eliminate(input, true);
+		assertEquals(Expression.empty, ((DecImage) nodes.get(0)).source());
+		assertEquals(Expression.empty, ((DecVar) nodes.get(2)).expression());
+	}
+
+	@Test
+	public void keepsLoopsThatMayFailToAllocate() throws Exception {
+		// Allocating a with a width of 0 throws, whether or not a is output
+		String input = """
+				image[0,5] a;
+				a = *[X,Y]:: 1;
+				int k = 1;
+				k -> screen;
+				a = *[X,Y]:: 2;
+				a -> screen;
+				""";
+		List<ASTNode> nodes = eliminate(input, false);
+		assertEquals(6, nodes.size());
+		assertEquals(2, eliminate("image[0,5] a; a = *[X,Y]:: 1;", false).size());
+		assertEquals(1, eliminate("image[0,5] a; a = *[X,Y]:: 1;", true).size());
+	}
+}
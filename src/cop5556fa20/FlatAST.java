@@ -0,0 +1,647 @@
+package cop5556fa20;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cop5556fa20.AST.*;
+import cop5556fa20.Parser.SyntaxException;
+import cop5556fa20.Scanner.Kind;
+import cop5556fa20.Scanner.LexicalException;
+import cop5556fa20.Scanner.Token;
+
+import static cop5556fa20.Scanner.Kind.*;
+
+/**
+ * An AST stored in an arena of parallel arrays instead of a heap object per node.  A node is an index into
+ * the arrays, which hold its kind, its children, the index in the scanner of its first token, the index of its
+ * name or text in a table of strings, and an int value.  Parsing a program builds no Token and no node object,
+ * and a program of n nodes is a few arrays of n entries that are collected at once.
+ *
+ * A node is added after its children, so the children of a node have lower indices, and the nodes of a
+ * subtree are the range of indices from the first node of its leftmost branch to its root, in post-order.
+ *
+ * toProgram builds the object AST of the nodes, so that any ASTVisitor can run on a FlatAST, and
+ * toStatementLoop the objects of a single pixel loop.  The type
+ * checker and the code generator walk it directly, see TypeCheckVisitor.check(FlatAST) and
+ * CodeGenVisitorComplete.compile(FlatAST).
+ */
+public class FlatAST {
+
+	// No node, for an empty expression
+	public static final int NONE = -1;
+
+	// Kinds of nodes, one for each class of AST node
+	public static final int DEC_IMAGE = 0; // name, op in value, children width, height, source
+	public static final int DEC_VAR = 1; // name, type in value, child expression
+	public static final int EXPR_ARG = 2; // child e
+	public static final int EXPR_BINARY = 3; // op in value, children e0, e1
+	public static final int EXPR_CONDITIONAL = 4; // children condition, trueCase, falseCase
+	public static final int EXPR_CONST = 5; // name, value
+	public static final int EXPR_HASH = 6; // attr in name, child e
+	public static final int EXPR_INT_LIT = 7; // value
+	public static final int EXPR_PIXEL_CONSTRUCTOR = 8; // children redExpr, greenExpr, blueExpr
+	public static final int EXPR_PIXEL_SELECTOR = 9; // children image, X, Y
+	public static final int EXPR_STRING_LIT = 10; // text in name
+	public static final int EXPR_UNARY = 11; // op in value, child e
+	public static final int EXPR_VAR = 12; // name
+	public static final int STATEMENT_ASSIGN = 13; // name, child expression
+	public static final int STATEMENT_IMAGE_IN = 14; // name, child source
+	public static final int STATEMENT_LOOP = 15; // name, children cond, e
+	public static final int STATEMENT_OUT_FILE = 16; // name, child filename
+	public static final int STATEMENT_OUT_SCREEN = 17; // name, children X, Y
+
+	// Children of each node, NONE for the ones it does not have
+	static final int CHILDREN = 3;
+
+	private static final Kind[] kindValues = Kind.values();
+	private static final Type[] typeValues = Type.values();
+
+	final Scanner scanner;
+	private int size;
+	private int[] kinds = new int[64];
+	private int[] children = new int[64 * CHILDREN];
+	private int[] tokens = new int[64];
+	private int[] names = new int[64];
+	private int[] values = new int[64];
+	// Ordinal of the type of each node plus one, set by the type checker, or 0
+	private byte[] types = new byte[64];
+
+	private final List<String> strings = new ArrayList<>();
+	private final Map<String, Integer> stringIndices = new HashMap<>();
+
+	// The declarations and statements of the program, and the index of the first token of the program
+	private int[] items = new int[16];
+	private int itemCount;
+	private int first;
+
+	private FlatAST(Scanner scanner) {
+		this.scanner = scanner;
+	}
+
+	/**
+	 * Parses the tokens of scanner, which must have been scanned by scan() rather than on demand, as the nodes
+	 * refer to them, and throws an IllegalArgumentException otherwise.  Reports the same errors as
+	 * Parser.parse().
+	 */
+	public static FlatAST parse(Scanner scanner) throws SyntaxException, LexicalException {
+		if (!scanner.isScanned()) {
+			throw new IllegalArgumentException("The tokens of a FlatAST must be scanned by scan()");
+		}
+		FlatAST ast = new FlatAST(scanner);
+		new Builder(scanner, ast).program();
+		return ast;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int kind(int node) {
+		return kinds[node];
+	}
+
+	/**
+	 * Returns the child i of node, or NONE.
+	 */
+	public int child(int node, int i) {
+		return children[node * CHILDREN + i];
+	}
+
+	/**
+	 * Returns the index in the scanner of the first token of node.
+	 */
+	public int token(int node) {
+		return tokens[node];
+	}
+
+	public Token first(int node) {
+		return scanner.token(tokens[node]);
+	}
+
+	public int line(int node) {
+		return scanner.line(tokens[node]);
+	}
+
+	public int posInLine(int node) {
+		return scanner.posInLine(tokens[node]);
+	}
+
+	/**
+	 * Returns the name of a declaration, statement, ExprVar or ExprConst, the text of an ExprStringLit, or the
+	 * attribute of an ExprHash.
+	 */
+	public String name(int node) {
+		return strings.get(names[node]);
+	}
+
+	/**
+	 * Returns the value of an ExprIntLit or ExprConst, the ordinal of the Kind of the op of an ExprBinary,
+	 * ExprUnary or DecImage, the ordinal of the Type of a DecVar, or for a StatementAssign or StatementOutScreen
+	 * the node of the declaration of its name once type checked, which is NONE for X and Y.
+	 */
+	public int value(int node) {
+		return values[node];
+	}
+
+	void setValue(int node, int value) {
+		values[node] = value;
+	}
+
+	public Kind op(int node) {
+		return kindValues[values[node]];
+	}
+
+	/**
+	 * Returns the type of an expression or declaration, or of the variable of a StatementAssign or
+	 * StatementOutScreen, once type checked.  Otherwise null.
+	 */
+	public Type type(int node) {
+		return types[node] == 0 ? null : typeValues[types[node] - 1];
+	}
+
+	void setType(int node, Type type) {
+		types[node] = (byte) (type.ordinal() + 1);
+	}
+
+	public int itemCount() {
+		return itemCount;
+	}
+
+	/**
+	 * Returns the node of the declaration or statement i of the program.
+	 */
+	public int item(int i) {
+		return items[i];
+	}
+
+	/**
+	 * Returns the first node of the subtree of node, in post-order.
+	 */
+	public int start(int node) {
+		while (node != NONE) {
+			int child = NONE;
+			for (int i = 0; i < CHILDREN && child == NONE; i++) {
+				child = children[node * CHILDREN + i];
+			}
+			if (child == NONE) {
+				return node;
+			}
+			node = child;
+		}
+		return node;
+	}
+
+	private int add(int kind, int token, int name, int value, int child0, int child1, int child2) {
+		if (size == kinds.length) {
+			int capacity = size * 2;
+			kinds = Arrays.copyOf(kinds, capacity);
+			children = Arrays.copyOf(children, capacity * CHILDREN);
+			tokens = Arrays.copyOf(tokens, capacity);
+			names = Arrays.copyOf(names, capacity);
+			values = Arrays.copyOf(values, capacity);
+			types = Arrays.copyOf(types, capacity);
+		}
+		kinds[size] = kind;
+		children[size * CHILDREN] = child0;
+		children[size * CHILDREN + 1] = child1;
+		children[size * CHILDREN + 2] = child2;
+		tokens[size] = token;
+		names[size] = name;
+		values[size] = value;
+		return size++;
+	}
+
+	/**
+	 * Returns the index of s in the table of strings, adding it if needed.
+	 */
+	private int string(String s) {
+		Integer index = stringIndices.get(s);
+		if (index == null) {
+			index = strings.size();
+			strings.add(s);
+			stringIndices.put(s, index);
+		}
+		return index;
+	}
+
+	private void addItem(int node) {
+		if (itemCount == items.length) {
+			items = Arrays.copyOf(items, itemCount * 2);
+		}
+		items[itemCount++] = node;
+	}
+
+	/**
+	 * Returns the object AST of the program, equal to the one Parser.parse() returns for the same tokens, with
+	 * the types and declarations set by the type checker if it checked this FlatAST.
+	 */
+	public Program toProgram() {
+		ASTNode[] nodes = build(0, size - 1);
+		List<ASTNode> decsAndStatements = new ArrayList<>(itemCount);
+		for (int i = 0; i < itemCount; i++) {
+			decsAndStatements.add(nodes[items[i]]);
+		}
+		return new Program(scanner.token(first), decsAndStatements);
+	}
+
+	/**
+	 * Returns the object of the pixel loop node, equal to the one in toProgram(), building only the nodes of its
+	 * subtree.
+	 */
+	public StatementLoop toStatementLoop(int node) {
+		int start = start(node);
+		return (StatementLoop) build(start, node)[node - start];
+	}
+
+	/**
+	 * Builds the objects of the nodes from start to end, where node n is at index n - start, in a single pass
+	 * in the order of their indices, which builds the children of a node before it.  The declaration of a
+	 * statement must be among them.
+	 */
+	private ASTNode[] build(int start, int end) {
+		ASTNode[] nodes = new ASTNode[end - start + 1];
+		for (int n = start; n <= end; n++) {
+			Token first = first(n);
+			ASTNode node = switch (kinds[n]) {
+				case DEC_IMAGE -> new DecImage(first, Type.Image, name(n), expression(nodes, start, child(n, 0)),
+						expression(nodes, start, child(n, 1)), op(n), expression(nodes, start, child(n, 2)));
+				case DEC_VAR -> new DecVar(first, typeValues[values[n]], name(n), expression(nodes, start, child(n, 0)));
+				case EXPR_ARG -> new ExprArg(first, expression(nodes, start, child(n, 0)));
+				case EXPR_BINARY -> new ExprBinary(first, expression(nodes, start, child(n, 0)), op(n),
+						expression(nodes, start, child(n, 1)));
+				case EXPR_CONDITIONAL -> new ExprConditional(first, expression(nodes, start, child(n, 0)),
+						expression(nodes, start, child(n, 1)), expression(nodes, start, child(n, 2)));
+				case EXPR_CONST -> new ExprConst(first, name(n), values[n]);
+				case EXPR_HASH -> new ExprHash(first, expression(nodes, start, child(n, 0)), name(n));
+				case EXPR_INT_LIT -> new ExprIntLit(first, values[n]);
+				case EXPR_PIXEL_CONSTRUCTOR -> new ExprPixelConstructor(first, expression(nodes, start, child(n, 0)),
+						expression(nodes, start, child(n, 1)), expression(nodes, start, child(n, 2)));
+				case EXPR_PIXEL_SELECTOR -> new ExprPixelSelector(first, expression(nodes, start, child(n, 0)),
+						expression(nodes, start, child(n, 1)), expression(nodes, start, child(n, 2)));
+				case EXPR_STRING_LIT -> new ExprStringLit(first, name(n));
+				case EXPR_UNARY -> new ExprUnary(first, op(n), expression(nodes, start, child(n, 0)));
+				case EXPR_VAR -> new ExprVar(first, name(n));
+				case STATEMENT_ASSIGN -> new StatementAssign(first, name(n), expression(nodes, start, child(n, 0)));
+				case STATEMENT_IMAGE_IN -> new StatementImageIn(first, name(n), expression(nodes, start, child(n, 0)));
+				case STATEMENT_LOOP -> new StatementLoop(first, name(n), expression(nodes, start, child(n, 0)),
+						expression(nodes, start, child(n, 1)));
+				case STATEMENT_OUT_FILE -> new StatementOutFile(first, name(n), expression(nodes, start, child(n, 0)));
+				case STATEMENT_OUT_SCREEN -> new StatementOutScreen(first, name(n), expression(nodes, start,
+						child(n, 0)), expression(nodes, start, child(n, 1)));
+				default -> throw new IllegalStateException("Node " + n + " has no kind " + kinds[n]);
+			};
+			if (node instanceof Expression && types[n] != 0) {
+				((Expression) node).setType(type(n));
+			} else if (node instanceof Statement && types[n] != 0) {
+				((Statement) node).setDec(values[n] == NONE ? new DecVar(null, type(n), name(n), null)
+						: (Dec) nodes[values[n] - start]);
+			}
+			nodes[n - start] = node;
+		}
+		return nodes;
+	}
+
+	private static Expression expression(ASTNode[] nodes, int start, int node) {
+		return node == NONE ? Expression.empty : (Expression) nodes[node - start];
+	}
+
+	/**
+	 * Parses like Parser, with the same rules and errors, adding nodes to a FlatAST instead of building node
+	 * objects.  The methods return the node of the rule they parsed.
+	 */
+	private static class Builder extends Parser {
+		final FlatAST ast;
+
+		Builder(Scanner scanner, FlatAST ast) throws LexicalException {
+			super(scanner);
+			this.ast = ast;
+		}
+
+		void program() throws SyntaxException, LexicalException {
+			ast.first = t;
+			while (hasDecOrStatement()) {
+				int node;
+				if (isFirstInDeclaration()) {
+					node = isFirstInVariableDeclaration() ? variableDeclaration() : imageDeclaration();
+				} else {
+					node = statement();
+				}
+				match(SEMI);
+				ast.addItem(node);
+			}
+			matchEOF();
+		}
+
+		private int variableDeclaration() throws SyntaxException, LexicalException {
+			int first = t;
+			Type type = varType();
+			int name = ast.string(scanner.getText(match(IDENT)));
+
+			int e = NONE;
+			if (assertTokenKind(ASSIGN)) {
+				consume();
+				e = flatExpression();
+			}
+
+			return ast.add(DEC_VAR, first, name, type.ordinal(), e, NONE, NONE);
+		}
+
+		private int imageDeclaration() throws SyntaxException, LexicalException {
+			int first = t;
+			int width = NONE;
+			int height = NONE;
+			Kind op = NOP;
+			int source = NONE;
+
+			match(KW_image);
+
+			if (assertTokenKind(LSQUARE)) {
+				consume();
+				width = flatExpression();
+				match(COMMA);
+				height = flatExpression();
+				match(RSQUARE);
+			}
+
+			int name = ast.string(scanner.getText(match(IDENT)));
+
+			if (isKind(IMAGE_SOURCE_OPS)) {
+				op = scanner.kind(t);
+				consume();
+
+				source = flatExpression();
+			}
+
+			return ast.add(DEC_IMAGE, first, name, op.ordinal(), width, height, source);
+		}
+
+		private int statement() throws SyntaxException, LexicalException {
+			int first = t;
+			int name = ast.string(scanner.getText(match(IDENT)));
+
+			if (isFirstInImageOutStatement()) {
+				// IDENT RARROW Expression | IDENT RARROW KW_SCREEN ( LSQUARE Expression COMMA Expression RSQUARE | ϵ )
+				consume();
+				if (isFirstInExpression()) {
+					return ast.add(STATEMENT_OUT_FILE, first, name, NONE, flatExpression(), NONE, NONE);
+				} else if (assertTokenKind(KW_SCREEN)) {
+					consume();
+					int x = NONE;
+					int y = NONE;
+					if (assertTokenKind(LSQUARE)) {
+						consume();
+						x = flatExpression();
+						match(COMMA);
+						y = flatExpression();
+						match(RSQUARE);
+					}
+					return ast.add(STATEMENT_OUT_SCREEN, first, name, NONE, x, y, NONE);
+				} else {
+					throw error(t, "Unable to parse the imageOutStatement");
+				}
+			} else if (isFirstInImageInStatement()) {
+				// IDENT LARROW Expression
+				consume();
+				return ast.add(STATEMENT_IMAGE_IN, first, name, NONE, flatExpression(), NONE, NONE);
+			} else if (isFirstInAssignmentStatementAndLoopStatement()) {
+				// IDENT ASSIGN Expression | IDENT ASSIGN STAR ConstXYSelector COLON (Expression | ϵ ) COLON Expression
+				consume();
+				if (isFirstInExpression()) {
+					return ast.add(STATEMENT_ASSIGN, first, name, NONE, flatExpression(), NONE, NONE);
+				} else if (assertTokenKind(STAR)) {
+					consume();
+					constXYSelector();
+					match(COLON);
+					int cond = NONE;
+					if (isFirstInExpression()) {
+						cond = flatExpression();
+					}
+					match(COLON);
+					int e = flatExpression();
+					return ast.add(STATEMENT_LOOP, first, name, NONE, cond, e, NONE);
+				} else {
+					throw error(t, "Unable to parse the AssignmentStatementORLoopStatement");
+				}
+			} else {
+				throw error(t, "Unable to parse the statement");
+			}
+		}
+
+		/**
+		 * A rule being parsed by flatExpression, with the index of its first token and the nodes of the parts
+		 * parsed so far, like a frame of Parser.stackSafeExpression.
+		 */
+		private static final class Frame {
+			final int rule;
+			final int first;
+			final int level;
+			Kind op;
+			int e0 = NONE;
+			int e1 = NONE;
+			int parts;
+
+			Frame(int rule, int first, int level, Kind op) {
+				this.rule = rule;
+				this.first = first;
+				this.level = level;
+				this.op = op;
+			}
+		}
+
+		/**
+		 * Parses an expression like Parser.stackSafeExpression, with the same rules and frames, adding nodes
+		 * instead of building objects.  The nesting of expressions is not limited by the size of the thread's
+		 * stack.
+		 */
+		private int flatExpression() throws SyntaxException, LexicalException {
+			ArrayDeque<Frame> stack = new ArrayDeque<>();
+			int e = start(stack, 0);
+			int first = ast.token(e);
+			int parsed = PRIMARY_BASE;
+			while (true) {
+				Frame frame = stack.peek();
+				switch (parsed) {
+					case PRIMARY_BASE -> {
+						// (PixelSelector | ϵ )
+						if (isFirstInPixelSelector()) {
+							Frame selector = new Frame(PIXEL_SELECTOR, first, 0, null);
+							selector.e0 = e;
+							stack.push(selector);
+							consume();
+							e = start(stack, 0);
+							first = ast.token(e);
+						} else {
+							parsed = PRIMARY;
+						}
+					}
+					case PRIMARY -> {
+						if (frame.rule == ARG) {
+							stack.pop();
+							first = frame.first;
+							e = ast.add(EXPR_ARG, first, NONE, 0, e, NONE, NONE);
+							parsed = PRIMARY_BASE;
+						} else {
+							// ( HASH Attribute)*
+							while (assertTokenKind(HASH)) {
+								consume();
+								int attr = ast.string(attribute());
+								e = ast.add(EXPR_HASH, first, attr, 0, e, NONE, NONE);
+							}
+							while (stack.peek().rule == UNARY) {
+								frame = stack.pop();
+								e = ast.add(EXPR_UNARY, frame.first, NONE, frame.op.ordinal(), e, NONE, NONE);
+							}
+							parsed = UNARY_EXPRESSION;
+						}
+					}
+					case UNARY_EXPRESSION -> {
+						// An operand of the BINARY frame on top, or the OrExpression of a CONDITIONAL frame
+						if (frame.rule == BINARY) {
+							frame.e0 = frame.e0 == NONE ? e
+									: ast.add(EXPR_BINARY, frame.first, NONE, frame.op.ordinal(), frame.e0, e, NONE);
+							int opLevel = binaryLevels[scanner.kind(t).ordinal()];
+							if (opLevel >= frame.level) {
+								frame.op = scanner.kind(t);
+								consume();
+								e = start(stack, opLevel + 1);
+								first = ast.token(e);
+								parsed = PRIMARY_BASE;
+							} else {
+								stack.pop();
+								e = frame.e0;
+							}
+						} else if (assertTokenKind(Q)) {
+							frame.e0 = e;
+							consume();
+							e = start(stack, 0);
+							first = ast.token(e);
+							parsed = PRIMARY_BASE;
+						} else {
+							stack.pop();
+							parsed = EXPRESSION;
+						}
+					}
+					default -> {
+						// EXPRESSION
+						if (frame == null) {
+							return e;
+						}
+						first = frame.first;
+						switch (frame.rule) {
+							case CONDITIONAL -> {
+								if (frame.parts++ == 0) {
+									frame.e1 = e;
+									match(COLON);
+									e = start(stack, 0);
+									first = ast.token(e);
+									parsed = PRIMARY_BASE;
+								} else {
+									stack.pop();
+									e = ast.add(EXPR_CONDITIONAL, frame.first, NONE, 0, frame.e0, frame.e1, e);
+								}
+							}
+							case PAREN -> {
+								stack.pop();
+								match(RPAREN);
+								parsed = PRIMARY_BASE;
+							}
+							case PIXEL_CONSTRUCTOR -> {
+								if (frame.parts < 2) {
+									if (frame.parts++ == 0) {
+										frame.e0 = e;
+									} else {
+										frame.e1 = e;
+									}
+									match(COMMA);
+									e = start(stack, 0);
+									first = ast.token(e);
+								} else {
+									stack.pop();
+									match(RPIXEL);
+									e = ast.add(EXPR_PIXEL_CONSTRUCTOR, frame.first, NONE, 0, frame.e0, frame.e1, e);
+								}
+								parsed = PRIMARY_BASE;
+							}
+							default -> {
+								// PIXEL_SELECTOR
+								if (frame.parts++ == 0) {
+									frame.e1 = e;
+									match(COMMA);
+									e = start(stack, 0);
+									first = ast.token(e);
+									parsed = PRIMARY_BASE;
+								} else {
+									stack.pop();
+									match(RSQUARE);
+									e = ast.add(EXPR_PIXEL_SELECTOR, frame.first, NONE, 0, frame.e0, frame.e1, e);
+									parsed = PRIMARY;
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Starts the rule of level, or an Expression if level is 0, like Parser.start: pushes the frames of the
+		 * rules that start there, down to a token that is a primary, whose node is returned.
+		 */
+		private int start(ArrayDeque<Frame> stack, int level) throws SyntaxException, LexicalException {
+			while (true) {
+				if (level == 0) {
+					if (!isFirstInExpression()) {
+						throw error(t, "Unable to parse the expression");
+					}
+					stack.push(new Frame(CONDITIONAL, t, 0, null));
+					level = OR_LEVEL;
+				}
+				if (!isFirstInExpression()) {
+					throw error(t, "Unable to parse the " + levelRules[level]);
+				}
+				stack.push(new Frame(BINARY, t, level, null));
+				while (isKind(UNARY_OPS)) {
+					stack.push(new Frame(UNARY, t, 0, scanner.kind(t)));
+					consume();
+				}
+				if (!isFirstInPrimary()) {
+					throw error(t, "Unable to parse the " + levelRules[UNARY_LEVEL]);
+				}
+				while (assertTokenKind(AT)) {
+					stack.push(new Frame(ARG, t, 0, null));
+					consume();
+				}
+				if (assertTokenKind(LPAREN)) {
+					stack.push(new Frame(PAREN, t, 0, null));
+				} else if (assertTokenKind(LPIXEL)) {
+					stack.push(new Frame(PIXEL_CONSTRUCTOR, t, 0, null));
+				} else {
+					return leaf();
+				}
+				consume();
+				level = 0;
+			}
+		}
+
+		/**
+		 * Adds the node of a primary that is a single token: INTLIT | IDENT | STRINGLIT | KW_X | KW_Y | CONSTANT
+		 */
+		private int leaf() throws SyntaxException, LexicalException {
+			int first = t;
+			return switch (scanner.kind(t)) {
+				case INTLIT -> ast.add(EXPR_INT_LIT, first, NONE, scanner.intVal(consume()), NONE, NONE, NONE);
+				case IDENT, KW_X, KW_Y -> ast.add(EXPR_VAR, first, ast.string(scanner.getText(consume())), 0, NONE,
+						NONE, NONE);
+				case STRINGLIT -> ast.add(EXPR_STRING_LIT, first, ast.string(scanner.getText(consume())), 0, NONE,
+						NONE, NONE);
+				case CONST -> ast.add(EXPR_CONST, first, ast.string(scanner.getText(t)), scanner.intVal(consume()),
+						NONE, NONE, NONE);
+				default -> throw error(t, "Unable to parse the primary");
+			};
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package cop5556fa20;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import cop5556fa20.AST.Program;
+import cop5556fa20.TypeCheckVisitor.TypeException;
+import cop5556fa20.runtime.ExecutionContext;
+
+class FlatASTTest {
+
+	static final boolean doPrint = false;
+	private void show(Object input) {
+		if (doPrint) {
+			System.out.println(input.toString());
+		}
+	}
+
+	static final String input = """
+			int n = @0 + 1;
+			string s = "ab" + @1;
+			image[20,10] a;
+			image b <- "missing.png";
+			image c = a;
+			a = *[X,Y]: X != Y & !(Y > 3) : <<X * n, Y, 3>>;
+			int k = a[4,2]#red + a[3,3] - (n > 5 ? 100 / n : -1) + a#width + Z + q;
+			k -> screen;
+			s -> screen;
+			a -> screen[+k, -k % 2];
+			b <- s;
+			b -> "out.png";
+			n = -(n) * (((n)));
+			""";
+
+	@Test
+	public void buildsTheProgramOfParser() throws Exception {
+		FlatAST ast = FlatAST.parse(new Scanner(input).scan());
+		Program program = ast.toProgram();
+		show(program);
+		assertEquals(new Parser(new Scanner(input).scan()).parse(), program);
+		assertEquals(13, ast.itemCount());
+		// The subtree of an expression starts at its leftmost leaf
+		assertEquals(FlatAST.EXPR_VAR, ast.kind(ast.start(ast.child(ast.item(6), 0))));
+		assertEquals("a", ast.name(ast.start(ast.child(ast.item(6), 0))));
+
+		assertEquals(program.decOrStatement().get(5), ast.toStatementLoop(ast.item(5)));
+
+		assertEquals(new Parser(new Scanner("").scan()).parse(), FlatAST.parse(new Scanner("").scan()).toProgram());
+		assertThrows(IllegalArgumentException.class, () -> FlatAST.parse(new Scanner(input).scanOnDemand()));
+	}
+
+	@Test
+	public void parsesDeeplyNestedExpressions() throws Exception {
+		int depth = 100000;
+		String deep = "int a = " + "-(".repeat(depth) + "1" + ")".repeat(depth) + " + <<" + "a ? 1 : ".repeat(depth)
+				+ "2, @@0, 0>>#red;";
+		// The default stack of a thread is too small for a recursive parser
+		Thread thread = new Thread(null, () -> {
+			try {
+				FlatAST ast = FlatAST.parse(new Scanner(deep).scan());
+				int e = ast.child(ast.item(0), 0);
+				assertEquals(FlatAST.EXPR_BINARY, ast.kind(e));
+				int unary = ast.child(e, 0);
+				for (int i = 0; i < depth; i++) {
+					assertEquals(FlatAST.EXPR_UNARY, ast.kind(unary));
+					unary = ast.child(unary, 0);
+				}
+				assertEquals(1, ast.value(unary));
+				int hash = ast.child(e, 1);
+				assertEquals("red", ast.name(hash));
+				int conditional = ast.child(ast.child(hash, 0), 0);
+				for (int i = 0; i < depth; i++) {
+					assertEquals(FlatAST.EXPR_CONDITIONAL, ast.kind(conditional));
+					conditional = ast.child(conditional, 2);
+				}
+				assertEquals(2, ast.value(conditional));
+				int arg = ast.child(ast.child(hash, 0), 1);
+				assertEquals(FlatAST.EXPR_ARG, ast.kind(ast.child(arg, 0)));
+				assertEquals(0, ast.start(e));
+				assertEquals(ast.size() - 2, e);
+			} catch (Exception e) {
+				throw new AssertionError(e);
+			}
+		}, "deep nesting", 1 << 16);
+		Throwable[] failure = new Throwable[1];
+		thread.setUncaughtExceptionHandler((t, e) -> failure[0] = e);
+		thread.start();
+		thread.join();
+		if (failure[0] != null) {
+			throw new AssertionError(failure[0]);
+		}
+	}
+
+	@Test
+	public void reportsTheErrorsOfParser() throws Exception {
+		String[] texts = { " ", ";", "a", "1", "=", " + ", "(", ")", "[", "]", ",", "?", ":", "#", "<<", ">>", "@",
+				"int", "image", "*", "screen", "->", "<-", "\"s\"" };
+		Random random = new Random(5556);
+		for (int i = 0; i < 2000; i++) {
+			int offset = random.nextInt(input.length() + 1);
+			int removed = Math.min(random.nextInt(4), input.length() - offset);
+			String edited = input.substring(0, offset) + texts[random.nextInt(texts.length)]
+					+ input.substring(offset + removed);
+			Exception expected = null;
+			Program program = null;
+			try {
+				program = new Parser(new Scanner(edited).scan()).parse();
+			} catch (Exception e) {
+				expected = e;
+			}
+			if (expected == null) {
+				assertEquals(program, FlatAST.parse(new Scanner(edited).scan()).toProgram(), edited);
+			} else {
+				Exception e = assertThrows(expected.getClass(), () -> FlatAST.parse(new Scanner(edited).scan()),
+						edited);
+				assertEquals(expected.getMessage(), e.getMessage(), edited);
+			}
+		}
+	}
+
+	@Test
+	public void typeChecksLikeTheVisitor() throws Exception {
+		String checked = input.replace(" + q", "");
+		Program program = new Parser(new Scanner(checked).scan()).parse();
+		program.visit(new TypeCheckVisitor(), null);
+		FlatAST ast = FlatAST.parse(new Scanner(checked).scan());
+		new TypeCheckVisitor().check(ast);
+		// The strings of the nodes show their types and the declarations of the statements
+		assertEquals(program.toString(), ast.toProgram().toString());
+
+		String[] errors = { input, "int a = 1; int a = 2;", "string s = @0 + 1;", "image b; b = *[X,Y]:: 1 + \"s\";",
+				"int a = 1 == 1 ? 2 : \"3\";", "image b; int c = b#red;", "int c = <<1, 2, 3>>#blue + !c;",
+				"string s; s -> screen[1, 2];", "int a; a <- \"f\";", "int b = (1 < 2) + 1;" };
+		for (String error : errors) {
+			TypeException expected = assertThrows(TypeException.class,
+					() -> new Parser(new Scanner(error).scan()).parse().visit(new TypeCheckVisitor(), null));
+			TypeException e = assertThrows(TypeException.class,
+					() -> new TypeCheckVisitor().check(FlatAST.parse(new Scanner(error).scan())));
+			assertEquals(expected.toString(), e.toString(), error);
+		}
+	}
+
+	@Test
+	public void generatesTheCodeOfTheVisitor() throws Exception {
+		String program = """
+				int n = @0 + 1;
+				string s = "ab" + @1;
+				image[20,10] a;
+				a = *[X,Y]: X != Y : <<X * n, Y, 3>>;
+				int k = a[4,2]#red + a[3,3] - (n > 5 ? 100 / n : -1) + a#width;
+				k -> screen;
+				s -> screen;
+				string t = "abc";
+				int same = s == t ? 1 : 0;
+				same -> screen;
+				""";
+		Program visited = new Parser(new Scanner(program).scan()).parse();
+		visited.visit(new TypeCheckVisitor(), null);
+		byte[] expected = (byte[]) visited.visit(codeGenerator(), null);
+
+		FlatAST ast = FlatAST.parse(new Scanner(program).scan());
+		new TypeCheckVisitor().check(ast);
+		byte[] bytecode = codeGenerator().compile(ast);
+		show(CodeGenUtils.bytecodeToString(bytecode));
+		assertArrayEquals(expected, bytecode);
+
+		Class<?> testClass = CodeGenUtils.loadClass("FlatProgram", bytecode);
+		ExecutionContext context = new ExecutionContext();
+		testClass.getMethod("run", String[].class, ExecutionContext.class)
+				.invoke(testClass.getConstructor().newInstance(), new String[] { "6", "c" }, context);
+		assertEquals(List.of(4 * 7 + 0 - 100 / 7 + 20, "abc", 0), context.getLog());
+	}
+
+	@Test
+	public void generatesTheLoopsOfTheVisitor() throws Exception {
+		// Parallel loops are the ones the LoopDependenceAnalysis finds order independent
+		String program = """
+				image[20,10] a;
+				image b = a;
+				image c;
+				a = *[X,Y]:: X * Y;
+				b = *[X,Y]: X > 0 : a[X - 1,Y] + 1;
+				c = *[X,Y]:: b[X,Y] + a#width;
+				image[5,5] d;
+				d = *[X,Y]: X < 2 : c[X,Y] + d#height;
+				image e;
+				e = a;
+				e = *[X,Y]:: b[X,Y];
+				int k = a[19,9] + c[3,3] + d[1,1] + e[2,2];
+				k -> screen;
+				""";
+		Program visited = new Parser(new Scanner(program).scan()).parse();
+		visited.visit(new TypeCheckVisitor(), null);
+		byte[] expected = (byte[]) visited.visit(codeGenerator().setParallelLoops(true), null);
+
+		FlatAST ast = FlatAST.parse(new Scanner(program).scan());
+		new TypeCheckVisitor().check(ast);
+		assertEquals(visited.decOrStatement().get(5), ast.toStatementLoop(ast.item(5)));
+		assertArrayEquals(expected, codeGenerator().setParallelLoops(true).compile(ast));
+
+		// The options that compile(FlatAST) does not apply are rejected rather than ignored
+		assertThrows(IllegalStateException.class, () -> new CodeGenVisitorComplete("FlatProgram").compile(ast));
+		assertThrows(IllegalStateException.class, () -> codeGenerator().setLazyExecution(true).compile(ast));
+	}
+
+	/**
+	 * Returns a code generator with the options that compile(FlatAST) does not apply turned off.
+	 */
+	static CodeGenVisitorComplete codeGenerator() {
+		return new CodeGenVisitorComplete("FlatProgram").setFoldConstants(false).setEliminateDeadCode(false)
+				.setHoistLoopInvariants(false).setFuseLoops(false).setOutlineMethods(false).setInstancePrograms(true);
+	}
+}
@@ -0,0 +1,248 @@
+package cop5556fa20;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+import cop5556fa20.AST.ASTNode;
+import cop5556fa20.AST.Program;
+import cop5556fa20.Parser.SyntaxException;
+import cop5556fa20.Scanner.LexicalException;
+import cop5556fa20.Scanner.Token;
+
+/**
+ * Parses a program that is edited, scanning and parsing again after each edit only the declarations and
+ * statements that the edit may have changed.
+ *
+ * String literals and comments end at the end of their line, and no token starts with a semicolon, so the
+ * text after the semicolon that ends a declaration or statement is always scanned from the start state.  An
+ * edit can then only change the declarations and statements from the last semicolon before it to the first
+ * semicolon after it that ended a declaration or statement before the edit.  Only these are scanned and
+ * parsed; the following ones are reused.
+ *
+ * The tokens of the nodes hold absolute positions, but an edit does not copy the nodes it moves.  The
+ * positions of the declarations and statements are kept in int arrays, which an edit moves, and a node is
+ * copied with shifted tokens only when the list of the program returns it, see Items.get.  An edit then
+ * costs the scanning and parsing of the changed declarations and statements, and a copy of the arrays,
+ * wherever it is in the program.
+ */
+public class IncrementalParser {
+
+	/**
+	 * A declaration or statement of the program, with its position when its node was built: the position after
+	 * the semicolon that ends it, the line of the semicolon, and the line where it starts and the position
+	 * where that line starts.
+	 */
+	@SuppressWarnings("preview")
+	private record Item(ASTNode node, int end, int line, int firstLine, int firstLineStart) {
+	}
+
+	/**
+	 * The declarations and statements of a program, with their current positions: the position after the
+	 * semicolon that ends each one, the line of the semicolon and the position where that line starts.  The
+	 * first line of an item is the line of the semicolon of the one before it.  get returns the node of an item
+	 * moved to its current position, which replaces the item, so each node is copied at most once for the
+	 * positions of an edit.  The arrays of the Items of an edit are never changed otherwise, so a program
+	 * keeps its positions after the following edits.
+	 */
+	private static final class Items extends AbstractList<ASTNode> {
+		final Item[] items;
+		final int[] ends;
+		final int[] lines;
+		final int[] lineStarts;
+
+		Items(int size) {
+			items = new Item[size];
+			ends = new int[size];
+			lines = new int[size];
+			lineStarts = new int[size];
+		}
+
+		int firstLine(int i) {
+			return i == 0 ? 1 : lines[i - 1];
+		}
+
+		int firstLineStart(int i) {
+			return i == 0 ? 0 : lineStarts[i - 1];
+		}
+
+		@Override
+		public ASTNode get(int i) {
+			Item item = items[i];
+			if (item.end() != ends[i] || item.line() != lines[i] || item.firstLine() != firstLine(i)
+					|| item.firstLineStart() != firstLineStart(i)) {
+				Shift shift = new Shift(ends[i] - item.end(), item.firstLine(), lines[i] - item.line(),
+						firstLineStart(i));
+				item = new Item(shift.node(item.node()), ends[i], lines[i], firstLine(i), firstLineStart(i));
+				items[i] = item;
+			}
+			return item.node();
+		}
+
+		@Override
+		public int size() {
+			return items.length;
+		}
+
+		/**
+		 * Returns the number of items that end before pos.
+		 */
+		int countEndingBefore(int pos) {
+			int low = 0;
+			int high = ends.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (ends[mid] < pos) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+
+	private String source = "";
+	private Items items = new Items(0);
+	private Token eof;
+	private Program program;
+
+	/**
+	 * The number of declarations and statements parsed by the last edit.
+	 */
+	int reparsed;
+
+	public IncrementalParser(String source) throws LexicalException, SyntaxException {
+		edit(0, 0, source);
+	}
+
+	public String source() {
+		return source;
+	}
+
+	public Program program() {
+		return program;
+	}
+
+	/**
+	 * Replaces the removed chars of the source at offset by inserted, and returns the new program.  If the new
+	 * source has an error, the exception is thrown and the source and program are not changed.
+	 */
+	public Program edit(int offset, int removed, String inserted) throws LexicalException, SyntaxException {
+		if (offset < 0 || removed < 0 || offset + removed > source.length()) {
+			throw new IndexOutOfBoundsException("Edit of " + removed + " chars at " + offset + " of a source of "
+					+ source.length() + " chars");
+		}
+		String edited = source.substring(0, offset) + inserted + source.substring(offset + removed);
+		int delta = inserted.length() - removed;
+		int editEnd = offset + inserted.length();
+
+		// Scan from the end of the last declaration or statement that ends before the edit
+		int kept = items.countEndingBefore(offset + 1);
+		Scanner scanner = kept == 0 ? new Scanner(edited).scanOnDemand()
+				: new Scanner(edited).scanOnDemandFrom(items.ends[kept - 1], items.lines[kept - 1],
+						items.lineStarts[kept - 1]);
+		Parser parser = new Parser(scanner);
+		List<ASTNode> parsed = new ArrayList<>();
+		// The end, line and line start of each parsed declaration or statement
+		List<int[]> positions = new ArrayList<>();
+		int reused = items.size();
+		Token newEof = null;
+		while (true) {
+			if (!parser.hasDecOrStatement()) {
+				parser.matchEOF();
+				newEof = parser.current();
+				break;
+			}
+			ASTNode node = parser.decOrStatement();
+			int semi = parser.t - 1;
+			int end = scanner.pos(semi) + 1;
+			parsed.add(node);
+			positions.add(new int[] { end, scanner.line(semi), scanner.pos(semi) - scanner.posInLine(semi) + 1 });
+			if (end >= editEnd) {
+				// The text after end is the text after end - delta before the edit
+				int old = items.countEndingBefore(end - delta + 1) - 1;
+				if (old >= 0 && items.ends[old] == end - delta) {
+					reused = old + 1;
+					break;
+				}
+			}
+		}
+
+		int moved = items.size() - reused;
+		Items newItems = new Items(kept + parsed.size() + moved);
+		System.arraycopy(items.items, 0, newItems.items, 0, kept);
+		System.arraycopy(items.ends, 0, newItems.ends, 0, kept);
+		System.arraycopy(items.lines, 0, newItems.lines, 0, kept);
+		System.arraycopy(items.lineStarts, 0, newItems.lineStarts, 0, kept);
+		for (int i = 0; i < parsed.size(); i++) {
+			int n = kept + i;
+			int[] position = positions.get(i);
+			newItems.ends[n] = position[0];
+			newItems.lines[n] = position[1];
+			newItems.lineStarts[n] = position[2];
+			newItems.items[n] = new Item(parsed.get(i), position[0], position[1], newItems.firstLine(n),
+					newItems.firstLineStart(n));
+		}
+		if (newEof == null) {
+			// Positions move by delta and lines by the difference of the lines of the last reparsed item before
+			// and after the edit.  The start of a line only changes on the line of that item.
+			int first = kept + parsed.size();
+			int oldLine = items.lines[reused - 1];
+			int lineDelta = newItems.lines[first - 1] - oldLine;
+			int lineStart = newItems.lineStarts[first - 1];
+			System.arraycopy(items.items, reused, newItems.items, first, moved);
+			for (int i = 0; i < moved; i++) {
+				newItems.ends[first + i] = items.ends[reused + i] + delta;
+				newItems.lines[first + i] = items.lines[reused + i] + lineDelta;
+				newItems.lineStarts[first + i] = items.lines[reused + i] == oldLine ? lineStart
+						: items.lineStarts[reused + i] + delta;
+			}
+			newEof = new Shift(delta, oldLine, lineDelta, lineStart).rewrite(eof);
+		}
+
+		source = edited;
+		items = newItems;
+		eof = newEof;
+		reparsed = parsed.size();
+		program = new Program(items.isEmpty() ? eof : items.get(0).first(), items);
+		return program;
+	}
+
+	/**
+	 * Moves nodes by delta, and their lines by lineDelta.  Positions in line only change on oldLine, which
+	 * starts at lineStart after the move.
+	 */
+	private static class Shift extends ASTRewriter {
+		final int delta;
+		final int oldLine;
+		final int lineDelta;
+		final int lineStart;
+
+		Shift(int delta, int oldLine, int lineDelta, int lineStart) {
+			this.delta = delta;
+			this.oldLine = oldLine;
+			this.lineDelta = lineDelta;
+			this.lineStart = lineStart;
+		}
+
+		ASTNode node(ASTNode node) {
+			try {
+				return (ASTNode) node.visit(this, null);
+			} catch (Exception e) {
+				// Rebuilding nodes with other tokens throws no exception
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		protected Token rewrite(Token token) {
+			if (token == null) {
+				return token;
+			}
+			int pos = token.pos() + delta;
+			int posInLine = token.line() == oldLine ? pos - lineStart + 1 : token.posInLine();
+			return new Token(token.kind(), pos, token.length(), token.line() + lineDelta, posInLine);
+		}
+	}
+}
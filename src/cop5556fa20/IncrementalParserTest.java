@@ -0,0 +1,125 @@
+package cop5556fa20;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import cop5556fa20.AST.Program;
+
+class IncrementalParserTest {
+
+	static final boolean doPrint = false;
+	private void show(Object input) {
+		if (doPrint) {
+			System.out.println(input.toString());
+		}
+	}
+
+	/**
+	 * Parses the input scanning on demand, which like the incremental parser reports the first error.
+	 */
+	static Program parse(String input) throws Exception {
+		return new Parser(new Scanner(input).scanOnDemand()).parse();
+	}
+
+	static final String input = """
+			int a = 1;
+			image[10,20] b; // comment; with a semicolon
+			a = a + 2; string s = "x;y";\r
+			b = *[X,Y]:: <<X, Y, a>>;\r
+			b -> screen;
+			int c = a * 3;
+			""";
+
+	@Test
+	public void reparsesEditedStatements() throws Exception {
+		IncrementalParser parser = new IncrementalParser(input);
+		assertEquals(parse(input), parser.program());
+
+		// Change a literal of the last statement
+		Program program = parser.edit(input.indexOf("3;"), 1, "42");
+		assertEquals(1, parser.reparsed);
+		assertEquals(parse(parser.source()), program);
+
+		// Lengthen a literal of the first statement, which moves all the others
+		program = parser.edit(input.indexOf("1;"), 1, "100");
+		assertEquals(1, parser.reparsed);
+		assertEquals(parse(parser.source()), program);
+
+		// Insert a line before the statement on the line of another one
+		int s = parser.source().indexOf("string s");
+		program = parser.edit(s, 0, "int d = 5;\n");
+		// The statement after the inserted one starts on another line now
+		assertEquals(2, parser.reparsed);
+		assertEquals(parse(parser.source()), program);
+		assertEquals(4, program.decOrStatement().get(4).first().line());
+		assertEquals(1, program.decOrStatement().get(4).first().posInLine());
+
+		// Comment out the rest of a line
+		int a = parser.source().indexOf("a = a");
+		program = parser.edit(a, 0, "// ");
+		assertEquals(parse(parser.source()), program);
+		assertEquals(6, program.decOrStatement().size());
+	}
+
+	@Test
+	public void keepsProgramOnErrors() throws Exception {
+		IncrementalParser parser = new IncrementalParser(input);
+		Program program = parser.program();
+		assertThrows(Parser.SyntaxException.class, () -> parser.edit(input.indexOf("+ 2"), 1, ""));
+		assertThrows(Scanner.LexicalException.class, () -> parser.edit(input.indexOf("x;y"), 0, "\n"));
+		assertSame(program, parser.program());
+		assertEquals(input, parser.source());
+	}
+
+	@Test
+	public void matchesFullParseOnRandomEdits() throws Exception {
+		String[] texts = { "", " ", "\n", "\r\n", ";", "a", "1", "22", "=", " + ", "\"", "//", "int e = 7;",
+				"a = a;\n", "<<" };
+		Random random = new Random(5556);
+		IncrementalParser parser = new IncrementalParser(input);
+		int edits = 0;
+		for (int i = 0; i < 2000; i++) {
+			String source = parser.source();
+			int offset = random.nextInt(source.length() + 1);
+			int removed = Math.min(random.nextInt(4), source.length() - offset);
+			String inserted = texts[random.nextInt(texts.length)];
+			String edited = source.substring(0, offset) + inserted + source.substring(offset + removed);
+			Program expected;
+			try {
+				expected = parse(edited);
+			} catch (Exception e) {
+				Class<? extends Exception> exceptionClass = e.getClass();
+				assertThrows(exceptionClass, () -> parser.edit(offset, removed, inserted));
+				assertEquals(source, parser.source());
+				continue;
+			}
+			show(edited);
+			assertEquals(expected, parser.edit(offset, removed, inserted), edited);
+			edits++;
+		}
+		assertTrue(edits > 100);
+	}
+
+	@Test
+	public void movesReusedNodesWhenTheyAreRead() throws Exception {
+		IncrementalParser parser = new IncrementalParser(input);
+		Program first = parser.program();
+		String firstSource = parser.source();
+		// Several edits before the nodes are read, moving the following statements each time
+		parser.edit(input.indexOf("1;"), 1, "100");
+		parser.edit(0, 0, "\n\n");
+		parser.edit(parser.source().indexOf("b = *"), 0, "int d = 5; ");
+		Program program = parser.edit(parser.source().indexOf("100"), 3, "7");
+		assertEquals(1, parser.reparsed);
+		assertEquals(parse(parser.source()), program);
+		// A program keeps its positions after the following edits
+		assertEquals(parse(firstSource), first);
+
+		// The nodes of an edit that moves nothing are reused as they are
+		Program same = parser.edit(parser.source().indexOf("7"), 1, "8");
+		assertSame(program.decOrStatement().get(5), same.decOrStatement().get(5));
+	}
+}
@@ -0,0 +1,326 @@
+package cop5556fa20;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import cop5556fa20.AST.*;
+import cop5556fa20.runtime.ExecutionContext;
+import cop5556fa20.runtime.PLPImage;
+import cop5556fa20.runtime.PLPImageUtils;
+import cop5556fa20.runtime.PixelOps;
+
+/**
+ * Runs a type checked program by walking its AST, without generating a class, so a short program starts at once.
+ *
+ * Pixel loops over at least compileThreshold pixels are compiled instead: their code is generated by
+ * CodeGenVisitorComplete.compileLoop, loaded by CodeGenUtils.loadClass, and run with the current values of the
+ * variables they use.  The other declarations and statements, and smaller loops, are interpreted.
+ *
+ * Outputs go to the ExecutionContext given to the constructor.  An Interpreter runs one program once.
+ *
+ * Expressions return their value, boxed, and declarations and statements return null.
+ */
+public class Interpreter implements ASTVisitor {
+
+	/**
+	 * Default value of compileThreshold, in pixels: a 256x256 image.
+	 */
+	public static final long DEFAULT_COMPILE_THRESHOLD = 1 << 16;
+
+	// Name of the classes generated for compiled loops.  Each one is defined on its own, see CodeGenUtils.loadClass.
+	static final String LOOP_CLASS_NAME = "PLPLoop";
+
+	final String[] args;
+	final ExecutionContext context;
+
+	long compileThreshold = DEFAULT_COMPILE_THRESHOLD;
+
+	// Options of the code generator compiling the loops.
+	Consumer<CodeGenVisitorComplete> codeGenOptions = cv -> {};
+
+	Program program;
+	LoopDependenceAnalysis dependences;
+
+	// Values of the declared variables, and of X and Y in a pixel loop.
+	final Map<String, Object> variables = new HashMap<>();
+	int x;
+	int y;
+
+	// Number of pixel loops compiled so far.
+	int compiledLoops = 0;
+
+	public Interpreter(String[] args, ExecutionContext context) {
+		this.args = args;
+		this.context = context;
+	}
+
+	/**
+	 * Sets the number of pixels from which a loop is compiled.  Long.MAX_VALUE interprets every loop, and 0
+	 * compiles every loop.
+	 */
+	public Interpreter setCompileThreshold(long compileThreshold) {
+		this.compileThreshold = compileThreshold;
+		return this;
+	}
+
+	public Interpreter setCodeGenOptions(Consumer<CodeGenVisitorComplete> codeGenOptions) {
+		this.codeGenOptions = codeGenOptions;
+		return this;
+	}
+
+	/**
+	 * Runs the program with the given arguments, sending its outputs to context.
+	 */
+	public static void run(Program program, String[] args, ExecutionContext context) throws Exception {
+		program.visit(new Interpreter(args, context), null);
+	}
+
+	@Override
+	public Object visitProgram(Program program, Object arg) throws Exception {
+		this.program = program;
+		for (ASTNode node : program.decOrStatement()) {
+			node.visit(this, arg);
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitDecImage(DecImage decImage, Object arg) throws Exception {
+		Integer width = decImage.width() == Expression.empty ? null : (Integer) decImage.width().visit(this, arg);
+		Integer height = decImage.height() == Expression.empty ? null : (Integer) decImage.height().visit(this, arg);
+		Object source = decImage.source() == Expression.empty ? null : decImage.source().visit(this, arg);
+		variables.put(decImage.name(), PLPImageUtils.createImage(decImage.op(), width, height, source,
+				decImage.first().line(), decImage.first().posInLine()));
+		return null;
+	}
+
+	@Override
+	public Object visitDecVar(DecVar decVar, Object arg) throws Exception {
+		Object value;
+		if (decVar.expression() != Expression.empty) {
+			value = decVar.expression().visit(this, arg);
+		} else {
+			value = switch (decVar.type()) {
+				case Int -> Integer.valueOf(0);
+				case Boolean -> Boolean.FALSE;
+				default -> null;
+			};
+		}
+		variables.put(decVar.name(), value);
+		return null;
+	}
+
+	@Override
+	public Object visitStatementAssign(StatementAssign statementAssign, Object arg) throws Exception {
+		Object value = statementAssign.expression().visit(this, arg);
+		if (statementAssign.dec().type() == Type.Image) {
+			// assignImage updates the LHS image, so the variable itself is unchanged
+			PLPImageUtils.assignImage((PLPImage) variables.get(statementAssign.name()), (PLPImage) value,
+					statementAssign.first().line(), statementAssign.first().posInLine());
+		} else {
+			variables.put(statementAssign.name(), value);
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitStatementImageIn(StatementImageIn statementImageIn, Object arg) throws Exception {
+		Object source = statementImageIn.source().visit(this, arg);
+		PLPImageUtils.copyImage((PLPImage) variables.get(statementImageIn.name()), source);
+		return null;
+	}
+
+	@Override
+	public Object visitStatementLoop(StatementLoop statementLoop, Object arg) throws Exception {
+		PLPImage image = (PLPImage) variables.get(statementLoop.name());
+		int line = statementLoop.first().line();
+		int posInLine = statementLoop.first().posInLine();
+		image.ensureImageAllocated(line, posInLine);
+		int width = image.getWidthThrows(line, posInLine);
+		int height = image.getHeightThrows(line, posInLine);
+
+		if ((long) width * height >= compileThreshold) {
+			runCompiled(statementLoop);
+			return null;
+		}
+		for (x = 0; x < width; x++) {
+			for (y = 0; y < height; y++) {
+				if (statementLoop.cond() == Expression.empty || (Boolean) statementLoop.cond().visit(this, arg)) {
+					image.updatePixel(x, y, (Integer) statementLoop.e().visit(this, arg));
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Compiles the given loop and runs it with the current values of the variables it uses.
+	 */
+	private void runCompiled(StatementLoop statementLoop) throws Exception {
+		if (dependences == null) {
+			dependences = new LoopDependenceAnalysis(program);
+		}
+		CodeGenVisitorComplete cv = new CodeGenVisitorComplete(LOOP_CLASS_NAME);
+		codeGenOptions.accept(cv);
+		byte[] bytecode = cv.compileLoop(program, statementLoop);
+		Method method = CodeGenUtils.loadClass(LOOP_CLASS_NAME, bytecode)
+				.getMethod(CodeGenVisitorComplete.LOOP_METHOD, String[].class, Object[].class);
+		compiledLoops++;
+
+		List<Object> values = new ArrayList<>();
+		for (String name : dependences.variables(statementLoop)) {
+			if (!name.equals("X") && !name.equals("Y")) {
+				values.add(variables.get(name));
+			}
+		}
+		try {
+			method.invoke(null, args, values.toArray());
+		} catch (InvocationTargetException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+
+	@Override
+	public Object visitStatementOutFile(StatementOutFile statementOutFile, Object arg) throws Exception {
+		context.imageToFile((PLPImage) variables.get(statementOutFile.name()),
+				(String) statementOutFile.filename().visit(this, arg));
+		return null;
+	}
+
+	@Override
+	public Object visitStatementOutScreen(StatementOutScreen statementOutScreen, Object arg) throws Exception {
+		Object value = variables.get(statementOutScreen.name());
+		switch (statementOutScreen.dec().type()) {
+			case String -> context.stringToScreen((String) value);
+			case Int -> context.intToScreen((Integer) value);
+			case Image -> {
+				int xloc = statementOutScreen.X() == Expression.empty ? 0 : (Integer) statementOutScreen.X().visit(this, arg);
+				int yloc = statementOutScreen.Y() == Expression.empty ? 0 : (Integer) statementOutScreen.Y().visit(this, arg);
+				context.imageToScreen((PLPImage) value, xloc, yloc);
+			}
+			default ->
+				throw new UnsupportedOperationException("not yet implemented");
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitExprArg(ExprArg exprArg, Object arg) throws Exception {
+		String value = args[(Integer) exprArg.e().visit(this, arg)];
+		return exprArg.type() == Type.Int ? Integer.valueOf(Integer.parseInt(value)) : value;
+	}
+
+	@Override
+	public Object visitExprBinary(ExprBinary exprBinary, Object arg) throws Exception {
+		Object left = exprBinary.e0().visit(this, arg);
+		Object right = exprBinary.e1().visit(this, arg);
+		Type type = exprBinary.e0().type();
+
+		return switch (exprBinary.op()) {
+			case AND -> (Boolean) left & (Boolean) right;
+			case OR -> (Boolean) left | (Boolean) right;
+			// Strings are compared by reference, like the generated code does
+			case EQ -> type == Type.String ? left == right : left.equals(right);
+			case NEQ -> type == Type.String ? left != right : !left.equals(right);
+			case LT -> (Integer) left < (Integer) right;
+			case GT -> (Integer) left > (Integer) right;
+			case LE -> (Integer) left <= (Integer) right;
+			case GE -> (Integer) left >= (Integer) right;
+			case PLUS -> type == Type.Int ? (Object) ((Integer) left + (Integer) right) : ((String) left).concat((String) right);
+			case MINUS -> (Integer) left - (Integer) right;
+			case STAR -> (Integer) left * (Integer) right;
+			case DIV -> (Integer) left / (Integer) right;
+			case MOD -> (Integer) left % (Integer) right;
+			default ->
+				throw new UnsupportedOperationException("Operator " + exprBinary.op() + " not supported in binary expression");
+		};
+	}
+
+	@Override
+	public Object visitExprConditional(ExprConditional exprConditional, Object arg) throws Exception {
+		return (Boolean) exprConditional.condition().visit(this, arg) ? exprConditional.trueCase().visit(this, arg)
+				: exprConditional.falseCase().visit(this, arg);
+	}
+
+	@Override
+	public Object visitExprConst(ExprConst exprConst, Object arg) throws Exception {
+		return exprConst.value();
+	}
+
+	@Override
+	public Object visitExprHash(ExprHash exprHash, Object arg) throws Exception {
+		Object value = exprHash.e().visit(this, arg);
+		if (exprHash.e().type() == Type.Image) {
+			PLPImage image = (PLPImage) value;
+			int line = exprHash.first().line();
+			int posInLine = exprHash.first().posInLine();
+			return exprHash.attr().equals("width") ? image.getWidthThrows(line, posInLine)
+					: image.getHeightThrows(line, posInLine);
+		}
+		int pixel = (Integer) value;
+		return switch (exprHash.attr()) {
+			case "red" -> PixelOps.getRed(pixel);
+			case "green" -> PixelOps.getGreen(pixel);
+			case "blue" -> PixelOps.getBlue(pixel);
+			default -> pixel;
+		};
+	}
+
+	@Override
+	public Object visitExprIntLit(ExprIntLit exprIntLit, Object arg) throws Exception {
+		return exprIntLit.value();
+	}
+
+	@Override
+	public Object visitExprPixelConstructor(ExprPixelConstructor exprPixelConstructor, Object arg) throws Exception {
+		return PixelOps.makePixel((Integer) exprPixelConstructor.redExpr().visit(this, arg),
+				(Integer) exprPixelConstructor.greenExpr().visit(this, arg),
+				(Integer) exprPixelConstructor.blueExpr().visit(this, arg));
+	}
+
+	@Override
+	public Object visitExprPixelSelector(ExprPixelSelector exprPixelSelector, Object arg) throws Exception {
+		PLPImage image = (PLPImage) exprPixelSelector.image().visit(this, arg);
+		int pixelX = (Integer) exprPixelSelector.X().visit(this, arg);
+		int pixelY = (Integer) exprPixelSelector.Y().visit(this, arg);
+		return image.selectPixel(pixelX, pixelY);
+	}
+
+	@Override
+	public Object visitExprStringLit(ExprStringLit exprStringLit, Object arg) throws Exception {
+		// Literals are constants of the generated classes, so equal literals are the same String
+		return exprStringLit.text().intern();
+	}
+
+	@Override
+	public Object visitExprUnary(ExprUnary exprUnary, Object arg) throws Exception {
+		Object value = exprUnary.e().visit(this, arg);
+		return switch (exprUnary.op()) {
+			case MINUS -> -(Integer) value;
+			case EXCL -> !(Boolean) value;
+			default -> value;
+		};
+	}
+
+	@Override
+	public Object visitExprVar(ExprVar exprVar, Object arg) throws Exception {
+		String name = exprVar.name();
+		if (exprVar.type() == Type.Int && name.equals("X")) {
+			return x;
+		}
+		if (exprVar.type() == Type.Int && name.equals("Y")) {
+			return y;
+		}
+		return variables.get(name);
+	}
+
+	@Override
+	public Object visitExprEmpty(ExprEmpty exprEmpty, Object arg) throws Exception {
+		return null;
+	}
+}
@@ -0,0 +1,76 @@
+package cop5556fa20;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import cop5556fa20.AST.Program;
+import cop5556fa20.runtime.ExecutionContext;
+import cop5556fa20.runtime.PLPImage;
+
+class InterpreterTest {
+
+	static final boolean doPrint = true;
+	private void show(Object input) {
+		if (doPrint) {
+			System.out.println(input.toString());
+		}
+	}
+
+	/**
+	 * Parses, type checks and runs the input with the given interpreter, and returns it.
+	 */
+	Interpreter interpret(String input, Interpreter interpreter) throws Exception {
+		show(input);
+		Program program = new Parser(new Scanner(input).scan()).parse();
+		program.visit(new TypeCheckVisitor(), null);
+		program.visit(interpreter, null);
+		return interpreter;
+	}
+
+	@Test
+	public void interpretsPrograms() throws Exception {
+		String input = """
+				int n = @0 + 1;
+				string s = "ab" + @1;
+				image[20,10] a;
+				a = *[X,Y]: X != Y : <<X * n, Y, 3>>;
+				int k = a[4,2]#red + a[3,3] - (n > 5 ? 100 / n : -1);
+				k -> screen;
+				s -> screen;
+				int same = s == "abc" ? 1 : 0;
+				string t = "abc";
+				int literals = t == "abc" ? 1 : 0;
+				""";
+		ExecutionContext context = new ExecutionContext();
+		Interpreter interpreter = interpret(input, new Interpreter(new String[] { "6", "c" }, context));
+		assertEquals(List.of(4 * 7 + 0 - 100 / 7, "abc"), context.getLog());
+		assertEquals(0, interpreter.compiledLoops);
+		// Strings compare by reference, like in generated code
+		assertEquals(0, interpreter.variables.get("same"));
+		assertEquals(1, interpreter.variables.get("literals"));
+	}
+
+	@Test
+	public void compilesLargeLoops() throws Exception {
+		String input = """
+				image[40,30] a;
+				image[10,10] b;
+				int n = @0;
+				a = *[X,Y]:: X * Y + n;
+				b = *[X,Y]:: a[X + 1, Y] + 1;
+				a = *[X,Y]: X > 0 : a[X - 1, Y] + 1;
+				""";
+		Interpreter interpreter = interpret(input,
+				new Interpreter(new String[] { "5" }, new ExecutionContext()).setCompileThreshold(40 * 30));
+		// Only the loops over a have enough pixels
+		assertEquals(2, interpreter.compiledLoops);
+		PLPImage a = (PLPImage) interpreter.variables.get("a");
+		PLPImage b = (PLPImage) interpreter.variables.get("b");
+		// The last loop reads the pixels it wrote, so it keeps the X-outer order
+		assertEquals(5 + 3, a.selectPixel(3, 2));
+		assertEquals(4 * 2 + 5 + 1, b.selectPixel(3, 2));
+	}
+}
@@ -0,0 +1,555 @@
+package cop5556fa20;
+
+import cop5556fa20.AST.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Dependence information for the pixel loops (StatementLoop) of a type checked program.
+ *
+ * A pixel loop may visit the pixels of its image in any order as long as its condition and expression
+ * never read the image being written at a coordinate other than [X,Y].  Image assignments
+ * (image b = a; and b = a;) make two variables share the same BufferedImage, so all images connected
+ * by an assignment are treated as a single image.
+ *
+ * Two consecutive pixel loops may run as a single traversal, each pixel being written by the first
+ * loop and then by the second, if neither reads the image written by the other at a coordinate other
+ * than [X,Y], and if the first one cannot throw an exception that the second one would preempt.
+ * If the second one reads the image of the first at [x,Y+c], for an int literal c, they may still run
+ * as a row pipeline, the second one computing each row once the rows it reads have been computed.
+ */
+public class LoopDependenceAnalysis implements ASTVisitor {
+
+	/**
+	 * A read of the pixels of the image variable named image.  x and y are the coordinate expressions,
+	 * or null if the pixels are not read through a pixel selector (e.g. a == b compares every pixel).
+	 */
+	@SuppressWarnings("preview")
+	public record PixelRead(String image, Expression x, Expression y) {
+
+		public boolean isAtXY() {
+			return isVar(x, "X") && isVar(y, "Y");
+		}
+
+		/**
+		 * Returns c if the pixels are read in row Y+c, for an int literal c, and null otherwise.
+		 */
+		public Integer rowOffset() {
+			if (isVar(y, "Y")) {
+				return 0;
+			}
+			if (y instanceof ExprBinary) {
+				ExprBinary binary = (ExprBinary) y;
+				if (binary.op() == Scanner.Kind.PLUS && isVar(binary.e0(), "Y") && binary.e1() instanceof ExprIntLit) {
+					return ((ExprIntLit) binary.e1()).value();
+				}
+				if (binary.op() == Scanner.Kind.PLUS && binary.e0() instanceof ExprIntLit && isVar(binary.e1(), "Y")) {
+					return ((ExprIntLit) binary.e0()).value();
+				}
+				if (binary.op() == Scanner.Kind.MINUS && isVar(binary.e0(), "Y") && binary.e1() instanceof ExprIntLit) {
+					return -((ExprIntLit) binary.e1()).value();
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * The pixel reads and the variables found in an expression, passed as arg while visiting it, and the
+	 * subexpressions left to visit, the next one first.  The visit methods of expressions push their
+	 * subexpressions instead of visiting them, so that the nesting of expressions is not limited by the size
+	 * of the thread's stack, see collect.
+	 */
+	private static class Uses {
+		final List<PixelRead> reads = new ArrayList<>();
+		final Set<String> variables = new LinkedHashSet<>();
+		final ArrayDeque<Expression> pending = new ArrayDeque<>();
+
+		// Pushed last to first, so that they are visited first to last
+		void push(Expression... subexpressions) {
+			for (int i = subexpressions.length - 1; i >= 0; i--) {
+				pending.push(subexpressions[i]);
+			}
+		}
+	}
+
+	// Union-find over the image names connected by image assignments.
+	private final Map<String, String> aliasParent = new HashMap<>();
+
+	// Images that are allocated, or can be allocated without failing, after the statements visited so far.
+	private final Set<String> sizedImages = new HashSet<>();
+
+	// Loops whose image is allocated, or can be allocated without failing, before the loop.
+	private final Set<StatementLoop> sizedLoops = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	public LoopDependenceAnalysis(Program program) throws Exception {
+		super();
+		program.visit(this, null);
+	}
+
+	/**
+	 * Analyzes the program of ast, type checked by TypeCheckVisitor.check(FlatAST), from its nodes rather than
+	 * from objects.  loops holds the object of the pixel loop of each item of the program that is one, and null
+	 * for the others: they are the loops that the other methods are then asked about.
+	 */
+	public LoopDependenceAnalysis(FlatAST ast, StatementLoop[] loops) {
+		super();
+		for (int i = 0; i < ast.itemCount(); i++) {
+			int node = ast.item(i);
+			String name = ast.name(node);
+			switch (ast.kind(node)) {
+				case FlatAST.DEC_IMAGE -> {
+					if (ast.op(node) == Scanner.Kind.ASSIGN) {
+						aliasImages(name, images(ast, ast.child(node, 2)));
+					}
+					if (ast.child(node, 2) != FlatAST.NONE
+							|| isAllocatable(constant(ast, ast.child(node, 0)), constant(ast, ast.child(node, 1)))) {
+						sizedImages.add(name);
+					}
+				}
+				case FlatAST.STATEMENT_ASSIGN -> {
+					if (ast.type(node) == Type.Image) {
+						aliasImages(name, images(ast, ast.child(node, 0)));
+						sizedImages.add(name);
+					}
+				}
+				case FlatAST.STATEMENT_IMAGE_IN -> sizedImages.add(name);
+				case FlatAST.STATEMENT_LOOP -> {
+					if (!sizedImages.add(name)) {
+						sizedLoops.add(loops[i]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns true if a and b may refer to the same BufferedImage.
+	 */
+	public boolean mayAlias(String a, String b) {
+		return find(a).equals(find(b));
+	}
+
+	/**
+	 * Returns true if name may share its BufferedImage with another image variable.
+	 */
+	public boolean isAliased(String name) {
+		return aliasParent.containsKey(name) || aliasParent.containsValue(name);
+	}
+
+	/**
+	 * Returns all the pixel reads in the given expression.
+	 */
+	public List<PixelRead> reads(Expression e) throws Exception {
+		return collect(e, new Uses()).reads;
+	}
+
+	/**
+	 * Returns all the pixel reads in the condition and the expression of the given loop.
+	 */
+	public List<PixelRead> reads(StatementLoop loop) throws Exception {
+		List<PixelRead> reads = reads(loop.cond());
+		reads.addAll(reads(loop.e()));
+		return reads;
+	}
+
+	/**
+	 * Returns the names of the variables used by the given expression, in order of first use.
+	 */
+	public Set<String> variables(Expression e) throws Exception {
+		return collect(e, new Uses()).variables;
+	}
+
+	/**
+	 * Returns the names of the variables used by the given loop, including its image and X and Y,
+	 * in order of first use.
+	 */
+	public Set<String> variables(StatementLoop loop) throws Exception {
+		Uses uses = new Uses();
+		uses.variables.add(loop.name());
+		collect(loop.cond(), uses);
+		collect(loop.e(), uses);
+		return uses.variables;
+	}
+
+	/**
+	 * Adds the pixel reads and the variables of e to uses, and returns uses.
+	 */
+	private Uses collect(Expression e, Uses uses) throws Exception {
+		uses.pending.push(e);
+		while (!uses.pending.isEmpty()) {
+			uses.pending.pop().visit(this, uses);
+		}
+		return uses;
+	}
+
+	/**
+	 * Returns true if the value written at [X,Y] does not depend on the values written
+	 * at any other pixel, so that the pixels may be visited in any order.
+	 */
+	public boolean isOrderIndependent(StatementLoop loop) throws Exception {
+		for (PixelRead read : reads(loop)) {
+			if (mayAlias(read.image(), loop.name()) && !read.isAtXY()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the image of the given loop is allocated when the loop starts, or has a declared size whose
+	 * width and height are positive constants.  The first loop over an image declared with a size allocates it,
+	 * which throws for a width or height <= 0, so only then the loop cannot fail before computing its first pixel.
+	 */
+	public boolean hasSizedImage(StatementLoop loop) {
+		return sizedLoops.contains(loop);
+	}
+
+	/**
+	 * Returns true if next may run in the same traversal as the loops of group, which run one after the other
+	 * at each pixel, provided that all the images written by these loops and read at [X,Y] by them have the
+	 * same size.  The loops that run before next must not throw an exception, other than for reading an image
+	 * of another size at [X,Y], as next might throw first otherwise.
+	 */
+	public boolean canFuse(List<StatementLoop> group, StatementLoop next) throws Exception {
+		if (!hasSizedImage(next)) {
+			return false;
+		}
+		for (StatementLoop loop : group) {
+			if (!hasSizedImage(loop) || mayThrow(loop.cond(), true) || mayThrow(loop.e(), true)) {
+				return false;
+			}
+			for (PixelRead read : reads(next)) {
+				if (mayAlias(read.image(), loop.name()) && !read.isAtXY()) {
+					return false;
+				}
+			}
+			for (PixelRead read : reads(loop)) {
+				if (mayAlias(read.image(), next.name()) && !read.isAtXY()) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of rows by which next must lag behind the first loop of group when the loops run as a
+	 * row pipeline, or -1 if they may not.  At step s of the pipeline, loop i of group computes the row
+	 * s - delays[i] of its image, then next computes the row s - delay.  Next may read the images written by the
+	 * group in rows Y+c, for int literals c, and the loops of the group may read the image of next in rows Y+c,
+	 * for c >= 0, that next has not written yet.  The conditions of canFuse on sizes and exceptions also apply.
+	 */
+	public int pipelineDelay(List<StatementLoop> group, List<Integer> delays, StatementLoop next) throws Exception {
+		if (!hasSizedImage(next) || !isOrderIndependent(next)) {
+			return -1;
+		}
+		int delay = 0;
+		for (int i = 0; i < group.size(); i++) {
+			StatementLoop loop = group.get(i);
+			if (!hasSizedImage(loop) || !isOrderIndependent(loop) || mayThrow(loop.cond(), true)
+					|| mayThrow(loop.e(), true)) {
+				return -1;
+			}
+			delay = Math.max(delay, delays.get(i));
+			for (PixelRead read : reads(next)) {
+				if (mayAlias(read.image(), loop.name())) {
+					Integer offset = read.rowOffset();
+					if (offset == null) {
+						return -1;
+					}
+					delay = Math.max(delay, delays.get(i) + offset);
+				}
+			}
+			for (PixelRead read : reads(loop)) {
+				if (mayAlias(read.image(), next.name())) {
+					Integer offset = read.rowOffset();
+					if (offset == null || offset < 0) {
+						return -1;
+					}
+				}
+			}
+		}
+		return delay;
+	}
+
+	/**
+	 * Returns true if evaluating e may throw an exception.
+	 */
+	public static boolean mayThrow(Expression e) {
+		return mayThrow(e, false);
+	}
+
+	/**
+	 * Returns true if evaluating e may throw an exception.  If xyReadsSafe, reads of image variables at [X,Y]
+	 * are assumed to be within bounds.
+	 */
+	public static boolean mayThrow(Expression e, boolean xyReadsSafe) {
+		ArrayDeque<Expression> stack = new ArrayDeque<>();
+		stack.push(e);
+		while (!stack.isEmpty()) {
+			Expression next = stack.pop();
+			if (throwsItself(next, xyReadsSafe)) {
+				return true;
+			}
+			for (Expression subexpression : ASTRewriter.subexpressions(next)) {
+				stack.push(subexpression);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if evaluating e may throw an exception once its subexpressions have been evaluated.
+	 * If xyReadsSafe, reads of image variables at [X,Y] are assumed to be within bounds.
+	 */
+	public static boolean throwsItself(Expression e, boolean xyReadsSafe) {
+		if (e instanceof ExprArg) {
+			return true;
+		}
+		if (e instanceof ExprPixelSelector) {
+			ExprPixelSelector selector = (ExprPixelSelector) e;
+			return !(xyReadsSafe && selector.image() instanceof ExprVar && isVar(selector.X(), "X")
+					&& isVar(selector.Y(), "Y"));
+		}
+		if (e instanceof ExprBinary) {
+			ExprBinary binary = (ExprBinary) e;
+			Type type = binary.e0().type();
+			return binary.op() == Scanner.Kind.DIV || binary.op() == Scanner.Kind.MOD || type == Type.Image
+					|| (binary.op() == Scanner.Kind.PLUS && type == Type.String);
+		}
+		if (e instanceof ExprHash) {
+			return ((ExprHash) e).e().type() == Type.Image;
+		}
+		return false;
+	}
+
+	static boolean isVar(Expression e, String name) {
+		return e instanceof ExprVar && ((ExprVar) e).name().equals(name);
+	}
+
+	@Override
+	public Object visitProgram(Program program, Object arg) throws Exception {
+		for (ASTNode node : program.decOrStatement()) {
+			node.visit(this, arg);
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitDecImage(DecImage decImage, Object arg) throws Exception {
+		if (decImage.op() == Scanner.Kind.ASSIGN) {
+			aliasImages(decImage.name(), decImage.source());
+		}
+		if (decImage.source() != Expression.empty
+				|| isAllocatable(constant(decImage.width()), constant(decImage.height()))) {
+			sizedImages.add(decImage.name());
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitDecVar(DecVar decVar, Object arg) throws Exception {
+		return null;
+	}
+
+	@Override
+	public Object visitStatementAssign(StatementAssign statementAssign, Object arg) throws Exception {
+		if (statementAssign.dec().type() == Type.Image) {
+			aliasImages(statementAssign.name(), statementAssign.expression());
+			sizedImages.add(statementAssign.name());
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitStatementImageIn(StatementImageIn statementImageIn, Object arg) throws Exception {
+		sizedImages.add(statementImageIn.name());
+		return null;
+	}
+
+	@Override
+	public Object visitStatementLoop(StatementLoop statementLoop, Object arg) throws Exception {
+		if (!sizedImages.add(statementLoop.name())) {
+			sizedLoops.add(statementLoop);
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitStatementOutFile(StatementOutFile statementOutFile, Object arg) throws Exception {
+		return null;
+	}
+
+	@Override
+	public Object visitStatementOutScreen(StatementOutScreen statementOutScreen, Object arg) throws Exception {
+		return null;
+	}
+
+	/*
+		Expressions add their pixel reads and variables to the Uses passed as arg, and push their subexpressions.
+	*/
+	@Override
+	public Object visitExprArg(ExprArg exprArg, Object arg) throws Exception {
+		((Uses) arg).push(exprArg.e());
+		return null;
+	}
+
+	@Override
+	public Object visitExprBinary(ExprBinary exprBinary, Object arg) throws Exception {
+		((Uses) arg).push(exprBinary.e0(), exprBinary.e1());
+		return null;
+	}
+
+	@Override
+	public Object visitExprConditional(ExprConditional exprConditional, Object arg) throws Exception {
+		((Uses) arg).push(exprConditional.condition(), exprConditional.trueCase(), exprConditional.falseCase());
+		return null;
+	}
+
+	@Override
+	public Object visitExprConst(ExprConst exprConst, Object arg) throws Exception {
+		return null;
+	}
+
+	@Override
+	public Object visitExprHash(ExprHash exprHash, Object arg) throws Exception {
+		// #width and #height of an image variable do not read its pixels
+		if (exprHash.e() instanceof ExprVar && exprHash.e().type() == Type.Image) {
+			((Uses) arg).variables.add(((ExprVar) exprHash.e()).name());
+			return null;
+		}
+		((Uses) arg).push(exprHash.e());
+		return null;
+	}
+
+	@Override
+	public Object visitExprIntLit(ExprIntLit exprIntLit, Object arg) throws Exception {
+		return null;
+	}
+
+	@Override
+	public Object visitExprPixelConstructor(ExprPixelConstructor exprPixelConstructor, Object arg) throws Exception {
+		((Uses) arg).push(exprPixelConstructor.redExpr(), exprPixelConstructor.greenExpr(),
+				exprPixelConstructor.blueExpr());
+		return null;
+	}
+
+	@Override
+	public Object visitExprPixelSelector(ExprPixelSelector exprPixelSelector, Object arg) throws Exception {
+		if (exprPixelSelector.image() instanceof ExprVar) {
+			String name = ((ExprVar) exprPixelSelector.image()).name();
+			((Uses) arg).reads.add(new PixelRead(name, exprPixelSelector.X(), exprPixelSelector.Y()));
+			((Uses) arg).variables.add(name);
+			((Uses) arg).push(exprPixelSelector.X(), exprPixelSelector.Y());
+		} else {
+			((Uses) arg).push(exprPixelSelector.image(), exprPixelSelector.X(), exprPixelSelector.Y());
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitExprStringLit(ExprStringLit exprStringLit, Object arg) throws Exception {
+		return null;
+	}
+
+	@Override
+	public Object visitExprUnary(ExprUnary exprUnary, Object arg) throws Exception {
+		((Uses) arg).push(exprUnary.e());
+		return null;
+	}
+
+	@Override
+	public Object visitExprVar(ExprVar exprVar, Object arg) throws Exception {
+		if (exprVar.type() == Type.Image) {
+			((Uses) arg).reads.add(new PixelRead(exprVar.name(), null, null));
+		}
+		((Uses) arg).variables.add(exprVar.name());
+		return null;
+	}
+
+	@Override
+	public Object visitExprEmpty(ExprEmpty exprEmpty, Object arg) throws Exception {
+		return null;
+	}
+
+	/*
+		All private methods
+	*/
+	/**
+	 * Returns the value of e if it is an int literal or a constant, and 0 otherwise.
+	 */
+	private static long constant(Expression e) {
+		if (e instanceof ExprIntLit) {
+			return ((ExprIntLit) e).value();
+		}
+		return e instanceof ExprConst ? ((ExprConst) e).value() : 0;
+	}
+
+	private static long constant(FlatAST ast, int e) {
+		if (e != FlatAST.NONE && (ast.kind(e) == FlatAST.EXPR_INT_LIT || ast.kind(e) == FlatAST.EXPR_CONST)) {
+			return ast.value(e);
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns true if a BufferedImage of the given size can be created: both are positive, and its pixels fit
+	 * in an int array.
+	 */
+	private static boolean isAllocatable(long width, long height) {
+		return width > 0 && height > 0 && width * height <= Integer.MAX_VALUE;
+	}
+
+	private void aliasImages(String name, Expression source) throws Exception {
+		List<String> images = new ArrayList<>();
+		for (PixelRead read : reads(source)) {
+			images.add(read.image());
+		}
+		aliasImages(name, images);
+	}
+
+	private void aliasImages(String name, List<String> images) {
+		for (String image : images) {
+			aliasParent.put(find(image), find(name));
+		}
+	}
+
+	/**
+	 * Returns the images of the pixel reads of the expression node of ast, like reads does for an object: the
+	 * image variables of its subtree, except the ones whose #width or #height it takes.  The node of an ExprHash
+	 * comes right after the node of its expression.
+	 */
+	private static List<String> images(FlatAST ast, int e) {
+		List<String> images = new ArrayList<>();
+		if (e == FlatAST.NONE) {
+			return images;
+		}
+		for (int n = ast.start(e); n <= e; n++) {
+			if (ast.kind(n) == FlatAST.EXPR_VAR && ast.type(n) == Type.Image
+					&& (n == e || ast.kind(n + 1) != FlatAST.EXPR_HASH)) {
+				images.add(ast.name(n));
+			}
+		}
+		return images;
+	}
+
+	private String find(String name) {
+		String parent = aliasParent.getOrDefault(name, name);
+		if (parent.equals(name)) {
+			return name;
+		}
+		String root = find(parent);
+		aliasParent.put(name, root);
+		return root;
+	}
+}
@@ -0,0 +1,109 @@
+package cop5556fa20;
+
+import cop5556fa20.AST.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Groups consecutive pixel loops that may run as a single traversal of their images, see
+ * LoopDependenceAnalysis.canFuse, or as a row pipeline, see LoopDependenceAnalysis.pipelineDelay.
+ *
+ * Variable declarations between two loops, such as the ones added by LoopInvariantCodeMotion, do not
+ * prevent fusion if they may be evaluated before the first loop of the group: they must not use the
+ * images written by the group, and must not throw an exception unless no loop of the group can.
+ */
+public class LoopFusion {
+
+	/**
+	 * A declaration or statement of the program, or a group of loops, in the order they run.
+	 * Exactly one of node and loops is null.  delays is null if the loops run in a single traversal,
+	 * and gives the row delay of each loop if they run as a row pipeline.
+	 */
+	@SuppressWarnings("preview")
+	public record Step(ASTNode node, List<StatementLoop> loops, List<Integer> delays) {
+	}
+
+	/**
+	 * Returns the steps running the given declarations and statements.  Loops are grouped into row pipelines
+	 * only if pipelineRows.
+	 */
+	public static List<Step> schedule(List<ASTNode> decOrStatement, LoopDependenceAnalysis dependences,
+			boolean pipelineRows) throws Exception {
+		List<Step> steps = new ArrayList<>();
+		int i = 0;
+		while (i < decOrStatement.size()) {
+			ASTNode node = decOrStatement.get(i++);
+			if (!(node instanceof StatementLoop)) {
+				steps.add(new Step(node, null, null));
+				continue;
+			}
+
+			List<StatementLoop> group = new ArrayList<>();
+			group.add((StatementLoop) node);
+			List<Integer> delays = null;
+			List<DecVar> moved = new ArrayList<>();
+			// Declarations following the last loop of the group, that move before it if another loop joins
+			List<DecVar> pending = new ArrayList<>();
+			while (i < decOrStatement.size()) {
+				ASTNode next = decOrStatement.get(i);
+				if (next instanceof DecVar && canMoveBefore((DecVar) next, group, dependences)) {
+					pending.add((DecVar) next);
+					i++;
+					continue;
+				}
+				if (!(next instanceof StatementLoop)) {
+					break;
+				}
+				StatementLoop loop = (StatementLoop) next;
+				if (delays != null || !dependences.canFuse(group, loop)) {
+					List<Integer> groupDelays = delays != null ? delays : Collections.nCopies(group.size(), 0);
+					int delay = pipelineRows ? dependences.pipelineDelay(group, groupDelays, loop) : -1;
+					if (delay < 0) {
+						break;
+					}
+					delays = new ArrayList<>(groupDelays);
+					delays.add(delay);
+				}
+				group.add(loop);
+				moved.addAll(pending);
+				pending.clear();
+				i++;
+			}
+			i -= pending.size();
+
+			for (DecVar decVar : moved) {
+				steps.add(new Step(decVar, null, null));
+			}
+			steps.add(new Step(null, group, delays));
+		}
+		return steps;
+	}
+
+	/**
+	 * Returns true if decVar may run before the loops of group.  If it may throw, none of them may: their
+	 * conditions and expressions must not throw, and their images must not fail to be allocated, see
+	 * LoopDependenceAnalysis.hasSizedImage.
+	 */
+	private static boolean canMoveBefore(DecVar decVar, List<StatementLoop> group, LoopDependenceAnalysis dependences)
+			throws Exception {
+		for (String name : dependences.variables(decVar.expression())) {
+			for (StatementLoop loop : group) {
+				if (dependences.mayAlias(name, loop.name())) {
+					return false;
+				}
+			}
+		}
+		if (!LoopDependenceAnalysis.mayThrow(decVar.expression())) {
+			return true;
+		}
+		for (StatementLoop loop : group) {
+			if (!dependences.hasSizedImage(loop) || LoopDependenceAnalysis.mayThrow(loop.cond())
+					|| LoopDependenceAnalysis.mayThrow(loop.e())) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
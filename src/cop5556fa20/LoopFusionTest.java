@@ -0,0 +1,126 @@
+package cop5556fa20;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import cop5556fa20.AST.*;
+
+class LoopFusionTest {
+
+	static final boolean doPrint = true;
+	private void show(Object input) {
+		if (doPrint) {
+			System.out.println(input.toString());
+		}
+	}
+
+	/**
+	 * Parses and type checks the input, and returns the steps running its declarations and statements.
+	 */
+	List<LoopFusion.Step> schedule(String input) throws Exception {
+		show(input);
+		Program program = new Parser(new Scanner(input).scan()).parse();
+		program.visit(new TypeCheckVisitor(), null);
+		List<LoopFusion.Step> steps = LoopFusion.schedule(program.decOrStatement(), new LoopDependenceAnalysis(program), true);
+		for (LoopFusion.Step step : steps) {
+			show(step.loops() != null ? step.loops() : step.node());
+		}
+		return steps;
+	}
+
+	@Test
+	public void fusesLoopsReadingAtXY() throws Exception {
+		String input = """
+				image[50,40] a;
+				image[50,40] b;
+				a = *[X,Y]:: X * Y;
+				b = *[X,Y]:: a[X,Y] + 1;
+				a = *[X,Y]: X > Y : b[X,Y] * 2;
+				""";
+		List<LoopFusion.Step> steps = schedule(input);
+		assertEquals(3, steps.size());
+		assertEquals(3, steps.get(2).loops().size());
+		assertNull(steps.get(2).delays());
+	}
+
+	@Test
+	public void keepsLoopsReadingOtherPixels() throws Exception {
+		String input = """
+				image[20,20] a;
+				image[20,20] b;
+				a = *[X,Y]:: X;
+				b = *[X,Y]:: a[X, (Y + 1) % 20];
+				""";
+		List<LoopFusion.Step> steps = schedule(input);
+		assertEquals(4, steps.size());
+		assertEquals(1, steps.get(2).loops().size());
+		assertEquals(1, steps.get(3).loops().size());
+	}
+
+	@Test
+	public void pipelinesLoopsReadingOtherRows() throws Exception {
+		String input = """
+				image[20,20] a;
+				image[20,20] b;
+				image[20,20] c;
+				a = *[X,Y]:: X;
+				b = *[X,Y]:: a[X,Y] + 1;
+				c = *[X,Y]: X > 0 & Y > 0 : a[X,Y+2] + b[X-1,Y-1];
+				""";
+		List<LoopFusion.Step> steps = schedule(input);
+		assertEquals(4, steps.size());
+		assertEquals(3, steps.get(3).loops().size());
+		assertEquals(List.of(0, 0, 2), steps.get(3).delays());
+	}
+
+	@Test
+	public void movesDeclarationsBeforeGroup() throws Exception {
+		String input = """
+				image[20,20] a;
+				image[20,20] b;
+				a = *[X,Y]:: X;
+				int n = @0 + 1;
+				b = *[X,Y]:: a[X,Y] * n;
+				int m = a[0,0];
+				""";
+		List<LoopFusion.Step> steps = schedule(input);
+		assertEquals(5, steps.size());
+		assertEquals("n", ((DecVar) steps.get(2).node()).name());
+		assertEquals(2, steps.get(3).loops().size());
+		assertEquals("m", ((DecVar) steps.get(4).node()).name());
+	}
+
+	@Test
+	public void keepsLoopOfUnsizedImage() throws Exception {
+		String input = """
+				image a;
+				image[10,10] b;
+				b = *[X,Y]:: X;
+				a = *[X,Y]:: Y;
+				""";
+		List<LoopFusion.Step> steps = schedule(input);
+		assertEquals(4, steps.size());
+	}
+
+	@Test
+	public void keepsDeclarationsAfterLoopsThatMayFailToAllocate() throws Exception {
+		// Allocating an image declared with a size <= 0 throws before the first pixel
+		for (String size : List.of("0,5", "-1,5", "w,5")) {
+			String input = """
+					int w = 4;
+					image[%s] a;
+					image[4,4] b;
+					a = *[X,Y]:: 1;
+					int k = @5;
+					b = *[X,Y]:: a[X,Y];
+					""".formatted(size);
+			List<LoopFusion.Step> steps = schedule(input);
+			assertEquals(6, steps.size());
+			assertEquals("a", steps.get(3).loops().get(0).name());
+			assertEquals("k", ((DecVar) steps.get(4).node()).name());
+		}
+	}
+}
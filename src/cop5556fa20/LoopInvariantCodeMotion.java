@@ -0,0 +1,181 @@
+package cop5556fa20;
+
+import cop5556fa20.AST.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Moves the subexpressions of pixel loops that have the same value at every pixel out of the loop.
+ *
+ * A subexpression is loop invariant if it does not use X or Y and does not read the pixels of the
+ * image written by the loop.  Each maximal invariant subexpression is stored in a new variable,
+ * declared just before the loop, and replaced by a use of that variable.  The names of these
+ * variables contain a '$', so they cannot clash with the names of the program.
+ *
+ * Subexpressions that may throw an exception (@ arguments, / and %, #width of an image, ...) are
+ * only moved if the loop would evaluate them before anything else that may throw: they are part of
+ * the condition, or of the expression of a loop without condition, outside of a conditional expression,
+ * and the loop image is known to be allocated or to have a declared size.
+ */
+public class LoopInvariantCodeMotion extends ASTRewriter {
+
+	public static final String VARIABLE_PREFIX = "invariant$";
+
+	LoopDependenceAnalysis dependences;
+
+	int variableCount = 0;
+
+	// The loop being rewritten, and the declarations of the variables moved out of it.
+	StatementLoop loop = null;
+	List<ASTNode> hoisted;
+
+	// The subexpressions of the loop that are not invariant, and those that may throw an exception.
+	Set<Expression> variant;
+	Set<Expression> throwing;
+
+	// True while nothing that may throw an exception has been evaluated in the current iteration of the loop.
+	boolean anticipated;
+
+	// The true cases of the conditional expressions being rewritten, and the values of anticipated after their
+	// conditions.  Only one of the cases is evaluated, so nothing is anticipated in them.
+	Set<Expression> trueCases;
+	ArrayDeque<Boolean> anticipatedCases;
+
+	@Override
+	public Program rewrite(Program program) throws Exception {
+		dependences = new LoopDependenceAnalysis(program);
+		return super.rewrite(program);
+	}
+
+	@Override
+	protected void rewriteDecOrStatement(ASTNode node, List<ASTNode> decOrStatement) throws Exception {
+		if (node instanceof StatementLoop) {
+			loop = (StatementLoop) node;
+			hoisted = new ArrayList<>();
+			variant = Collections.newSetFromMap(new IdentityHashMap<>());
+			throwing = Collections.newSetFromMap(new IdentityHashMap<>());
+			analyze(loop.cond());
+			analyze(loop.e());
+			trueCases = Collections.newSetFromMap(new IdentityHashMap<>());
+			anticipatedCases = new ArrayDeque<>();
+			// Unless allocating its image may throw first, the loop evaluates its expression at the first pixel
+			anticipated = dependences.hasSizedImage(loop);
+			Expression cond = rewrite(loop.cond(), null);
+			if (cond != Expression.empty) {
+				anticipated = false;
+			}
+			Expression e = rewrite(loop.e(), null);
+			decOrStatement.addAll(hoisted);
+			if (cond == loop.cond() && e == loop.e()) {
+				decOrStatement.add(loop);
+			} else {
+				decOrStatement.add(withDec(new StatementLoop(loop.first(), loop.name(), cond, e), loop.dec()));
+			}
+			loop = null;
+			return;
+		}
+		super.rewriteDecOrStatement(node, decOrStatement);
+	}
+
+	@Override
+	protected Expression enter(Expression e, Object arg) throws Exception {
+		if (loop == null) {
+			return null;
+		}
+		if (trueCases.remove(e)) {
+			anticipatedCases.push(anticipated);
+			anticipated = false;
+		}
+		if (!variant.contains(e) && !isTrivial(e) && e.type() != Type.Image && (anticipated || !throwing.contains(e))) {
+			String name = VARIABLE_PREFIX + variableCount++;
+			hoisted.add(new DecVar(e.first(), e.type(), name, e));
+			return typed(new ExprVar(e.first(), name), e.type());
+		}
+		if (e instanceof ExprConditional) {
+			trueCases.add(((ExprConditional) e).trueCase());
+		}
+		return null;
+	}
+
+	@Override
+	protected void leave(Expression e, Expression result) {
+		// The subexpressions of result have already been evaluated
+		if (loop != null && LoopDependenceAnalysis.throwsItself(result, false)) {
+			anticipated = false;
+		}
+	}
+
+	@Override
+	public Object visitExprConditional(ExprConditional exprConditional, Object arg) throws Exception {
+		ExprConditional result = (ExprConditional) super.visitExprConditional(exprConditional, arg);
+		if (loop != null) {
+			anticipated = anticipatedCases.pop() && !LoopDependenceAnalysis.mayThrow(result.trueCase())
+					&& !LoopDependenceAnalysis.mayThrow(result.falseCase());
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the subexpressions of root that are not loop invariant to variant, and those that may throw an
+	 * exception to throwing.  A subexpression is not invariant if it uses X or Y or reads the pixels of the
+	 * image written by the loop, or if one of its subexpressions is not invariant.
+	 */
+	private void analyze(Expression root) {
+		// Subexpressions in preorder, so that each one comes after the expression containing it
+		List<Expression> preorder = new ArrayList<>();
+		ArrayDeque<Expression> stack = new ArrayDeque<>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			Expression e = stack.pop();
+			preorder.add(e);
+			// #width and #height of an image variable do not read its pixels
+			if (!(e instanceof ExprHash && ((ExprHash) e).e() instanceof ExprVar && ((ExprHash) e).e().type() == Type.Image)) {
+				for (Expression subexpression : subexpressions(e)) {
+					stack.push(subexpression);
+				}
+			}
+		}
+		for (int i = preorder.size() - 1; i >= 0; i--) {
+			Expression e = preorder.get(i);
+			boolean isVariant = LoopDependenceAnalysis.isVar(e, "X") || LoopDependenceAnalysis.isVar(e, "Y")
+					|| readsLoopImage(e);
+			boolean mayThrow = LoopDependenceAnalysis.throwsItself(e, false);
+			for (Expression subexpression : subexpressions(e)) {
+				isVariant |= variant.contains(subexpression);
+				mayThrow |= throwing.contains(subexpression);
+			}
+			if (isVariant) {
+				variant.add(e);
+			}
+			if (mayThrow) {
+				throwing.add(e);
+			}
+		}
+	}
+
+	/**
+	 * Returns true if e itself, not counting its subexpressions, reads the pixels of the image of the loop.
+	 */
+	private boolean readsLoopImage(Expression e) {
+		String image = null;
+		if (e instanceof ExprPixelSelector && ((ExprPixelSelector) e).image() instanceof ExprVar) {
+			image = ((ExprVar) ((ExprPixelSelector) e).image()).name();
+		} else if (e instanceof ExprVar && e.type() == Type.Image) {
+			image = ((ExprVar) e).name();
+		}
+		return image != null && dependences.mayAlias(image, loop.name());
+	}
+
+	/**
+	 * Returns true for expressions that are as cheap to evaluate as a variable.
+	 */
+	private static boolean isTrivial(Expression e) {
+		return e instanceof ExprVar || e instanceof ExprIntLit || e instanceof ExprStringLit
+				|| e instanceof ExprConst || e instanceof ExprEmpty;
+	}
+}
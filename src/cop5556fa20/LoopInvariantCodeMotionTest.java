@@ -0,0 +1,116 @@
+package cop5556fa20;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import cop5556fa20.AST.*;
+
+class LoopInvariantCodeMotionTest {
+
+	static final boolean doPrint = true;
+	private void show(Object input) {
+		if (doPrint) {
+			System.out.println(input.toString());
+		}
+	}
+
+	/**
+	 * Parses, type checks and rewrites the input, and returns the declarations and statements of the result.
+	 */
+	List<ASTNode> hoist(String input) throws Exception {
+		show(input);
+		Program program = new Parser(new Scanner(input).scan()).parse();
+		program.visit(new TypeCheckVisitor(), null);
+		Program result = new LoopInvariantCodeMotion().rewrite(program);
+		for (ASTNode node : result.decOrStatement()) {
+			show(node);
+		}
+		return result.decOrStatement();
+	}
+
+	static String invariant(int n) {
+		return LoopInvariantCodeMotion.VARIABLE_PREFIX + n;
+	}
+
+	@Test
+	public void hoistsArgAndHash() throws Exception {
+		String input = """
+				image[30,20] a;
+				image[30,20] b;
+				b = *[X,Y]:: <<@0 * 2, X + @1, a#width - Y>>;
+				""";
+		List<ASTNode> nodes = hoist(input);
+		assertEquals(6, nodes.size());
+		assertEquals(invariant(0), ((DecVar) nodes.get(2)).name());
+		assertTrue(((DecVar) nodes.get(2)).expression() instanceof ExprBinary);
+		assertTrue(((DecVar) nodes.get(3)).expression() instanceof ExprArg);
+		assertTrue(((DecVar) nodes.get(4)).expression() instanceof ExprHash);
+		ExprPixelConstructor e = (ExprPixelConstructor) ((StatementLoop) nodes.get(5)).e();
+		assertEquals(invariant(0), ((ExprVar) e.redExpr()).name());
+		assertEquals(Type.Int, e.redExpr().type());
+		assertEquals(invariant(1), ((ExprVar) ((ExprBinary) e.greenExpr()).e1()).name());
+		assertEquals(invariant(2), ((ExprVar) ((ExprBinary) e.blueExpr()).e0()).name());
+	}
+
+	@Test
+	public void keepsPixelsOfWrittenImage() throws Exception {
+		String input = """
+				image[30,20] a;
+				image b = a;
+				b = *[X,Y]:: a[2,2] + Y;
+				""";
+		List<ASTNode> nodes = hoist(input);
+		assertEquals(3, nodes.size());
+	}
+
+	@Test
+	public void hoistsBooleanCondition() throws Exception {
+		String input = """
+				image[30,20] a;
+				int n = 3;
+				a = *[X,Y]: n > 2 & X < 4 : Y;
+				""";
+		List<ASTNode> nodes = hoist(input);
+		assertEquals(4, nodes.size());
+		assertEquals(Type.Boolean, ((DecVar) nodes.get(2)).type());
+	}
+
+	@Test
+	public void keepsConditionallyEvaluatedExceptions() throws Exception {
+		String input = """
+				image[30,20] a;
+				int n = 0;
+				a = *[X,Y]: X < 5 : 100 / n + (n + 1);
+				a = *[X,Y]:: X < 0 ? 100 / n : X;
+				""";
+		List<ASTNode> nodes = hoist(input);
+		// Only n + 1, which cannot throw, is moved
+		assertEquals(5, nodes.size());
+		assertTrue(((DecVar) nodes.get(2)).expression() instanceof ExprBinary);
+		assertEquals(Scanner.Kind.PLUS, ((ExprBinary) ((DecVar) nodes.get(2)).expression()).op());
+	}
+
+	@Test
+	public void keepsExceptionsOfUnsizedImage() throws Exception {
+		String input = """
+				image a;
+				a = *[X,Y]:: @9;
+				""";
+		List<ASTNode> nodes = hoist(input);
+		assertEquals(2, nodes.size());
+	}
+
+	@Test
+	public void keepsExceptionsOfImageThatMayFailToAllocate() throws Exception {
+		// Allocating a with a width of 0 throws before @5 would be evaluated
+		String input = """
+				image[0,5] a;
+				a = *[X,Y]:: @5 + X;
+				""";
+		List<ASTNode> nodes = hoist(input);
+		assertEquals(2, nodes.size());
+	}
+}
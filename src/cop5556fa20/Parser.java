@@ -15,6 +15,7 @@
 
 package cop5556fa20;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -27,7 +28,53 @@ import static cop5556fa20.Scanner.Kind.*;
 
 public class Parser {
 	Scanner scanner; // To read scanner output
-	Token t; // Current token
+	int t; // Index of the current token in scanner
+	Token token; // Current token, created by current() when needed
+	boolean stackSafe = true; // If true, expressions are parsed by stackSafeExpression
+
+	/*
+	 * Sets of kinds, with the bit 1L << kind.ordinal() set for each kind in the set.  The FIRST sets of the
+	 * grammar are computed once here, so that testing whether a token can start a rule is a single AND.
+	 */
+	static final long FIRST_VAR_TYPE = kinds(KW_int, KW_string);
+	static final long FIRST_DECLARATION = FIRST_VAR_TYPE | kinds(KW_image);
+	static final long FIRST_STATEMENT = kinds(IDENT);
+	static final long FIRST_DEC_OR_STATEMENT = FIRST_DECLARATION | FIRST_STATEMENT;
+	static final long FIRST_PRIMARY = kinds(INTLIT, IDENT, LPAREN, STRINGLIT, KW_X, KW_Y, CONST, LPIXEL, AT);
+	// Every expression rule down to UnaryExpression starts with a UnaryExpression
+	static final long FIRST_EXPRESSION = FIRST_PRIMARY | kinds(PLUS, MINUS, EXCL);
+	static final long FIRST_ATTRIBUTE = kinds(KW_WIDTH, KW_HEIGHT, KW_RED, KW_GREEN, KW_BLUE);
+
+	static final long EQ_OPS = kinds(EQ, NEQ);
+	static final long REL_OPS = kinds(LT, GT, LE, GE);
+	static final long ADD_OPS = kinds(PLUS, MINUS);
+	static final long MULT_OPS = kinds(STAR, DIV, MOD);
+	static final long IMAGE_SOURCE_OPS = kinds(LARROW, ASSIGN);
+	static final long UNARY_OPS = kinds(PLUS, MINUS, EXCL);
+
+	/**
+	 * Returns the set of the given kinds.  There are fewer than 64 kinds, so a set fits in a long.
+	 */
+	static long kinds(Kind... kinds) {
+		long set = 0;
+		for (Kind kind : kinds) {
+			set |= 1L << kind.ordinal();
+		}
+		return set;
+	}
+
+	/**
+	 * Returns the kinds of the set, in the order of their declaration.
+	 */
+	static List<Kind> kindsOf(long set) {
+		List<Kind> kinds = new ArrayList<>();
+		for (Kind kind : Kind.values()) {
+			if ((set & 1L << kind.ordinal()) != 0) {
+				kinds.add(kind);
+			}
+		}
+		return kinds;
+	}
 
 	@SuppressWarnings("serial")
 	public static class SyntaxException extends Exception {
@@ -43,9 +90,19 @@ public class Parser {
 		}
 	}
 
-	Parser(Scanner scanner) {
+	Parser(Scanner scanner) throws LexicalException {
 		this.scanner = scanner;
-		t = scanner.nextToken(); // establish invariant that t is always the next token to be processed
+		t = scanner.next(); // establish invariant that t is always the next token to be processed
+	}
+
+	/**
+	 * Sets whether the parser parses expressions with a stack of frames in the heap rather than by recursion, so
+	 * that their nesting is not limited by the size of the thread's stack, see stackSafeExpression.  It does by
+	 * default.  Both build the same trees and report the same errors.
+	 */
+	public Parser stackSafe(boolean stackSafe) {
+		this.stackSafe = stackSafe;
+		return this;
 	}
 
 	public Program parse() throws SyntaxException, LexicalException {
@@ -55,25 +112,40 @@ public class Parser {
 	}
 
 	private Program program() throws SyntaxException, LexicalException {
-		Token first = t; //always save the current token.
+		Token first = current(); //always save the current token.
 
 		List<ASTNode> decsAndStatements = new ArrayList<>();
-		while (isFirstInDeclaration() || isFirstInStatement()) {
-			if (isFirstInDeclaration()) {
-				Dec dec = declaration();
-				decsAndStatements.add(dec);
-			} else if (isFirstInStatement()) {
-				Statement statement = statement();
-				decsAndStatements.add(statement);
-			} else {
-				throw error(t, "Unable to parse the program");
-			}
-			match(SEMI);
+		while (hasDecOrStatement()) {
+			decsAndStatements.add(decOrStatement());
 		}
 
 		return new Program(first, decsAndStatements);  //return a Program object
 	}
 
+	/**
+	 * Returns true if the current token starts a declaration or a statement.
+	 */
+	boolean hasDecOrStatement() throws SyntaxException {
+		return isKind(FIRST_DEC_OR_STATEMENT);
+	}
+
+	/**
+	 * Parses a declaration or a statement and the semicolon after it.  IncrementalParser uses it to parse
+	 * the declarations and statements of a program one at a time.
+	 */
+	ASTNode decOrStatement() throws SyntaxException, LexicalException {
+		ASTNode node;
+		if (isFirstInDeclaration()) {
+			node = declaration();
+		} else if (isFirstInStatement()) {
+			node = statement();
+		} else {
+			throw error(t, "Unable to parse the program");
+		}
+		match(SEMI);
+		return node;
+	}
+
 
 	private Dec declaration() throws SyntaxException, LexicalException {
 		if (isFirstInVariableDeclaration()) {
@@ -87,7 +159,7 @@ public class Parser {
 
 
 	private DecVar variableDeclaration() throws SyntaxException, LexicalException {
-		Token first = t;  //always save the current token
+		Token first = current();  //always save the current token
 
 		if (isFirstInVarType()) {
 			Type type = varType();
@@ -107,7 +179,7 @@ public class Parser {
 	}
 
 
-	private Type varType() throws SyntaxException, LexicalException {
+	Type varType() throws SyntaxException, LexicalException {
 		// VarType ::= KW_int | KW_string
 
 		if (assertTokenKind(KW_int)) {
@@ -123,7 +195,7 @@ public class Parser {
 
 
 	private DecImage imageDeclaration() throws SyntaxException, LexicalException {
-		Token first = t;  //always save the current token
+		Token first = current();  //always save the current token
 
 		Type type;
 		Expression width = Expression.empty;
@@ -144,8 +216,8 @@ public class Parser {
 
 		String name = scanner.getText(match(IDENT));
 
-		if (assertTokenKind(LARROW) || assertTokenKind(ASSIGN)) {
-			op = t.kind();
+		if (isKind(IMAGE_SOURCE_OPS)) {
+			op = scanner.kind(t);
 			consume();
 
 			source = expression();
@@ -156,7 +228,7 @@ public class Parser {
 
 
 	private Statement statement() throws SyntaxException, LexicalException {
-		Token first = t;  //always save the current token
+		Token first = current();  //always save the current token
 
 		String name = scanner.getText(match(IDENT));
 
@@ -247,13 +319,17 @@ public class Parser {
 		// Expression ::=  OrExpression  Q  Expression COLON Expression | OrExpression
 		// Expression ::=  OrExpression  ( Q  Expression COLON Expression | ϵ )
 
-		Token first = t;  //always save the current token
+		if (stackSafe) {
+			return stackSafeExpression();
+		}
+
+		Token first = current();  //always save the current token
 
 		if (!isFirstInExpression()) {
 			throw error(t, "Unable to parse the expression");
 		}
 
-		Expression expression = orExpression();
+		Expression expression = binaryExpression(OR_LEVEL);
 
 		if (assertTokenKind(Q)) {
 			consume();
@@ -266,129 +342,57 @@ public class Parser {
 		}
 	}
 
-
-	private Expression orExpression() throws SyntaxException, LexicalException {
-		// OrExpression ::= AndExpression   (  OR  AndExpression)*
-
-		Token first = t;  //always save the current token
-
-		if (!isFirstInOrExpression()) {
-			throw error(t, "Unable to parse the orExpression");
-		}
-
-		Expression e0 = andExpression();
-		while (assertTokenKind(OR)) {
-			Kind op = t.kind();
-			consume();
-
-			Expression e1 = andExpression();
-			e0 = new ExprBinary(first, e0, op, e1);
-		}
-
-		return e0;
-	}
-
-
-	private Expression andExpression() throws SyntaxException,LexicalException {
-		// AndExpression ::= EqExpression ( AND  EqExpression )*
-
-		Token first = t;  //always save the current token
-
-		if (!isFirstInAndExpression()) {
-			throw error(t, "Unable to parse the andExpression");
-		}
-
-		Expression e0 = eqExpression();
-		while (assertTokenKind(AND)) {
-			Kind op = t.kind();
-			consume();
-
-			Expression e1 = eqExpression();
-			e0 = new ExprBinary(first, e0, op, e1);
-		}
-
-		return e0;
-	}
-
-
-	private Expression eqExpression() throws SyntaxException, LexicalException {
-		// EqExpression ::= RelExpression  (  (EQ | NEQ )  RelExpression )*
-
-		Token first = t;  //always save the current token
-
-		if (!isFirstInEqExpression()) {
-			throw error(t, "Unable to parse the eqExpression");
-		}
-
-		Expression e0 = relExpression();
-		while (assertTokenKind(EQ) || assertTokenKind(NEQ)) {
-			Kind op = t.kind();
-			consume();
-
-			Expression e1 = relExpression();
-			e0 = new ExprBinary(first, e0, op, e1);
-		}
-
-		return e0;
-	}
-
-	private Expression relExpression() throws SyntaxException, LexicalException {
-		// RelExpression ::= AddExpression (  ( LT  | GT |  LE  | GE )   AddExpression)*
-
-		Token first = t;  //always save the current token
-
-		if (!isFirstInRelExpression()) {
-			throw error(t, "Unable to parse the relExpression");
-		}
-
-		Expression e0 = addExpression();
-		while (assertTokenKind(LT) || assertTokenKind(GT) || assertTokenKind(LE) || assertTokenKind(GE)) {
-			Kind op = t.kind();
-			consume();
-
-			Expression e1 = addExpression();
-			e0 = new ExprBinary(first, e0, op, e1);
-		}
-
-		return e0;
+	/*
+	 * The levels of the binary operators, from the lowest precedence to the highest.  Each level has a rule
+	 * of the grammar, where all the operators are left associative:
+	 *
+	 * OrExpression ::= AndExpression   (  OR  AndExpression)*
+	 * AndExpression ::= EqExpression ( AND  EqExpression )*
+	 * EqExpression ::= RelExpression  (  (EQ | NEQ )  RelExpression )*
+	 * RelExpression ::= AddExpression (  ( LT  | GT |  LE  | GE )   AddExpression)*
+	 * AddExpression ::= MultExpression   (  (PLUS | MINUS ) MultExpression )*
+	 * MultExpression := UnaryExpression ( ( STAR | DIV  | MOD ) UnaryExpression )*
+	 */
+	static final int OR_LEVEL = 1;
+	static final int UNARY_LEVEL = 7;
+	static final String[] levelRules = { null, "orExpression", "andExpression", "eqExpression",
+			"relExpression", "addExpression", "multExpression", "unaryExpression" };
+	static final byte[] binaryLevels = new byte[Kind.values().length];
+	static {
+		setLevel(kinds(OR), 1);
+		setLevel(kinds(AND), 2);
+		setLevel(EQ_OPS, 3);
+		setLevel(REL_OPS, 4);
+		setLevel(ADD_OPS, 5);
+		setLevel(MULT_OPS, 6);
 	}
 
-	private Expression addExpression() throws SyntaxException, LexicalException {
-		// AddExpression ::= MultExpression   (  (PLUS | MINUS ) MultExpression )*
-
-		Token first = t;  //always save the current token
-
-		if (!isFirstInAddExpression()) {
-			throw error(t, "Unable to parse the addExpression");
+	private static void setLevel(long kinds, int level) {
+		for (Kind kind : kindsOf(kinds)) {
+			binaryLevels[kind.ordinal()] = (byte) level;
 		}
-
-		Expression e0 = multExpression();
-		while (assertTokenKind(PLUS) || assertTokenKind(MINUS)) {
-			Kind op = t.kind();
-			consume();
-
-			Expression e1 = multExpression();
-			e0 = new ExprBinary(first, e0, op, e1);
-		}
-
-		return e0;
 	}
 
-	private Expression multExpression() throws SyntaxException, LexicalException {
-		// MultExpression := UnaryExpression ( ( STAR | DIV  | MOD ) UnaryExpression )*
-
-		Token first = t;  //always save the current token
+	/**
+	 * Parses the rule of level by precedence climbing: the operands of the operators of level are parsed by a
+	 * recursive call for the next level, and the operators of higher levels are handled in the same loop, so
+	 * that a primary is reached with a call per operator rather than a call per level.  Builds the same trees
+	 * as a descent through the rules of the levels.
+	 */
+	private Expression binaryExpression(int level) throws SyntaxException, LexicalException {
+		Token first = current();  //always save the current token
 
-		if (!isFirstInMultExpression()) {
-			throw error(t, "Unable to parse the multExpression");
+		if (!isFirstInExpression()) {
+			throw error(t, "Unable to parse the " + levelRules[level]);
 		}
 
 		Expression e0 = unaryExpression();
-		while (assertTokenKind(STAR) || assertTokenKind(DIV) || assertTokenKind(MOD)) {
-			Kind op = t.kind();
+		int opLevel;
+		while ((opLevel = binaryLevels[scanner.kind(t).ordinal()]) >= level) {
+			Kind op = scanner.kind(t);
 			consume();
 
-			Expression e1 = unaryExpression();
+			Expression e1 = binaryExpression(opLevel + 1);
 			e0 = new ExprBinary(first, e0, op, e1);
 		}
 
@@ -397,64 +401,282 @@ public class Parser {
 
 	private Expression unaryExpression() throws SyntaxException, LexicalException {
 		// UnaryExpression ::= (PLUS | MINUS) UnaryExpression | UnaryExpressionNotPlusMinus
-
-		Token first = t;  //always save the current token
-
-		if (assertTokenKind(PLUS) || assertTokenKind(MINUS)) {
-			Kind op = t.kind();
-			consume();
-
-			return new ExprUnary(first, op, unaryExpression());
-		} else if (isFirstInUnaryExpressionNotPlusMinus()) {
-			return unaryExpressionNotPlusMinus();
-		} else {
-			throw error(t, "Unable to parse the unaryExpression");
-		}
-	}
-
-	private Expression unaryExpressionNotPlusMinus() throws SyntaxException, LexicalException {
 		// UnaryExpressionNotPlusMinus ::=  EXCL  UnaryExpression  | HashExpression
+		// HashExpression ∷= Primary ( HASH Attribute)*
 
-		Token first = t;  //always save the current token
+		Token first = current();  //always save the current token
 
-		if (assertTokenKind(EXCL)) {
-			Kind op = t.kind();
+		if (isKind(UNARY_OPS)) {
+			Kind op = scanner.kind(t);
 			consume();
 
 			return new ExprUnary(first, op, unaryExpression());
-		} else if (isFirstInHashExpression()) {
-			return hashExpression();
+		} else if (isFirstInPrimary()) {
+			Expression e = primary();
+			while (assertTokenKind(HASH)) {
+				consume();
+				String attr = attribute();
+				e = new ExprHash(first, e, attr);
+			}
+			return e;
 		} else {
-			throw error(t, "Unable to parse the unaryExpressionNotPlusMinus");
+			throw error(t, "Unable to parse the " + levelRules[UNARY_LEVEL]);
 		}
 	}
 
-	private Expression hashExpression() throws SyntaxException, LexicalException {
-		// HashExpression ∷= Primary ( HASH Attribute)*
+	/*
+	 * The rules that stackSafeExpression may be parsing when it parses an expression or a primary inside
+	 * them, which is stored in a Frame.
+	 */
+	static final int CONDITIONAL = 0; // Expression, after the OrExpression and trueCase
+	static final int BINARY = 1; // The rule of level, after each operand
+	static final int UNARY = 2; // UnaryExpression, after its operator
+	static final int PAREN = 3; // Primary, after LPAREN
+	static final int PIXEL_CONSTRUCTOR = 4; // PixelConstructor, after each Expression
+	static final int PIXEL_SELECTOR = 5; // Primary, after the image and X
+	static final int ARG = 6; // ArgExpression, after AT
 
-		Token first = t;  //always save the current token
+	/**
+	 * A rule being parsed by stackSafeExpression, with its first token and the parts parsed so far.
+	 */
+	private static final class Frame {
+		final int rule;
+		final Token first;
+		final int level;
+		Kind op;
+		Expression e0;
+		Expression e1;
+		int parts;
+
+		Frame(int rule, Token first, int level, Kind op) {
+			this.rule = rule;
+			this.first = first;
+			this.level = level;
+			this.op = op;
+		}
+	}
+
+	/*
+	 * What stackSafeExpression has just parsed: the part of a Primary before its PixelSelector, a Primary, a
+	 * UnaryExpression, or an Expression.
+	 */
+	static final int PRIMARY_BASE = 0;
+	static final int PRIMARY = 1;
+	static final int UNARY_EXPRESSION = 2;
+	static final int EXPRESSION = 3;
 
-		if (!isFirstInHashExpression()) {
-			throw error(t, "Unable to parse the hashExpression");
+	/**
+	 * Parses an expression like expression(), and builds the same tree, with a stack of frames instead of
+	 * recursive calls.  Starting an expression pushes the frames of the rules it starts with, down to a token
+	 * that is a primary, see start.  Each expression that is then parsed completes the frame on top of the
+	 * stack, which either pops and completes the frame below, or starts the next part of its rule.
+	 */
+	private Expression stackSafeExpression() throws SyntaxException, LexicalException {
+		ArrayDeque<Frame> stack = new ArrayDeque<>();
+		Expression e = start(stack, 0);
+		Token first = e.first();
+		int parsed = PRIMARY_BASE;
+		while (true) {
+			Frame frame = stack.peek();
+			switch (parsed) {
+				case PRIMARY_BASE -> {
+					// (PixelSelector | ϵ )
+					if (isFirstInPixelSelector()) {
+						Frame selector = new Frame(PIXEL_SELECTOR, first, 0, null);
+						selector.e0 = e;
+						stack.push(selector);
+						consume();
+						e = start(stack, 0);
+						first = e.first();
+					} else {
+						parsed = PRIMARY;
+					}
+				}
+				case PRIMARY -> {
+					if (frame.rule == ARG) {
+						stack.pop();
+						first = frame.first;
+						e = new ExprArg(first, e);
+						parsed = PRIMARY_BASE;
+					} else {
+						// ( HASH Attribute)*
+						while (assertTokenKind(HASH)) {
+							consume();
+							String attr = attribute();
+							e = new ExprHash(first, e, attr);
+						}
+						while (stack.peek().rule == UNARY) {
+							frame = stack.pop();
+							e = new ExprUnary(frame.first, frame.op, e);
+						}
+						parsed = UNARY_EXPRESSION;
+					}
+				}
+				case UNARY_EXPRESSION -> {
+					// An operand of the BINARY frame on top, or the OrExpression of a CONDITIONAL frame
+					if (frame.rule == BINARY) {
+						frame.e0 = frame.e0 == null ? e : new ExprBinary(frame.first, frame.e0, frame.op, e);
+						int opLevel = binaryLevels[scanner.kind(t).ordinal()];
+						if (opLevel >= frame.level) {
+							frame.op = scanner.kind(t);
+							consume();
+							e = start(stack, opLevel + 1);
+							first = e.first();
+							parsed = PRIMARY_BASE;
+						} else {
+							stack.pop();
+							e = frame.e0;
+						}
+					} else if (assertTokenKind(Q)) {
+						frame.e0 = e;
+						consume();
+						e = start(stack, 0);
+						first = e.first();
+						parsed = PRIMARY_BASE;
+					} else {
+						stack.pop();
+						parsed = EXPRESSION;
+					}
+				}
+				case EXPRESSION -> {
+					if (frame == null) {
+						return e;
+					}
+					first = frame.first;
+					switch (frame.rule) {
+						case CONDITIONAL -> {
+							if (frame.parts++ == 0) {
+								frame.e1 = e;
+								match(COLON);
+								e = start(stack, 0);
+								first = e.first();
+								parsed = PRIMARY_BASE;
+							} else {
+								stack.pop();
+								e = new ExprConditional(frame.first, frame.e0, frame.e1, e);
+							}
+						}
+						case PAREN -> {
+							stack.pop();
+							match(RPAREN);
+							parsed = PRIMARY_BASE;
+						}
+						case PIXEL_CONSTRUCTOR -> {
+							if (frame.parts < 2) {
+								if (frame.parts++ == 0) {
+									frame.e0 = e;
+								} else {
+									frame.e1 = e;
+								}
+								match(COMMA);
+								e = start(stack, 0);
+								first = e.first();
+							} else {
+								stack.pop();
+								match(RPIXEL);
+								e = new ExprPixelConstructor(frame.first, frame.e0, frame.e1, e);
+							}
+							parsed = PRIMARY_BASE;
+						}
+						default -> {
+							// PIXEL_SELECTOR
+							if (frame.parts++ == 0) {
+								frame.e1 = e;
+								match(COMMA);
+								e = start(stack, 0);
+								first = e.first();
+								parsed = PRIMARY_BASE;
+							} else {
+								stack.pop();
+								match(RSQUARE);
+								e = new ExprPixelSelector(frame.first, frame.e0, frame.e1, e);
+								parsed = PRIMARY;
+							}
+						}
+					}
+				}
+			}
 		}
+	}
 
-		Expression e = primary();
-		while (assertTokenKind(HASH)) {
+	/**
+	 * Starts the rule of level, or an Expression if level is 0: pushes the frames of the rules that start
+	 * there, down to a token that is a primary, which is returned.
+	 */
+	private Expression start(ArrayDeque<Frame> stack, int level) throws SyntaxException, LexicalException {
+		while (true) {
+			if (level == 0) {
+				if (!isFirstInExpression()) {
+					throw error(t, "Unable to parse the expression");
+				}
+				stack.push(new Frame(CONDITIONAL, current(), 0, null));
+				level = OR_LEVEL;
+			}
+			if (!isFirstInExpression()) {
+				throw error(t, "Unable to parse the " + levelRules[level]);
+			}
+			stack.push(new Frame(BINARY, current(), level, null));
+			while (isKind(UNARY_OPS)) {
+				stack.push(new Frame(UNARY, current(), 0, scanner.kind(t)));
+				consume();
+			}
+			if (!isFirstInPrimary()) {
+				throw error(t, "Unable to parse the " + levelRules[UNARY_LEVEL]);
+			}
+			while (assertTokenKind(AT)) {
+				stack.push(new Frame(ARG, current(), 0, null));
+				consume();
+			}
+			if (assertTokenKind(LPAREN)) {
+				stack.push(new Frame(PAREN, current(), 0, null));
+			} else if (assertTokenKind(LPIXEL)) {
+				stack.push(new Frame(PIXEL_CONSTRUCTOR, current(), 0, null));
+			} else {
+				return leaf(current());
+			}
 			consume();
-			String attr = attribute();
-			e = new ExprHash(first, e, attr);
+			level = 0;
 		}
-
-		return e;
 	}
 
 	private Expression primary() throws SyntaxException, LexicalException {
 		// Primary ::=  (INTLIT | IDENT | LPAREN Expression RPAREN | STRINGLIT | KW_X | KW_Y | CONSTANT |PixelConstructor | ArgExpression ) (PixelSelector | ϵ )
 
-		Token first = t;  //always save the current token
+		Token first = current();  //always save the current token
 
 		// (INTLIT | IDENT | LPAREN Expression RPAREN | STRINGLIT | KW_X | KW_Y | CONSTANT |PixelConstructor | ArgExpression )
-		Expression e = switch (t.kind()) {
+		Expression e = switch (scanner.kind(t)) {
+			case INTLIT, IDENT, KW_X, KW_Y, STRINGLIT, CONST -> leaf(first);
+			case LPAREN -> {
+				consume();
+				Expression expression = expression();
+				match(RPAREN);
+				yield expression;
+			}
+			default -> {
+				if (isFirstInPixelConstructor()) {
+					yield pixelConstructor();
+				} else if (isFirstInArgExpression()) {
+					yield argExpression();
+				} else {
+					throw error(t, "Unable to parse the primary");
+				}
+			}
+		};
+
+		// (PixelSelector | ϵ )
+		if (isFirstInPixelSelector()) {
+			return pixelSelector(first, e);
+		}
+
+		return e;
+	}
+
+	/**
+	 * Parses a primary that is a single token: INTLIT | IDENT | STRINGLIT | KW_X | KW_Y | CONSTANT
+	 */
+	private Expression leaf(Token first) throws SyntaxException, LexicalException {
+		return switch (scanner.kind(t)) {
 			case INTLIT -> {
 				int value = scanner.intVal(t);
 				consume();
@@ -465,12 +687,6 @@ public class Parser {
 				consume();
 				yield new ExprVar(first, name);
 			}
-			case LPAREN -> {
-				consume();
-				Expression expression = expression();
-				match(RPAREN);
-				yield expression;
-			}
 			case STRINGLIT -> {
 				String text = scanner.getText(t);
 				consume();
@@ -484,29 +700,14 @@ public class Parser {
 
 				yield new ExprConst(first, name, value);
 			}
-			default -> {
-				if (isFirstInPixelConstructor()) {
-					yield pixelConstructor();
-				} else if (isFirstInArgExpression()) {
-					yield argExpression();
-				} else {
-					throw error(t, "Unable to parse the primary");
-				}
-			}
+			default -> throw error(t, "Unable to parse the primary");
 		};
-
-		// (PixelSelector | ϵ )
-		if (isFirstInPixelSelector()) {
-			return pixelSelector(first, e);
-		}
-
-		return e;
 	}
 
 	private ExprPixelConstructor pixelConstructor() throws SyntaxException, LexicalException {
 		// PixelConstructor ∷=  LPIXEL Expression COMMA Expression COMMA Expression RPIXEL
 
-		Token first = t;  //always save the current token
+		Token first = current();  //always save the current token
 
 		match(LPIXEL);
 		Expression redExpr = expression();
@@ -531,7 +732,7 @@ public class Parser {
 		return new ExprPixelSelector(first, image, x, y);
 	}
 
-	private String attribute() throws SyntaxException, LexicalException {
+	String attribute() throws SyntaxException, LexicalException {
 		// Attribute ∷= KW_WIDTH | KW_HEIGHT | KW_RED | KW_GREEN | KW_BLUE
 
 		if (isFirstInAttribute()) {
@@ -546,13 +747,13 @@ public class Parser {
 	private ExprArg argExpression() throws SyntaxException, LexicalException {
 		// ArgExpression ∷= AT Primary
 
-		Token first = t;  //always save the current token
+		Token first = current();  //always save the current token
 
 		match(AT);
 		return new ExprArg(first, primary());
 	}
 
-	private void constXYSelector() throws SyntaxException, LexicalException {
+	void constXYSelector() throws SyntaxException, LexicalException {
 		// ConstXYSelector ::= LSQUARE KW_X COMMA KW_Y RSQUARE
 		match(LSQUARE);
 		match(KW_X);
@@ -562,15 +763,14 @@ public class Parser {
 	}
 
 	protected boolean isKind(Kind kind) {
-		return t.kind() == kind;
+		return scanner.kind(t) == kind;
 	}
 
-	protected boolean isKind(Kind... kinds) {
-		for (Kind k : kinds) {
-			if (k == t.kind())
-				return true;
-		}
-		return false;
+	/**
+	 * Returns true if the kind of the current token is in kinds, a set made by kinds(Kind...).
+	 */
+	protected boolean isKind(long kinds) {
+		return (kinds & 1L << scanner.kind(t).ordinal()) != 0;
 	}
 
 	/**
@@ -580,8 +780,8 @@ public class Parser {
 	 * @return
 	 * @throws SyntaxException
 	 */
-	private Token match(Kind kind) throws SyntaxException {
-		Token tmp = t;
+	int match(Kind kind) throws SyntaxException, LexicalException {
+		int tmp = t;
 		if (isKind(kind)) {
 			consume();
 			return tmp;
@@ -596,27 +796,38 @@ public class Parser {
 	 * @return
 	 * @throws SyntaxException
 	 */
-	private Token match(Kind... kinds) throws SyntaxException {
-		Token tmp = t;
+	int match(long kinds) throws SyntaxException, LexicalException {
+		int tmp = t;
 		if (isKind(kinds)) {
 			consume();
 			return tmp;
 		}
-		throw error(t, "expected one of " + kinds);
+		throw error(t, "expected one of " + kindsOf(kinds));
 	}
 
-	private Token consume() throws SyntaxException {
-		Token tmp = t;
+	int consume() throws SyntaxException, LexicalException {
+		int tmp = t;
 		if (isKind(EOF)) {
 			throw error(t, "attempting to consume EOF");
 		}
-		t = scanner.nextToken();
+		t = scanner.next();
+		token = null;
 		return tmp;
 	}
 
-	private SyntaxException error(Token t, String m) throws SyntaxException {
-		String message = m + " at " + t.line() + ":" + t.posInLine();
-		return new SyntaxException(t, message);
+	/**
+	 * Returns the current Token, which is created once, when an AST node or an error needs it.
+	 */
+	Token current() {
+		if (token == null) {
+			token = scanner.token(t);
+		}
+		return token;
+	}
+
+	SyntaxException error(int t, String m) throws SyntaxException {
+		String message = m + " at " + scanner.line(t) + ":" + scanner.posInLine(t);
+		return new SyntaxException(scanner.token(t), message);
 	}
 	
 	/**
@@ -626,126 +837,70 @@ public class Parser {
 	 * @return
 	 * @throws SyntaxException
 	 */
-	private Token matchEOF() throws SyntaxException {
+	int matchEOF() throws SyntaxException {
 		if (isKind(EOF)) {
 			return t;
 		}
 		throw error(t, EOF.toString());
 	}
 
-	private boolean isFirstInDeclaration() throws SyntaxException {
-		return isFirstInVariableDeclaration()
-				|| isFirstInImageDeclaration();
+	boolean isFirstInDeclaration() throws SyntaxException {
+		return isKind(FIRST_DECLARATION);
 	}
 
-	private boolean isFirstInVariableDeclaration() throws SyntaxException {
+	boolean isFirstInVariableDeclaration() throws SyntaxException {
 		return isFirstInVarType();
 	}
 
-	private boolean isFirstInVarType() throws SyntaxException {
-		return assertTokenKind(KW_int)
-				|| assertTokenKind(KW_string);
+	boolean isFirstInVarType() throws SyntaxException {
+		return isKind(FIRST_VAR_TYPE);
 	}
 
-	private boolean isFirstInImageDeclaration() throws SyntaxException {
+	boolean isFirstInImageDeclaration() throws SyntaxException {
 		return assertTokenKind(KW_image);
 	}
 
-	private boolean isFirstInStatement() throws SyntaxException {
+	boolean isFirstInStatement() throws SyntaxException {
 		return assertTokenKind(IDENT);
 	}
 
-	private boolean isFirstInImageOutStatement() throws SyntaxException {
+	boolean isFirstInImageOutStatement() throws SyntaxException {
 		return assertTokenKind(RARROW);
 	}
 
-	private boolean isFirstInImageInStatement() throws SyntaxException {
+	boolean isFirstInImageInStatement() throws SyntaxException {
 		return assertTokenKind(LARROW);
 	}
 
-	private boolean isFirstInAssignmentStatementAndLoopStatement() throws SyntaxException {
+	boolean isFirstInAssignmentStatementAndLoopStatement() throws SyntaxException {
 		return assertTokenKind(ASSIGN);
 	}
 
-	private boolean isFirstInExpression() throws SyntaxException {
-		return isFirstInOrExpression();
-	}
-
-	private boolean isFirstInOrExpression() throws SyntaxException {
-		return isFirstInAndExpression();
-	}
-
-	private boolean isFirstInAndExpression() throws SyntaxException {
-		return isFirstInEqExpression();
-	}
-
-	private boolean isFirstInEqExpression() throws SyntaxException {
-		return isFirstInRelExpression();
+	boolean isFirstInExpression() throws SyntaxException {
+		return isKind(FIRST_EXPRESSION);
 	}
 
-	private boolean isFirstInRelExpression() throws SyntaxException {
-		return isFirstInAddExpression();
+	boolean isFirstInPrimary() throws SyntaxException {
+		return isKind(FIRST_PRIMARY);
 	}
 
-	private boolean isFirstInAddExpression() throws SyntaxException {
-		return isFirstInMultExpression();
-	}
-
-	private boolean isFirstInMultExpression() throws SyntaxException {
-		return isFirstInUnaryExpression();
-	}
-
-	private boolean isFirstInUnaryExpression() throws SyntaxException {
-		return assertTokenKind(PLUS)
-				|| assertTokenKind(MINUS)
-				|| isFirstInUnaryExpressionNotPlusMinus();
-	}
-
-	private boolean isFirstInUnaryExpressionNotPlusMinus() throws SyntaxException {
-		return assertTokenKind(EXCL)
-				|| isFirstInHashExpression();
-	}
-
-	private boolean isFirstInHashExpression() throws SyntaxException {
-		return isFirstInPrimary();
-	}
-
-	private boolean isFirstInPrimary() throws SyntaxException {
-		return assertTokenKind(INTLIT)
-				|| assertTokenKind(IDENT)
-				|| assertTokenKind(LPAREN)
-				|| assertTokenKind(STRINGLIT)
-				|| assertTokenKind(KW_X)
-				|| assertTokenKind(KW_Y)
-				|| assertTokenKind(CONST)
-				|| isFirstInPixelConstructor()
-				|| isFirstInArgExpression();
-	}
-
-	private boolean isFirstInPixelConstructor() throws SyntaxException {
+	boolean isFirstInPixelConstructor() throws SyntaxException {
 		return assertTokenKind(LPIXEL);
 	}
 
-	private boolean isFirstInPixelSelector() throws SyntaxException {
+	boolean isFirstInPixelSelector() throws SyntaxException {
 		return assertTokenKind(LSQUARE);
 	}
 
-	private boolean isFirstInAttribute() throws SyntaxException {
-		return assertTokenKind(KW_WIDTH)
-				|| assertTokenKind(KW_HEIGHT)
-				|| assertTokenKind(KW_RED)
-				|| assertTokenKind(KW_GREEN)
-				|| assertTokenKind(KW_BLUE);
+	boolean isFirstInAttribute() throws SyntaxException {
+		return isKind(FIRST_ATTRIBUTE);
 	}
 
-	private boolean isFirstInArgExpression() throws SyntaxException {
+	boolean isFirstInArgExpression() throws SyntaxException {
 		return assertTokenKind(AT);
 	}
 
-	private boolean assertTokenKind(Kind expected) throws SyntaxException {
-		if (t == null) {
-			throw new SyntaxException(null, "There is no token to assert kind");
-		}
-		return expected.equals(t.kind());
+	boolean assertTokenKind(Kind expected) throws SyntaxException {
+		return expected == scanner.kind(t);
 	}
 }
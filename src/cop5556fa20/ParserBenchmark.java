@@ -0,0 +1,55 @@
+package cop5556fa20;
+
+import java.util.function.IntFunction;
+
+/**
+ * Measures the throughput, in MB of source per second, of the parser on large synthetic sources.
+ *
+ * Usage: ParserBenchmark [megabytes [iterations]]
+ *
+ * The sources are made like those of ScannerBenchmark.  The time of parsing the tokens of a scanned
+ * source is measured, as well as the time of scanning on demand while parsing, and the time of parsing the
+ * tokens into a FlatAST.
+ */
+public class ParserBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		run("declarations", megabytes, iterations,
+				i -> "int value" + i + " = b + RED * " + i + ";\n");
+		run("expressions", megabytes, iterations,
+				i -> "a = *[X,Y]: X <= " + i + " & Y != 0 : <<a[X-1,Y]#red, 128, (X+Y)%256>>;\n");
+		run("deep expressions", megabytes, iterations,
+				i -> "b = ((a + " + i + ") * -(a - 1) / 2 == 3 | !(a >= 4) ? @0 : a % 5) + 6;\n");
+	}
+
+	static void run(String name, int megabytes, int iterations, IntFunction<String> statement) throws Exception {
+		String source = ScannerBenchmark.source(megabytes << 20, statement);
+		double best = 0;
+		double bestOnDemand = 0;
+		double bestFlat = 0;
+		int statements = 0;
+		for (int i = 0; i < iterations; i++) {
+			Scanner scanner = new Scanner(source).scan();
+			long start = System.nanoTime();
+			statements = new Parser(scanner).parse().decOrStatement().size();
+			long elapsed = System.nanoTime() - start;
+			best = Math.max(best, source.length() * 1e9 / elapsed / (1 << 20));
+
+			start = System.nanoTime();
+			new Parser(new Scanner(source).scanOnDemand()).parse();
+			elapsed = System.nanoTime() - start;
+			bestOnDemand = Math.max(bestOnDemand, source.length() * 1e9 / elapsed / (1 << 20));
+
+			scanner = new Scanner(source).scan();
+			start = System.nanoTime();
+			FlatAST.parse(scanner);
+			elapsed = System.nanoTime() - start;
+			bestFlat = Math.max(bestFlat, source.length() * 1e9 / elapsed / (1 << 20));
+		}
+		System.out.printf("%-18s %,10d statements %,10.1f MB/s parse %,10.1f MB/s scan on demand and parse "
+				+ "%,10.1f MB/s flat parse%n", name, statements, best, bestOnDemand, bestFlat);
+	}
+}
@@ -19,8 +19,12 @@ import static cop5556fa20.AST.ASTTestLambdas.checkExprConst;
 import static cop5556fa20.AST.ASTTestLambdas.checkExprIntLit;
 import static cop5556fa20.AST.ASTTestLambdas.checkExprStringLit;
 import static cop5556fa20.AST.ASTTestLambdas.checkStatementImageIn;
-import static cop5556fa20.Scanner.Kind.PLUS;
+import static cop5556fa20.Scanner.Kind.*;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import java.util.List;
 
 import org.junit.jupiter.api.Test;
@@ -28,6 +32,13 @@ import org.junit.jupiter.api.Test;
 import cop5556fa20.Parser.SyntaxException;
 import cop5556fa20.Scanner.LexicalException;
 import cop5556fa20.AST.ASTNode;
+import cop5556fa20.AST.ExprBinary;
+import cop5556fa20.AST.ExprConditional;
+import cop5556fa20.AST.ExprHash;
+import cop5556fa20.AST.ExprIntLit;
+import cop5556fa20.AST.ExprUnary;
+import cop5556fa20.AST.ExprVar;
+import cop5556fa20.AST.Expression;
 import cop5556fa20.AST.DecVar;
 import cop5556fa20.AST.ExprStringLit;
 import cop5556fa20.AST.Program;
@@ -172,4 +183,155 @@ class ParserTest {
 		DecVar d0 = (DecVar) decOrStatement.get(0);																	
 		checkDecVar(Type.Int, "abc", checkExprIntLit(4)).test(d0);
 	}
+	@Test
+	public void testParseOnDemand() throws Scanner.LexicalException, SyntaxException {
+		StringBuilder input = new StringBuilder("int a = 1;\n");
+		for (int i = 0; i < 200; i++) {
+			input.append("a = (a + " + i + ") * (a - <<1, 2, 3>> % 7) + ((a));\n");
+		}
+		Program eager = new Parser(new Scanner(input.toString()).scan()).parse();
+		Scanner scanner = new Scanner(input.toString()).scanOnDemand();
+		Program onDemand = new Parser(scanner).parse();
+		assertEquals(eager, onDemand);
+		assertEquals(eager.decOrStatement().size(), onDemand.decOrStatement().size());
+	}
+
+	@Test
+	public void testSyntaxErrorBeforeLexicalError() throws Scanner.LexicalException {
+		String input = """
+				int a = ;
+				string s = "unterminated
+				""";
+		assertThrows(LexicalException.class, () -> new Scanner(input).scan());
+		// Scanning on demand stops at the syntax error
+		Parser parser = new Parser(new Scanner(input).scanOnDemand());
+		assertThrows(SyntaxException.class, () -> parser.parse());
+	}
+
+	@Test
+	public void testFirstSets() throws Scanner.LexicalException {
+		assertEquals(List.of(IDENT, INTLIT, STRINGLIT, CONST, KW_X, KW_Y, AT, LPAREN, LPIXEL),
+				Parser.kindsOf(Parser.FIRST_PRIMARY));
+		assertEquals(Parser.FIRST_PRIMARY | Parser.kinds(EXCL, PLUS, MINUS), Parser.FIRST_EXPRESSION);
+		// Every kind of FIRST_EXPRESSION starts an expression, and no other kind does
+		String[] starts = { "1", "a", "\"s\"", "RED", "X", "Y", "@0", "(1)", "<<1,2,3>>", "!a", "+1", "-1" };
+		for (String start : starts) {
+			Parser parser = new Parser(new Scanner(start).scan());
+			assertTrue(parser.isKind(Parser.FIRST_EXPRESSION), start);
+			assertDoesNotThrow(() -> parser.expression(), start);
+		}
+		for (String start : new String[] { "width", "?", ";", "*", "int", "image", ")" }) {
+			Parser parser = new Parser(new Scanner(start).scan());
+			assertFalse(parser.isKind(Parser.FIRST_EXPRESSION), start);
+			assertThrows(SyntaxException.class, () -> parser.expression());
+		}
+	}
+
+	/**
+	 * Returns the expression with parentheses around each operation, preceded by the position of its first
+	 * token.
+	 */
+	static String shape(Expression e) {
+		if (e instanceof ExprBinary) {
+			ExprBinary b = (ExprBinary) e;
+			return b.first().pos() + "(" + shape(b.e0()) + " " + b.op() + " " + shape(b.e1()) + ")";
+		} else if (e instanceof ExprUnary) {
+			ExprUnary u = (ExprUnary) e;
+			return u.first().pos() + "(" + u.op() + " " + shape(u.e()) + ")";
+		} else if (e instanceof ExprHash) {
+			ExprHash h = (ExprHash) e;
+			return h.first().pos() + "(" + shape(h.e()) + "#" + h.attr() + ")";
+		} else if (e instanceof ExprConditional) {
+			ExprConditional c = (ExprConditional) e;
+			return c.first().pos() + "(" + shape(c.condition()) + " ? " + shape(c.trueCase()) + " : "
+					+ shape(c.falseCase()) + ")";
+		}
+		return e.first().pos() + ":" + e.first().kind();
+	}
+
+	@Test
+	public void testPrecedenceAndAssociativity() throws Scanner.LexicalException, SyntaxException {
+		String input = "1 - 2 - 3 * 4 % -5 < 6 == !7 & 8 | a#red + 9 != 10 ? 11 : 12";
+		Expression e = new Parser(new Scanner(input).scan()).expression();
+		show(shape(e));
+		assertEquals("0(0(0(0(0(0(0(0:INTLIT MINUS 4:INTLIT) MINUS 8(8(8:INTLIT STAR 12:INTLIT) MOD 16(MINUS 17:INTLIT))) "
+				+ "LT 21:INTLIT) EQ 26(EXCL 27:INTLIT)) AND 31:INTLIT) OR 35(35(35(35:IDENT#red) PLUS 43:INTLIT) "
+				+ "NEQ 48:INTLIT)) ? 53:INTLIT : 58:INTLIT)", shape(e));
+
+		// The operand after an operator reports the rule of the next level
+		SyntaxException error = assertThrows(SyntaxException.class,
+				() -> new Parser(new Scanner("1 == ;").scan()).expression());
+		assertEquals("Unable to parse the relExpression at 1:6", error.getMessage());
+	}
+
+	/**
+	 * Parses input as an expression, stack safe or not, and returns the tree and the index of the next token,
+	 * or the message of the error.
+	 */
+	static String parseExpression(String input, boolean stackSafe) throws Scanner.LexicalException {
+		Parser parser = new Parser(new Scanner(input).scan());
+		parser.stackSafe(stackSafe);
+		try {
+			Expression e = parser.expression();
+			return shape(e) + " " + e + " at " + parser.t;
+		} catch (SyntaxException e) {
+			return "error: " + e.getMessage();
+		}
+	}
+
+	@Test
+	public void testStackSafeMatchesRecursive() throws Scanner.LexicalException {
+		String[] words = { "1", "a", "\"s\"", "RED", "X", "Y", "@", "(", ")", "<<", ">>", "[", "]", ",", "?", ":",
+				"#", "red", "width", "!", "+", "-", "*", "/", "%", "&", "|", "==", "!=", "<", ">", "<=", ">=", ";" };
+		java.util.Random random = new java.util.Random(5556);
+		int parsed = 0;
+		for (int i = 0; i < 20000; i++) {
+			StringBuilder input = new StringBuilder();
+			for (int n = random.nextInt(12); n >= 0; n--) {
+				input.append(words[random.nextInt(words.length)]).append(' ');
+			}
+			String expected = parseExpression(input.toString(), false);
+			assertEquals(input.toString(), expected, parseExpression(input.toString(), true));
+			if (!expected.startsWith("error: ")) {
+				parsed++;
+			}
+		}
+		String input = "@a[1,2][3,4]#red + <<(X), -Y#blue, @@0>> * !(a ? b ? 1 : 2 : c[X,Y]) - (a)#width";
+		assertEquals(parseExpression(input, false), parseExpression(input, true));
+		assertTrue(parsed > 1000);
+	}
+
+	@Test
+	public void testDeepNesting() throws Exception {
+		int depth = 100000;
+		String parens = "(".repeat(depth) + "1" + ")".repeat(depth);
+		String conditionals = "a ? 1 : ".repeat(depth) + "2";
+		String unary = "-!".repeat(depth) + "a";
+		// The default stack of a thread is too small for the recursive parser
+		Thread thread = new Thread(null, () -> {
+			try {
+				Expression e = new Parser(new Scanner(parens).scan()).expression();
+				assertEquals(1, ((ExprIntLit) e).value());
+				e = new Parser(new Scanner(conditionals).scan()).expression();
+				for (int i = 0; i < depth; i++) {
+					e = ((ExprConditional) e).falseCase();
+				}
+				assertEquals(2, ((ExprIntLit) e).value());
+				e = new Parser(new Scanner(unary).scan()).expression();
+				for (int i = 0; i < 2 * depth; i++) {
+					e = ((ExprUnary) e).e();
+				}
+				assertEquals("a", ((ExprVar) e).name());
+			} catch (Exception e) {
+				throw new AssertionError(e);
+			}
+		}, "deep nesting", 1 << 18);
+		Throwable[] failure = new Throwable[1];
+		thread.setUncaughtExceptionHandler((t, e) -> failure[0] = e);
+		thread.start();
+		thread.join();
+		if (failure[0] != null) {
+			throw new AssertionError(failure[0]);
+		}
+	}
 }
@@ -0,0 +1,65 @@
+package cop5556fa20;
+
+import java.lang.reflect.Method;
+import java.util.function.Consumer;
+
+import cop5556fa20.AST.Program;
+
+/**
+ * Measures the throughput, in pixels per second, of the code generated for pixel loops.
+ *
+ * Usage: PixelLoopBenchmark [size [iterations]]
+ *
+ * The benchmark program writes two size x size images and reads the first one while writing the second,
+ * so each run of its main method visits 2 * size * size pixels.  The number of threads used by the
+ * parallel variants is set with -Dcop5556fa20.parallelism.
+ */
+public class PixelLoopBenchmark {
+
+	static final String program = """
+			int size = @0;
+			image[size,size] a;
+			image[size,size] b;
+			a = *[X,Y]:: <<X, Y, X+Y>>;
+			b = *[X,Y]: a[X,Y]#red > a[X,Y]#green : a[X,Y] + 1;
+			""";
+
+	public static void main(String[] args) throws Exception {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		run("column major (X outer)", size, iterations, cv -> cv.setRowMajorLoops(false));
+		run("row major (Y outer)", size, iterations, cv -> cv.setRowMajorLoops(true));
+		run("row major, separate loops", size, iterations, cv -> cv.setFuseLoops(false));
+		run("row major, 64x64 tiles", size, iterations, cv -> cv.setLoopTileSize(64));
+		run("row major, direct int[] access", size, iterations, cv -> cv.setDirectPixelAccess(true));
+		run("parallel row bands", size, iterations, cv -> cv.setParallelLoops(true));
+		run("parallel, direct int[] access", size, iterations, cv -> cv.setParallelLoops(true).setDirectPixelAccess(true));
+	}
+
+	static void run(String name, int size, int iterations, Consumer<CodeGenVisitorComplete> options) throws Exception {
+		String className = "PixelLoopBenchmarkProgram";
+		Method main = load(className, options).getMethod("main", String[].class);
+		Object[] mainArgs = { new String[] { Integer.toString(size) } };
+
+		long pixels = 2L * size * size;
+		double best = 0;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			main.invoke(null, mainArgs);
+			long elapsed = System.nanoTime() - start;
+			best = Math.max(best, pixels * 1e9 / elapsed);
+		}
+		System.out.printf("%-28s %,16.0f pixels/sec%n", name, best);
+	}
+
+	static Class<?> load(String className, Consumer<CodeGenVisitorComplete> options) throws Exception {
+		Scanner scanner = new Scanner(program).scan();
+		Program p = new Parser(scanner).parse();
+		p.visit(new TypeCheckVisitor(), null);
+		CodeGenVisitorComplete cv = new CodeGenVisitorComplete(className);
+		options.accept(cv);
+		byte[] bytecode = (byte[]) p.visit(cv, null);
+		return CodeGenUtils.loadClass(className, bytecode);
+	}
+}
@@ -0,0 +1,160 @@
+package cop5556fa20;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+
+import cop5556fa20.AST.Program;
+
+/**
+ * A directory of class files generated from PLP programs, so that a program whose source has not changed is
+ * not scanned, parsed, type checked and compiled again, even by another JVM.
+ *
+ * A class file is named after the SHA-256 digest of CodeGenVisitorComplete.VERSION (itself a digest of the class
+ * files of the compiler), the options of the code generator, the class name and the source, so a change of any of
+ * them gives a new file.  Files are written
+ * to a temporary file and renamed, so several processes may share the directory: a reader sees either no file
+ * or a complete one, and processes compiling the same program at once write the same bytes.
+ *
+ * When a new file makes the directory larger than maxBytes, the least recently used files are deleted.  Reading
+ * a file updates its modification time, which is the time of its last use.
+ */
+public class ProgramCache {
+
+	static final String CLASS_SUFFIX = ".class";
+	static final String TEMP_SUFFIX = ".tmp";
+
+	// Temporary files older than this were left by a process that died while writing them.
+	static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+
+	final Path directory;
+	final long maxBytes;
+	final Consumer<CodeGenVisitorComplete> options;
+
+	/**
+	 * Creates a cache of at most maxBytes of class files in directory, which is created if needed, for classes
+	 * generated by a CodeGenVisitorComplete configured by options.
+	 */
+	public ProgramCache(Path directory, long maxBytes, Consumer<CodeGenVisitorComplete> options) throws IOException {
+		this.directory = Files.createDirectories(directory);
+		this.maxBytes = maxBytes;
+		this.options = options;
+	}
+
+	public ProgramCache(Path directory, long maxBytes) throws IOException {
+		this(directory, maxBytes, cv -> {});
+	}
+
+	/**
+	 * Returns the bytecode of class className generated from source, compiling it only if it is not in the cache.
+	 */
+	public byte[] compile(String source, String className) throws Exception {
+		CodeGenVisitorComplete cv = new CodeGenVisitorComplete(className);
+		options.accept(cv);
+		Path file = directory.resolve(key(source, className, cv) + CLASS_SUFFIX);
+		byte[] bytecode = read(file);
+		if (bytecode == null) {
+			Scanner scanner = new Scanner(source).scan();
+			Program program = new Parser(scanner).parse();
+			program.visit(new TypeCheckVisitor(), className);
+			bytecode = (byte[]) program.visit(cv, null);
+			write(file, bytecode);
+			evict();
+		}
+		return bytecode;
+	}
+
+	/**
+	 * Returns the class className generated from source, see compile and CodeGenUtils.loadClass.
+	 */
+	public Class<?> load(String source, String className) throws Exception {
+		return CodeGenUtils.loadClass(className, compile(source, className));
+	}
+
+	private static String key(String source, String className, CodeGenVisitorComplete cv) throws Exception {
+		String key = CodeGenVisitorComplete.VERSION + "\n" + cv.options() + "\n" + className + "\n" + source;
+		return CodeGenUtils.digest(key.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Returns the content of file, or null if there is no such file or it is not a class file.
+	 */
+	private static byte[] read(Path file) throws IOException {
+		byte[] bytecode;
+		try {
+			bytecode = Files.readAllBytes(file);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		if (bytecode.length < 4 || (bytecode[0] & 0xFF) != 0xCA || (bytecode[1] & 0xFF) != 0xFE
+				|| (bytecode[2] & 0xFF) != 0xBA || (bytecode[3] & 0xFF) != 0xBE) {
+			return null;
+		}
+		try {
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			// Deleted by another process, or the directory is read only: the file is just evicted sooner
+		}
+		return bytecode;
+	}
+
+	private void write(Path file, byte[] bytecode) throws IOException {
+		Path temp = Files.createTempFile(directory, file.getFileName().toString(), TEMP_SUFFIX);
+		try {
+			Files.write(temp, bytecode);
+			try {
+				Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	@SuppressWarnings("preview")
+	private record Entry(Path file, long size, long lastModified) {
+	}
+
+	/**
+	 * Deletes the least recently used class files until the directory holds at most maxBytes of them, and the
+	 * stale temporary files.  Files deleted meanwhile by another process are ignored.
+	 */
+	void evict() throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		long total = 0;
+		long now = System.currentTimeMillis();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					long lastModified = Files.getLastModifiedTime(file).toMillis();
+					if (name.endsWith(CLASS_SUFFIX)) {
+						long size = Files.size(file);
+						entries.add(new Entry(file, size, lastModified));
+						total += size;
+					} else if (name.endsWith(TEMP_SUFFIX) && now - lastModified > STALE_TEMP_MILLIS) {
+						Files.deleteIfExists(file);
+					}
+				} catch (NoSuchFileException e) {
+					// Deleted by another process
+				}
+			}
+		}
+		entries.sort(Comparator.comparingLong(Entry::lastModified));
+		for (int i = 0; i < entries.size() && total > maxBytes; i++) {
+			Files.deleteIfExists(entries.get(i).file());
+			total -= entries.get(i).size();
+		}
+	}
+}
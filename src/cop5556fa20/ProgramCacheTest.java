@@ -0,0 +1,92 @@
+package cop5556fa20;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ProgramCacheTest {
+
+	Path directory;
+
+	@BeforeEach
+	void createDirectory() throws Exception {
+		directory = Files.createTempDirectory("plp-cache");
+	}
+
+	@AfterEach
+	void deleteDirectory() throws Exception {
+		try (Stream<Path> files = Files.walk(directory)) {
+			for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+				Files.delete(file);
+			}
+		}
+	}
+
+	List<Path> classFiles() throws Exception {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(file -> file.toString().endsWith(ProgramCache.CLASS_SUFFIX)).sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	@Test
+	public void reusesCompiledPrograms() throws Exception {
+		String source = "int n = 3; n -> screen;";
+		ProgramCache cache = new ProgramCache(directory, 1 << 20);
+		byte[] bytecode = cache.compile(source, "Cached");
+		List<Path> files = classFiles();
+		assertEquals(1, files.size());
+		assertArrayEquals(bytecode, Files.readAllBytes(files.get(0)));
+
+		// Another cache on the same directory reads the class file instead of compiling
+		byte[] marker = CodeGenUtilsTest.valueClass("Cached", 42);
+		Files.write(files.get(0), marker);
+		assertArrayEquals(marker, new ProgramCache(directory, 1 << 20).compile(source, "Cached"));
+	}
+
+	@Test
+	public void compilesChangedProgramsAndOptions() throws Exception {
+		ProgramCache cache = new ProgramCache(directory, 1 << 20);
+		cache.compile("int n = 3; n -> screen;", "Cached");
+		cache.compile("int n = 4; n -> screen;", "Cached");
+		cache.compile("int n = 4; n -> screen;", "Other");
+		new ProgramCache(directory, 1 << 20, cv -> cv.setParallelLoops(true)).compile("int n = 4; n -> screen;", "Other");
+		assertEquals(4, classFiles().size());
+		try (Stream<Path> files = Files.list(directory)) {
+			assertFalse(files.anyMatch(file -> file.toString().endsWith(ProgramCache.TEMP_SUFFIX)));
+		}
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsedPrograms() throws Exception {
+		ProgramCache cache = new ProgramCache(directory, 1 << 20);
+		cache.compile("int a = 1; a -> screen;", "First");
+		Path first = classFiles().get(0);
+		Files.setLastModifiedTime(first, FileTime.fromMillis(1000));
+		cache.compile("int b = 2; b -> screen;", "Second");
+		Path second = classFiles().stream().filter(file -> !file.equals(first)).findFirst().get();
+		Files.setLastModifiedTime(second, FileTime.fromMillis(2000));
+
+		// Using First makes Second the least recently used
+		cache.compile("int a = 1; a -> screen;", "First");
+		new ProgramCache(directory, Files.size(first)).evict();
+		assertEquals(List.of(first), classFiles());
+	}
+
+	@Test
+	public void versionIsTheDigestOfTheCompilerClasses() throws Exception {
+		// Not the random value returned when the class files cannot be read
+		assertTrue(CodeGenVisitorComplete.VERSION.matches("[0-9a-f]{64}"));
+		assertEquals(CodeGenVisitorComplete.VERSION, CodeGenUtils.classFilesDigest(CodeGenVisitorComplete.class));
+	}
+}
@@ -14,12 +14,24 @@
 
 package cop5556fa20;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import static java.util.Map.entry;
 
 public class Scanner {
+	/*
+	 * The source is either chars, terminated by EOFChar, or the ASCII bytes of bytes, which are followed by an
+	 * implicit EOFChar.  size is the number of chars of the source, including EOFChar.
+	 */
 	private final char[] chars;
-	State state = State.START;
+	private final ByteBuffer bytes;
+	private final int size;
 	private static final char EOFChar = 0;
 
 	@SuppressWarnings("preview")
@@ -58,15 +70,48 @@ public class Scanner {
 		LSQUARE/* [ */, RSQUARE/* ] */, LPIXEL /* << */, RPIXEL /* >> */,  SEMI/* ; */, COMMA/* , */,  EOF
 	}
 
-	private enum State {
-		START, SYMBOL,
-		STRING_LIT_START, STRING_LIT, STRING_LIT_END, STRING_LIT_ESCAPE_PREFIX, STRING_LIT_ESCAPE_SUFFIX,
-		IDENTIFIER_PART,
-		ZERO_DIGIT, DIGIT,
-		COMMENT,
-		WHITE_SPACE, LINE_TERMINATOR,
-		EOF
-	}
+	/*
+	 * The scanner is a DFA driven by the table transitions: transitions[state << 4 | c] is the state after a
+	 * char of class c, or an action if it is negative.  The class of an ASCII char is charClasses[c]; the
+	 * other chars are NON_ASCII.  Reading a char that leads to a state consumes it; actions decide
+	 * themselves whether to consume the char.
+	 */
+
+	// States
+	private static final int START = 0;
+	private static final int IDENTIFIER = 1;
+	private static final int ZERO_DIGIT = 2;
+	private static final int DIGITS = 3;
+	private static final int STRING_LIT = 4;
+	private static final int STRING_LIT_ESCAPE = 5; // after a backslash in a string literal
+	private static final int COMMENT = 6;
+	private static final int STATE_COUNT = 7;
+
+	// Actions
+	private static final byte ACCEPT = -1; // the token of the state ends before the char
+	private static final byte SKIP = -2; // white space
+	private static final byte NEWLINE = -3;
+	private static final byte SYMBOL = -4; // a symbol, or the start of a comment
+	private static final byte STRING_LIT_END = -5;
+	private static final byte END = -6; // the EOF char
+	private static final byte ERROR = -7;
+
+	// Char classes
+	private static final int OTHER = 0; // ASCII chars only allowed in string literals and comments
+	private static final int LETTER = 1;
+	private static final int ESCAPE_LETTER = 2; // letters that follow a backslash in escape sequences
+	private static final int ESCAPE_OTHER = 3; // other chars that follow a backslash in escape sequences
+	private static final int ZERO = 4;
+	private static final int NON_ZERO_DIGIT = 5;
+	private static final int SYMBOL_CHAR = 6;
+	private static final int WHITE_SPACE = 7;
+	private static final int CR = 8;
+	private static final int LF = 9;
+	private static final int QUOTE = 10;
+	private static final int BACKSLASH = 11;
+	private static final int EOF_CHAR = 12;
+	private static final int NON_ASCII = 13;
+	private static final int CLASS_COUNT = 16;
 
 
 	/**
@@ -78,27 +123,40 @@ public class Scanner {
 	 * @return
 	 */
 	public String getText(Token token) {
-		StringBuilder sb = new StringBuilder();
-		switch (token.kind) {
+		return getText(token.kind(), token.pos(), token.length());
+	}
+
+	/**
+	 * Returns the text of the token with the given index, see getText(Token).
+	 */
+	public String getText(int token) {
+		return getText(kind(token), pos(token), length(token));
+	}
+
+	private String getText(Kind kind, int pos, int length) {
+		switch (kind) {
 			case STRINGLIT -> {
+				StringBuilder sb = new StringBuilder();
 				boolean isPreviousBackSlash = false;
-				for(int i=1; i < token.length - 1; i++) {
+				for(int i=1; i < length - 1; i++) {
 					if (isPreviousBackSlash) {
-						sb.append(escapeSuffixToEscapeSequence.get(chars[token.pos() + i]));
+						sb.append(escapeSuffixToEscapeSequence.get(charAt(pos + i)));
 						isPreviousBackSlash = false;
-					} else if (chars[token.pos() + i] == '\\') {
+					} else if (charAt(pos + i) == '\\') {
 						isPreviousBackSlash = true;
 					} else {
-						sb.append(chars[token.pos() + i]);
+						sb.append(charAt(pos + i));
 					}
 				}
 				return sb.toString();
 			}
 			default -> {
-				for(int i=0; i < token.length; i++) {
-					sb.append(chars[token.pos() + i]);
+				if (chars != null) {
+					return new String(chars, pos, length);
 				}
-				return sb.toString();
+				byte[] text = new byte[length];
+				bytes.get(pos, text);
+				return new String(text, StandardCharsets.US_ASCII);
 			}
 		}
 	}
@@ -110,7 +168,19 @@ public class Scanner {
 	 * @return
 	 */
 	public boolean hasTokens() {
-		return nextTokenPos < tokens.size();
+		if (nextTokenPos < tokenCount || pending != null) {
+			return true;
+		}
+		if (onDemand) {
+			try {
+				return scanToken();
+			} catch (LexicalException e) {
+				// Thrown by the next call of next
+				pending = e;
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/**
@@ -121,14 +191,58 @@ public class Scanner {
 	 * @return
 	 */
 	public Token nextToken() {
-		return tokens.get(nextTokenPos++);
+		try {
+			return token(next());
+		} catch (LexicalException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Like nextToken, but returns the index of the token instead of creating a Token.  Its kind,
+	 * position and text are given by the methods taking an index.
+	 *
+	 * Precondition:  hasTokens()
+	 */
+	public int next() throws LexicalException {
+		if (pending != null) {
+			LexicalException e = pending;
+			pending = null;
+			throw e;
+		}
+		if (nextTokenPos == tokenCount && onDemand) {
+			scanToken();
+		}
+		if (nextTokenPos >= tokenCount) {
+			throw new IndexOutOfBoundsException("no more tokens");
+		}
+		return nextTokenPos++;
 	}
 
 
+	/*
+	 * The tokens created by the scan method, stored as parallel arrays indexed by the number of the token
+	 * rather than as a list of Token objects.  The line and position in line of a token are derived from
+	 * its position and the positions where lines start.
+	 *
+	 * When scanning on demand, the arrays are a ring of the last LOOKAHEAD tokens, and the line of each
+	 * token and the position where it starts are stored with it.
+	 */
+	private static final Kind[] KINDS = Kind.values();
+	static final int LOOKAHEAD = 16;
+	private boolean onDemand;
+	private byte[] kinds;
+	private int[] positions;
+	private int[] lengths;
+	private int[] tokenLines;
+	private int[] tokenLineStarts;
+	private int tokenCount = 0;
+
 	/**
-	 * The list of tokens created by the scan method.
+	 * lineStarts[i] is the position of the first char of line i + 1.
 	 */
-	private final ArrayList<Token> tokens = new ArrayList<Token>();
+	private int[] lineStarts = new int[16];
+	private int lineCount = 1;
 
 
 	/**
@@ -136,272 +250,474 @@ public class Scanner {
 	 */
 	private int nextTokenPos = 0;
 
+	/**
+	 * A lexical error found by hasTokens when scanning on demand.
+	 */
+	private LexicalException pending;
+
+	/*
+	 * Where the DFA is: the position of the next char, the position of the token being scanned, and the
+	 * line of the next char with the position where it starts.
+	 */
+	private int state;
+	private int pos;
+	private int startPos;
+	private int line;
+	private int lineStart;
+
 	Scanner(String inputString) {
 		int len = inputString.length();
 
 		// Input char array terminated with EOFchar of convenience.
-		chars = Arrays.copyOf(inputString.toCharArray(), len + 1);
+		chars = new char[len + 1];
+		inputString.getChars(0, len, chars, 0);
 		chars[len] = EOFChar;
+		bytes = null;
+		size = len + 1;
 	}
 
+	/**
+	 * Creates a scanner for the UTF-8 bytes from the position to the limit of buffer.  If they are all ASCII,
+	 * which is checked 8 bytes at a time, they are scanned in place, otherwise they are decoded to chars.
+	 * The scanner reads the buffer, so it must not be changed while the scanner is used.
+	 */
+	Scanner(ByteBuffer buffer) {
+		ByteBuffer source = buffer.slice();
+		if (isAscii(source)) {
+			chars = null;
+			bytes = source;
+			size = source.limit() + 1;
+		} else {
+			CharBuffer decoded = StandardCharsets.UTF_8.decode(source);
+			chars = new char[decoded.remaining() + 1];
+			decoded.get(chars, 0, decoded.remaining());
+			chars[chars.length - 1] = EOFChar;
+			bytes = null;
+			size = chars.length;
+		}
+	}
 
+	/**
+	 * Creates a scanner for the UTF-8 file path, which is mapped into memory rather than read, see
+	 * Scanner(ByteBuffer).
+	 */
+	Scanner(Path path) throws IOException {
+		this(map(path));
+	}
 
-	public Scanner scan() throws LexicalException {
-		// Initialization
-		int pos = 0;
-		int line = 1;
-		int posInLine = 1;
-		state = State.START;
-
-		int startPos = pos;
-		int startPosInLine = posInLine;
-
-		// Temp values to check
-		StringBuffer currentDigit = null;
-		StringBuffer currentIdentifier = null;
-		StringBuffer currentSymbol = null;
-
-		// Process each character at a time.
-		while (pos < chars.length) {
-			char currentChar = chars[pos];
-
-			switch (state) {
-
-				// Handle START state -- START
-				case START -> {
-
-					// Reset start state and start position in line.
-					startPos = pos;
-					startPosInLine = posInLine;
-
-					if (isLineTerminator(currentChar)) {
-						state = State.LINE_TERMINATOR;
-					} else if (isWhiteSpace(currentChar)) {
-						state = State.WHITE_SPACE;
-					} else if (isStringStartCharacter(currentChar)) {
-						state = State.STRING_LIT_START;
-					} else if (isZeroDigit(currentChar)) {
-						state = State.ZERO_DIGIT;
-					} else if (isIdentifierStart(currentChar)) {
-						currentIdentifier = new StringBuffer();
-						state = State.IDENTIFIER_PART;
-					} else if (isNonZeroDigit(currentChar)) {
-						currentDigit = new StringBuffer();
-						state = State.DIGIT;
-					} else if (isSymbol(currentChar)) {
-						currentSymbol = new StringBuffer();
-						state = State.SYMBOL;
-					} else if (isEOFChar(currentChar)) {
-						state = State.EOF;
-					} else {
-						throw new LexicalException(
-								"Unable to process character at position " + pos + " int start state", pos);
-					}
-				}
-				// Handle START state -- END
-
+	private static ByteBuffer map(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() >= Integer.MAX_VALUE) {
+				throw new IOException(path + " is too large to scan");
+			}
+			// The mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
 
-				// Handle EOF state -- START
-				case EOF -> {
-					tokens.add(new Token(Kind.EOF, startPos, 0, line, startPosInLine));
-					pos++; posInLine++;
-				}
-				// Handle EOF state -- END
+	private static boolean isAscii(ByteBuffer buffer) {
+		int limit = buffer.limit();
+		int i = 0;
+		for (; i + 8 <= limit; i += 8) {
+			if ((buffer.getLong(i) & 0x8080808080808080L) != 0) {
+				return false;
+			}
+		}
+		for (; i < limit; i++) {
+			if (buffer.get(i) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
 
+	/**
+	 * Returns the char at pos of the source, which is EOFChar at size - 1.
+	 */
+	private char charAt(int pos) {
+		if (chars != null) {
+			return chars[pos];
+		}
+		return pos < size - 1 ? (char) bytes.get(pos) : EOFChar;
+	}
 
-				// Handle COMMENT state -- START
-				case COMMENT -> {
-					if (isLineTerminator(currentChar) || isEOFChar(currentChar)) {
-						state = State.START;
-					} else {
-						pos++; posInLine++;
-					}
-				}
-				// Handle COMMENT state -- END
+	/**
+	 * Returns the number of tokens created so far.
+	 */
+	public int tokenCount() {
+		return tokenCount;
+	}
 
+	public Kind kind(int token) {
+		return KINDS[kinds[slot(token)]];
+	}
 
-				// Handle LINE_TERMINATOR state -- START
-				case LINE_TERMINATOR -> {
-					if (isLineTerminatorCR(currentChar)) {
-						line++; posInLine = 1;
-					} else if (isLineTerminatorLF(currentChar)) {
-						if (pos - 1 < 0  || !isLineTerminatorCR(chars[pos - 1])) {
-							line++; posInLine = 1;
-						}
-					}
-					pos++;
-					state = State.START;
-				}
-				// Handle LINE_TERMINATOR state -- END
+	public int pos(int token) {
+		return positions[slot(token)];
+	}
 
+	public int length(int token) {
+		return lengths[slot(token)];
+	}
 
-				// Handle WHITE_SPACE state -- START
-				case WHITE_SPACE -> {
-					pos++; posInLine++;
-					state = State.START;
-				}
-				// Handle WHITE_SPACE state -- END
+	public int line(int token) {
+		if (onDemand) {
+			return tokenLines[slot(token)];
+		}
+		return lineOf(positions[token]) + 1;
+	}
 
+	public int posInLine(int token) {
+		int slot = slot(token);
+		if (onDemand) {
+			return positions[slot] - tokenLineStarts[slot] + 1;
+		}
+		return positions[slot] - lineStarts[lineOf(positions[slot])] + 1;
+	}
 
-				// Handle STRING_LIT_START state -- START
-				case STRING_LIT_START -> {
-					pos++; posInLine++;
-					state = State.STRING_LIT;
-				}
-				// Handle STRING_LIT_START state -- END
+	/**
+	 * Returns a Token for the token with the given index.  Tokens are created on demand, so calls with the
+	 * same index return equal but different objects.
+	 */
+	public Token token(int token) {
+		return new Token(kind(token), pos(token), length(token), line(token), posInLine(token));
+	}
 
-				case STRING_LIT_END -> {
-					tokens.add(new Token(Kind.STRINGLIT, startPos, pos - startPos + 1, line, startPosInLine));
-					pos++; posInLine++;
-					state = State.START;
-				}
+	/**
+	 * Returns the index in the arrays of the token with the given index.
+	 */
+	private int slot(int token) {
+		if (!onDemand) {
+			return token;
+		}
+		if (token < tokenCount - LOOKAHEAD || token >= tokenCount) {
+			throw new IllegalStateException("Token " + token + " is not among the last " + LOOKAHEAD + " tokens");
+		}
+		return token & (LOOKAHEAD - 1);
+	}
 
-				case STRING_LIT_ESCAPE_PREFIX -> {
-					pos++; posInLine++;
-					state = State.STRING_LIT_ESCAPE_SUFFIX;
-				}
+	/**
+	 * Returns the index in lineStarts of the line containing pos.
+	 */
+	private int lineOf(int pos) {
+		int low = 0;
+		int high = lineCount - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (lineStarts[mid] <= pos) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
 
-				case STRING_LIT_ESCAPE_SUFFIX -> {
-					if (isEOFChar(currentChar)) {
-						throw new LexicalException(
-								"Reached end of file while processing string literal inside STRING_LIT_ESCAPE_SUFFIX", startPos);
-					}
+	private void addToken(Kind kind, int pos, int length) {
+		int slot = tokenCount;
+		if (onDemand) {
+			slot &= LOOKAHEAD - 1;
+			tokenLines[slot] = line;
+			tokenLineStarts[slot] = lineStart;
+		} else if (tokenCount == kinds.length) {
+			int capacity = tokenCount * 2;
+			kinds = Arrays.copyOf(kinds, capacity);
+			positions = Arrays.copyOf(positions, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+		}
+		kinds[slot] = (byte) kind.ordinal();
+		positions[slot] = pos;
+		lengths[slot] = length;
+		tokenCount++;
+	}
 
-					if (isEscapeSequenceSuffix(currentChar)) {
-						pos++; posInLine++;
-						state = State.STRING_LIT;
-					} else {
-						throw new LexicalException("Unable to process escape suffix inside string literal", pos);
-					}
-				}
+	private void addLineStart(int pos) {
+		if (lineCount == lineStarts.length) {
+			lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+		}
+		lineStarts[lineCount++] = pos;
+	}
 
-				// Handle STRING_LIT state -- START
-				case STRING_LIT -> {
-					if (isEOFChar(currentChar)) {
-						throw new LexicalException(
-								"Reached end of file while processing string literal", startPos);
-					}
 
-					if (isStringEndCharacter(currentChar)) {
-						state = State.STRING_LIT_END;
-					} else if (isEscapeSequencePrefix(currentChar)) {
-						state = State.STRING_LIT_ESCAPE_PREFIX;
-					} else if (isInputCharacter(currentChar)) {
-							pos++; posInLine++;
-					} else {
-						throw new LexicalException(
-								"Unable to scan string literal due to invalid input character at position " + pos, pos);
-					}
-				}
-				// Handle STRING_LIT state -- END
 
+	/**
+	 * Scans the whole input, so that all the tokens are available before the first call of nextToken.
+	 */
+	public Scanner scan() throws LexicalException {
+		initialize(false);
+		while (scanToken()) {
+		}
+		return this;
+	}
 
-				// Handle ZERO_DIGIT state -- START
-				case ZERO_DIGIT -> {
-					tokens.add(new Token(Kind.INTLIT, startPos, 1, line, posInLine));
-					pos++; posInLine++;
-					state = State.START;
-				}
-				// Handle ZERO_DIGIT state -- END
+	/**
+	 * Returns true if scan() has scanned the whole input, so that every token is available by its index.
+	 */
+	boolean isScanned() {
+		return kinds != null && !onDemand;
+	}
 
+	/**
+	 * Prepares the scanner to create tokens on demand: next, nextToken and hasTokens scan the input up to the
+	 * token they need, so that lexical errors are reported when the token is reached, and only the last
+	 * LOOKAHEAD tokens are kept.  The methods taking the index of a token require one of these tokens.
+	 *
+	 * In this mode next throws the lexical errors, and nextToken throws them wrapped in an
+	 * IllegalStateException.
+	 */
+	public Scanner scanOnDemand() {
+		initialize(true);
+		return this;
+	}
 
-				// Handle DIGIT state -- START
-				case DIGIT -> {
-					if (isDigit(currentChar)) {
-						currentDigit.append(currentChar);
-						pos++; posInLine++;
-					} else {
-						if (currentDigit.length() > 10) {
-							throw new LexicalException("Integer is too long (Length > 10)", startPos);
-						}
+	/**
+	 * Like scanOnDemand, but starts at pos, which must not be inside a token, a comment or a CR LF.  pos is on
+	 * the given line, which starts at lineStart.  Used by IncrementalParser to scan the part of a program
+	 * that was edited.
+	 */
+	Scanner scanOnDemandFrom(int pos, int line, int lineStart) {
+		initialize(true);
+		this.pos = pos;
+		this.startPos = pos;
+		this.line = line;
+		this.lineStart = lineStart;
+		return this;
+	}
 
-						long number = Long.parseLong(currentDigit.toString());
-						if (number > Integer.MAX_VALUE) {
-							throw new LexicalException("Integer is too long (> Integer.MAX_VALUE)", startPos);
-						}
-						tokens.add(new Token(Kind.INTLIT, startPos, pos - startPos, line, startPosInLine));
-						currentDigit = null;
-						state = State.START;
-					}
-				}
-				// Handle DIGIT state -- END
+	private void initialize(boolean onDemand) {
+		this.onDemand = onDemand;
+		int capacity = onDemand ? LOOKAHEAD : size / 4 + 16;
+		kinds = new byte[capacity];
+		positions = new int[capacity];
+		lengths = new int[capacity];
+		if (onDemand) {
+			tokenLines = new int[capacity];
+			tokenLineStarts = new int[capacity];
+		}
+		tokenCount = 0;
+		nextTokenPos = 0;
+		pending = null;
+		lineCount = 1;
+		line = 1;
+		lineStart = 0;
+		pos = 0;
+		startPos = 0;
+		state = START;
+	}
 
+	/**
+	 * Runs the DFA from where it stopped until it adds a token.  Returns false if the input was exhausted
+	 * before.
+	 */
+	private boolean scanToken() throws LexicalException {
+		final char[] chars = this.chars;
+		final ByteBuffer bytes = this.bytes;
+		final int size = this.size;
+		int count = tokenCount;
+		int state = this.state;
+		int pos = this.pos;
+		// When the state is START, startPos is pos
+		int startPos = this.startPos;
+
+		while (pos < size) {
+			char c = chars != null ? chars[pos] : pos < size - 1 ? (char) bytes.get(pos) : EOFChar;
+			int charClass = c < 128 ? charClasses[c] : NON_ASCII;
+			int next = transitions[state << 4 | charClass];
+			if (next >= 0) {
+				state = next;
+				pos++;
+				continue;
+			}
 
-				// Handle IDENTIFIER_PART state -- START
-				case IDENTIFIER_PART -> {
-					if (isIdentifierPart(currentChar)) {
-						currentIdentifier.append(currentChar);
-						pos++; posInLine++;
+			switch (next) {
+				case ACCEPT -> {
+					accept(state, startPos, pos);
+					state = START;
+				}
+				case SKIP -> pos = skipWhiteSpace(pos + 1);
+				case NEWLINE -> {
+					if (isLineTerminatorLF(c) && pos - 1 >= 0 && isLineTerminatorCR(charAt(pos - 1))) {
+						// CR LF is a single line terminator, so the line starts after the LF
+						lineStart = pos + 1;
+						if (!onDemand) {
+							lineStarts[lineCount - 1] = lineStart;
+						}
 					} else {
-						String currentIdentifierString = currentIdentifier.toString();
-						if (constants.containsKey(currentIdentifierString)) {
-							tokens.add(new Token(Kind.CONST, startPos, pos - startPos, line, startPosInLine));
-						} else {
-							tokens.add(new Token(reservedWordToKind.getOrDefault(currentIdentifierString, Kind.IDENT),
-									startPos, pos - startPos, line, startPosInLine));
+						line++;
+						lineStart = pos + 1;
+						if (!onDemand) {
+							addLineStart(lineStart);
 						}
-						currentIdentifier = null;
-						state = State.START;
 					}
+					pos++;
 				}
-				// Handle IDENTIFIER_PART state -- END
-
-
-				// Handle SYMBOL state -- START
 				case SYMBOL -> {
-					if (currentSymbol.length() == 2) {
-						String currentSymbolString = currentSymbol.toString();
-
-						if ("//".equals(currentSymbolString)) {
-							currentSymbol = null;
-							state = State.COMMENT;
-						} else if (symbolToKind.containsKey(currentSymbolString)) {
-							tokens.add(new Token(symbolToKind.get(currentSymbolString),
-									startPos, pos - startPos, line, startPosInLine));
-							state = State.START;
-							currentSymbol = null;
-						} else {
-							String prefix = currentSymbol.substring(0, 1);
-							if (symbolToKind.containsKey(prefix)) {
-								tokens.add(new Token(symbolToKind.get(prefix),
-										startPos, 1, line, startPosInLine));
-								state = State.START;
-								currentSymbol = null;
-								pos--; posInLine--;
-							} else {
-								throw new LexicalException("Unable to scan symbol " + chars[startPos], startPos);
-							}
-						}
-					} else if (isSymbol(currentChar)) {
-						currentSymbol.append(currentChar);
-						pos++; posInLine++;
+					// The EOF char ends the source and is not a symbol, so there is a next char
+					char nextChar = charAt(pos + 1);
+					Kind[] pairs = pairKinds[c];
+					if (c == '/' && nextChar == '/') {
+						// The comment ends before its line terminator or EOFChar, where the DFA accepts it
+						pos = skipComment(pos + 2);
+						state = COMMENT;
+					} else if (pairs != null && nextChar < 128 && pairs[nextChar] != null) {
+						addToken(pairs[nextChar], pos, 2);
+						pos += 2;
 					} else {
-						String currentSymbolString = currentSymbol.toString();
-						if (symbolToKind.containsKey(currentSymbolString)) {
-							tokens.add(new Token(symbolToKind.get(currentSymbolString),
-									startPos, 1, line, startPosInLine));
-							state = State.START;
-							currentSymbol = null;
-						} else {
-							throw new LexicalException("Unable to scan symbol " + chars[startPos], startPos);
-						}
+						addToken(symbolKinds[c], pos, 1);
+						pos++;
 					}
 				}
-				// Handle SYMBOL state -- END
+				case STRING_LIT_END -> {
+					pos++;
+					addToken(Kind.STRINGLIT, startPos, pos - startPos);
+					state = START;
+				}
+				case END -> {
+					addToken(Kind.EOF, pos, 0);
+					pos = size;
+				}
+				default -> throw error(state, charClass, startPos, pos);
+			}
+			startPos = pos;
+
+			if (tokenCount != count) {
+				this.state = state;
+				this.pos = pos;
+				this.startPos = startPos;
+				return true;
+			}
+		}
+
+		this.state = state;
+		this.pos = pos;
+		this.startPos = startPos;
+		return false;
+	}
 
+	/*
+	 * skipWhiteSpace and skipComment read an ASCII byte source 8 bytes at a time, as one long, instead of using
+	 * the jdk.incubator.vector API: generated code and the compiler target Java 14 with preview features, and that
+	 * incubator module only exists from Java 16 on (and then has to be added with --add-modules), so a Vector API
+	 * version could neither compile nor run here.
+	 *
+	 * A char[] source is read one char at a time.  Java has no view of a char[] as longs without
+	 * sun.misc.Unsafe (MethodHandles.byteArrayViewVarHandle only views byte[]), and copying it to bytes would cost
+	 * more than the loop saves.  Such sources are Strings built in memory, or files that are not ASCII; ASCII
+	 * files, the large sources, are scanned from their bytes.
+	 */
 
+	/**
+	 * Returns the position of the first char at or after pos that is not white space.  Runs of 8 spaces of an
+	 * ASCII source are skipped with one read.  White space has no line terminator, so the line does not change.
+	 */
+	private int skipWhiteSpace(int pos) {
+		if (chars != null) {
+			final char[] chars = this.chars;
+			// chars ends with EOFChar, which is not white space
+			while (isWhiteSpace(chars[pos])) {
+				pos++;
 			}
+			return pos;
 		}
+		final ByteBuffer bytes = this.bytes;
+		final int limit = size - 1;
+		while (pos + 8 <= limit && bytes.getLong(pos) == SPACES) {
+			pos += 8;
+		}
+		while (pos < limit && isWhiteSpace((char) bytes.get(pos))) {
+			pos++;
+		}
+		return pos;
+	}
 
-		return this;
+	/**
+	 * Returns the position of the first line terminator or EOFChar at or after pos.  An ASCII source is
+	 * searched 8 bytes at a time.
+	 */
+	private int skipComment(int pos) {
+		if (chars != null) {
+			final char[] chars = this.chars;
+			char c = chars[pos];
+			while (c != '\n' && c != '\r' && c != EOFChar) {
+				c = chars[++pos];
+			}
+			return pos;
+		}
+		final ByteBuffer bytes = this.bytes;
+		final int limit = size - 1;
+		for (; pos + 8 <= limit; pos += 8) {
+			long word = bytes.getLong(pos);
+			long found = zeroBytes(word ^ LFS) | zeroBytes(word ^ CRS) | zeroBytes(word);
+			if (found != 0) {
+				// getLong is big endian, so the first byte is the most significant
+				return pos + (Long.numberOfLeadingZeros(found) >>> 3);
+			}
+		}
+		while (pos < limit) {
+			byte b = bytes.get(pos);
+			if (b == '\n' || b == '\r' || b == EOFChar) {
+				break;
+			}
+			pos++;
+		}
+		return pos;
 	}
 
-	private static boolean isRawInputCharacter(char c) {
-		return c < 128;
+	private static final long SPACES = 0x2020202020202020L;
+	private static final long LFS = 0x0a0a0a0a0a0a0a0aL;
+	private static final long CRS = 0x0d0d0d0d0d0d0d0dL;
+
+	/**
+	 * Returns word with the high bit of each zero byte set and all the other bits cleared.  Unlike the usual
+	 * (word - 0x01..) & ~word, no carry crosses bytes, so there are no false positives before a zero byte.
+	 */
+	private static long zeroBytes(long word) {
+		long low = (word & 0x7f7f7f7f7f7f7f7fL) + 0x7f7f7f7f7f7f7f7fL;
+		return ~(low | word | 0x7f7f7f7f7f7f7f7fL);
 	}
 
-	private static boolean isLineTerminator(char c) {
-		return isLineTerminatorLF(c) || isLineTerminatorCR(c);
+	/**
+	 * Adds the token that was being scanned in state, which is source[startPos .. pos).
+	 */
+	private void accept(int state, int startPos, int pos) throws LexicalException {
+		switch (state) {
+			case IDENTIFIER -> {
+				int word = findWord(startPos, pos - startPos);
+				addToken(word < 0 ? Kind.IDENT : wordKinds[word], startPos, pos - startPos);
+			}
+			case ZERO_DIGIT -> addToken(Kind.INTLIT, startPos, 1);
+			case DIGITS -> {
+				if (pos - startPos > 10) {
+					throw new LexicalException("Integer is too long (Length > 10)", startPos);
+				}
+				long number = digitsValue(startPos, pos - startPos);
+				if (number > Integer.MAX_VALUE) {
+					throw new LexicalException("Integer is too long (> Integer.MAX_VALUE)", startPos);
+				}
+				addToken(Kind.INTLIT, startPos, pos - startPos);
+			}
+			default -> {
+				// The end of a comment
+			}
+		}
+	}
+
+	/**
+	 * Returns the exception for a char of class charClass at pos, which has no transition from state.
+	 */
+	private static LexicalException error(int state, int charClass, int startPos, int pos) {
+		return switch (state) {
+			case STRING_LIT -> charClass == EOF_CHAR
+					? new LexicalException("Reached end of file while processing string literal", startPos)
+					: new LexicalException(
+							"Unable to scan string literal due to invalid input character at position " + pos, pos);
+			case STRING_LIT_ESCAPE -> charClass == EOF_CHAR
+					? new LexicalException(
+							"Reached end of file while processing string literal inside an escape sequence", startPos)
+					: new LexicalException("Unable to process escape suffix inside string literal", pos);
+			default -> new LexicalException("Unable to process character at position " + pos + " int start state",
+					pos);
+		};
 	}
 
 	private static boolean isLineTerminatorLF(char c) {
@@ -420,10 +736,6 @@ public class Scanner {
 		return c == '$' || c == '_' || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
 	}
 
-	private static boolean isIdentifierPart(char c) {
-		return isIdentifierStart(c) || isDigit(c);
-	}
-
 	private static boolean isZeroDigit(char c) {
 		return c == '0';
 	}
@@ -432,35 +744,23 @@ public class Scanner {
 		return c >= '1' && c <= '9';
 	}
 
-	private static boolean isDigit(char c) {
-		return c >= '0' && c <= '9';
-	}
-
 	private static boolean isSymbol(char c) {
-		return symbols.contains(c);
-	}
-
-	private static boolean isInputCharacter(char c) {
-		return isRawInputCharacter(c) && !isLineTerminator(c);
+		return c < 128 && symbolKinds[c] != null;
 	}
 
 	private static boolean isStringStartCharacter(char c) {
 		return c == '"';
 	}
 
-	private static boolean isStringEndCharacter(char c) {
-		return c == '"';
-	}
-
 	private static boolean isEscapeSequencePrefix(char c) {
 		return c == '\\';
 	}
 
 	private static boolean isEscapeSequenceSuffix(char c) {
-		Set<Character> validEscapeSuffix = new HashSet<>(Arrays.asList(
-			'b', 't', 'n', 'f', 'r', '"', '\'', '\\'
-		));
-		return validEscapeSuffix.contains(c);
+		return switch (c) {
+			case 'b', 't', 'n', 'f', 'r', '"', '\'', '\\' -> true;
+			default -> false;
+		};
 	}
 
 	private static boolean isEOFChar(char c) {
@@ -485,23 +785,77 @@ public class Scanner {
 	 * @returns the integer value represented by the token
 	 */
 	public int intVal(Token t) throws LexicalException {
-		StringBuilder sb = new StringBuilder();
-		for(int i=0; i < t.length; i++) {
-			sb.append(chars[t.pos() + i]);
-		}
-		switch (t.kind) {
+		return intVal(t.kind(), t.pos(), t.length());
+	}
+
+	/**
+	 * Returns the integer value represented by the token with the given index, see intVal(Token).
+	 */
+	public int intVal(int token) throws LexicalException {
+		return intVal(kind(token), pos(token), length(token));
+	}
+
+	private int intVal(Kind kind, int pos, int length) throws LexicalException {
+		switch (kind) {
 			case INTLIT -> {
-				return Integer.parseInt(sb.toString());
+				return (int) digitsValue(pos, length);
 			}
 			case CONST -> {
-				return constants.get(sb.toString());
+				return wordValues[findWord(pos, length)];
 			}
 			default -> {
-				throw new LexicalException("Unable to get int value for token of kind " + t.kind, t.pos);
+				throw new LexicalException("Unable to get int value for token of kind " + kind, pos);
 			}
 		}
 	}
 
+	/**
+	 * Returns the value of the digits source[pos .. pos + length).  Precondition:  length <= 18, so that
+	 * the value fits in a long.
+	 */
+	private long digitsValue(int pos, int length) {
+		long value = 0;
+		for (int i = pos; i < pos + length; i++) {
+			value = value * 10 + (charAt(i) - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the index in words of the reserved word or constant source[pos .. pos + length), or -1 if it is
+	 * neither.
+	 */
+	private int findWord(int pos, int length) {
+		int h = length;
+		for (int i = pos; i < pos + length; i++) {
+			h = h * 31 + charAt(i);
+		}
+		int i = spread(h) & (WORD_TABLE_SIZE - 1);
+		for (char[] word = words[i]; word != null; word = words[i]) {
+			if (isWord(word, pos, length)) {
+				return i;
+			}
+			i = (i + 1) & (WORD_TABLE_SIZE - 1);
+		}
+		return -1;
+	}
+
+	private boolean isWord(char[] word, int pos, int length) {
+		if (word.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (word[i] != charAt(pos + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int spread(int h) {
+		return h ^ (h >>> 7);
+	}
+
 	/**
 	 * Hashmap containing the values of the predefined colors.
 	 * Included for your convenience.
@@ -529,14 +883,6 @@ public class Scanner {
 		constants.put("PURPLE", 0xff800080);
 	}
 
-	/**
-	 * HashSet containing the values of the predefined symbols.
-	 */
-	private static final HashSet<Character> symbols = new HashSet<>(Arrays.asList(
-			'(', ')', '[', ']', ';', ',', '<', '=', '>', '!', '?', ':', '+', '-', '*', '/', '%', '@',
-			'#', '&', '|'
-	));
-
 	private static final Map<String, Kind> reservedWordToKind = Map.ofEntries(
 			entry("X", Kind.KW_X),
 			entry("Y", Kind.KW_Y),
@@ -587,11 +933,133 @@ public class Scanner {
 			entry("&", Kind.AND), entry("|", Kind.OR)
 	);
 
+	/*
+	 * Tables built from the maps above, so that words and symbols are recognized in chars without creating
+	 * Strings.  The reserved words and the constants are in an open addressing hash table: words[i] is a word,
+	 * wordKinds[i] its kind, and wordValues[i] its value if it is a constant.  symbolKinds[c] is the kind of
+	 * the symbol c, and pairKinds[c][d] the kind of the symbol made of c and d.
+	 */
+	private static final int WORD_TABLE_SIZE = 64;
+	private static final char[][] words = new char[WORD_TABLE_SIZE][];
+	private static final Kind[] wordKinds = new Kind[WORD_TABLE_SIZE];
+	private static final int[] wordValues = new int[WORD_TABLE_SIZE];
+	private static final Kind[] symbolKinds = new Kind[128];
+	private static final Kind[][] pairKinds = new Kind[128][];
+	static {
+		reservedWordToKind.forEach((word, kind) -> addWord(word, kind, 0));
+		constants.forEach((word, value) -> addWord(word, Kind.CONST, value));
+		symbolToKind.forEach((symbol, kind) -> {
+			char c = symbol.charAt(0);
+			if (symbol.length() == 1) {
+				symbolKinds[c] = kind;
+			} else {
+				if (pairKinds[c] == null) {
+					pairKinds[c] = new Kind[128];
+				}
+				pairKinds[c][symbol.charAt(1)] = kind;
+			}
+		});
+	}
+
+	private static final byte[] charClasses = new byte[128];
+	private static final byte[] transitions = new byte[STATE_COUNT << 4];
+	static {
+		for (char c = 0; c < 128; c++) {
+			charClasses[c] = (byte) charClass(c);
+		}
+
+		Arrays.fill(transitions, ERROR);
+		setTransitions(START, IDENTIFIER, LETTER, ESCAPE_LETTER);
+		setTransitions(START, ZERO_DIGIT, ZERO);
+		setTransitions(START, DIGITS, NON_ZERO_DIGIT);
+		setTransitions(START, STRING_LIT, QUOTE);
+		setTransitions(START, SYMBOL, SYMBOL_CHAR);
+		setTransitions(START, SKIP, WHITE_SPACE);
+		setTransitions(START, NEWLINE, CR, LF);
+		setTransitions(START, END, EOF_CHAR);
+
+		setAllTransitions(IDENTIFIER, ACCEPT);
+		setTransitions(IDENTIFIER, IDENTIFIER, LETTER, ESCAPE_LETTER, ZERO, NON_ZERO_DIGIT);
+
+		setAllTransitions(ZERO_DIGIT, ACCEPT);
+
+		setAllTransitions(DIGITS, ACCEPT);
+		setTransitions(DIGITS, DIGITS, ZERO, NON_ZERO_DIGIT);
+
+		setAllTransitions(STRING_LIT, STRING_LIT);
+		setTransitions(STRING_LIT, STRING_LIT_END, QUOTE);
+		setTransitions(STRING_LIT, STRING_LIT_ESCAPE, BACKSLASH);
+		setTransitions(STRING_LIT, ERROR, CR, LF, EOF_CHAR, NON_ASCII);
+
+		setTransitions(STRING_LIT_ESCAPE, STRING_LIT, ESCAPE_LETTER, ESCAPE_OTHER, QUOTE, BACKSLASH);
+
+		setAllTransitions(COMMENT, COMMENT);
+		setTransitions(COMMENT, ACCEPT, CR, LF, EOF_CHAR);
+	}
+
+	private static int charClass(char c) {
+		if (isEOFChar(c)) {
+			return EOF_CHAR;
+		} else if (isLineTerminatorCR(c)) {
+			return CR;
+		} else if (isLineTerminatorLF(c)) {
+			return LF;
+		} else if (isWhiteSpace(c)) {
+			return WHITE_SPACE;
+		} else if (isStringStartCharacter(c)) {
+			return QUOTE;
+		} else if (isEscapeSequencePrefix(c)) {
+			return BACKSLASH;
+		} else if (isZeroDigit(c)) {
+			return ZERO;
+		} else if (isNonZeroDigit(c)) {
+			return NON_ZERO_DIGIT;
+		} else if (isIdentifierStart(c)) {
+			return isEscapeSequenceSuffix(c) ? ESCAPE_LETTER : LETTER;
+		} else if (isSymbol(c)) {
+			return SYMBOL_CHAR;
+		} else if (isEscapeSequenceSuffix(c)) {
+			return ESCAPE_OTHER;
+		}
+		return OTHER;
+	}
+
+	private static void setTransitions(int state, int next, int... charClasses) {
+		for (int charClass : charClasses) {
+			transitions[state << 4 | charClass] = (byte) next;
+		}
+	}
+
+	private static void setAllTransitions(int state, int next) {
+		for (int charClass = 0; charClass < CLASS_COUNT; charClass++) {
+			transitions[state << 4 | charClass] = (byte) next;
+		}
+	}
+
+	private static void addWord(String word, Kind kind, int value) {
+		char[] chars = word.toCharArray();
+		int h = chars.length;
+		for (char c : chars) {
+			h = h * 31 + c;
+		}
+		int i = spread(h) & (WORD_TABLE_SIZE - 1);
+		while (words[i] != null) {
+			i = (i + 1) & (WORD_TABLE_SIZE - 1);
+		}
+		words[i] = chars;
+		wordKinds[i] = kind;
+		wordValues[i] = value;
+	}
+
 	/**
 	 * Returns a String representation of the list of Tokens.
 	 * You may modify this as desired.
 	 */
 	public String toString() {
+		List<Token> tokens = new ArrayList<>();
+		for (int i = onDemand ? Math.max(0, tokenCount - LOOKAHEAD) : 0; i < tokenCount; i++) {
+			tokens.add(token(i));
+		}
 		return tokens.toString();
 	}
 }
@@ -0,0 +1,73 @@
+package cop5556fa20;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.IntFunction;
+
+/**
+ * Measures the throughput, in MB of source per second, of the scanner on large synthetic sources.
+ *
+ * Usage: ScannerBenchmark [megabytes [iterations]]
+ *
+ * Each source is made of copies of one kind of statement until it has the given size.  Sources are ASCII, so
+ * a char of source is a byte.  The source is scanned from a String, on demand from a String, and from a
+ * memory mapped file.
+ */
+public class ScannerBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		run("declarations", megabytes, iterations,
+				i -> "int value" + i + " = width + RED * screen_height;\n");
+		run("expressions", megabytes, iterations,
+				i -> "a = *[X,Y]: X <= " + i + " & Y != 0 : <<a[X-1,Y]#red, 128, (X+Y)%256>>;\n");
+		run("strings and comments", megabytes, iterations,
+				i -> "s = \"line \\\"" + i + "\\\"\\n\" + s; // appends line " + i + " to s\n");
+		run("banners and indentation", megabytes, iterations,
+				i -> "// " + "-".repeat(60) + "\n//  step " + i + "\n\t\t\t\t        a = a + " + i + ";\n");
+	}
+
+	static void run(String name, int megabytes, int iterations, IntFunction<String> statement) throws Exception {
+		String source = source(megabytes << 20, statement);
+		Path file = Files.createTempFile("scanner-benchmark", ".plp");
+		Files.writeString(file, source, StandardCharsets.US_ASCII);
+		double best = 0;
+		double bestOnDemand = 0;
+		double bestMapped = 0;
+		int tokens = 0;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			Scanner scanner = new Scanner(source).scan();
+			long elapsed = System.nanoTime() - start;
+			tokens = scanner.tokenCount();
+			best = Math.max(best, source.length() * 1e9 / elapsed / (1 << 20));
+
+			start = System.nanoTime();
+			scanner = new Scanner(source).scanOnDemand();
+			while (scanner.hasTokens()) {
+				scanner.next();
+			}
+			elapsed = System.nanoTime() - start;
+			bestOnDemand = Math.max(bestOnDemand, source.length() * 1e9 / elapsed / (1 << 20));
+
+			start = System.nanoTime();
+			new Scanner(file).scan();
+			elapsed = System.nanoTime() - start;
+			bestMapped = Math.max(bestMapped, source.length() * 1e9 / elapsed / (1 << 20));
+		}
+		Files.delete(file);
+		System.out.printf("%-24s %,12d tokens %,10.1f MB/s scan %,10.1f MB/s on demand %,10.1f MB/s mapped%n",
+				name, tokens, best, bestOnDemand, bestMapped);
+	}
+
+	static String source(int length, IntFunction<String> statement) {
+		StringBuilder sb = new StringBuilder(length + 256);
+		for (int i = 0; sb.length() < length; i++) {
+			sb.append(statement.apply(i));
+		}
+		return sb.toString();
+	}
+}
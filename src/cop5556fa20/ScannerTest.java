@@ -25,6 +25,10 @@ import cop5556fa20.Scanner.LexicalException;
 import cop5556fa20.Scanner.Token;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import static cop5556fa20.Scanner.Kind.*;
 
@@ -423,4 +427,127 @@ class ScannerTest {
 		checkNext(scanner, PLUS, 60, 1, 3, 29);
 		checkNextIsEOF(scanner);
 	}
+	@Test
+	public void testTokenIndices() throws LexicalException {
+		String input = "int a\r\n= 3;\r//c\n\n  a -> screen;";
+		Scanner scanner = new Scanner(input).scan();
+		show(scanner);
+		assertEquals(10, scanner.tokenCount());
+		// Each of CR LF, CR and LF ends a line
+		int a = scanner.next();
+		assertEquals(KW_int, scanner.kind(a));
+		assertEquals(1, scanner.line(a));
+		int t = scanner.next();
+		assertEquals("a", scanner.getText(t));
+		assertEquals(new Token(ASSIGN, 7, 1, 2, 1), scanner.nextToken());
+		t = scanner.next();
+		assertEquals(3, scanner.intVal(t));
+		assertEquals(2, scanner.line(t));
+		assertEquals(3, scanner.posInLine(t));
+		scanner.next();
+		t = scanner.next();
+		assertEquals(IDENT, scanner.kind(t));
+		assertEquals(5, scanner.line(t));
+		assertEquals(3, scanner.posInLine(t));
+		assertEquals(new Token(IDENT, 19, 1, 5, 3), scanner.token(t));
+		checkNext(scanner, RARROW, 21, 2, 5, 5);
+		checkNext(scanner, KW_SCREEN, 24, 6, 5, 8);
+		checkNext(scanner, SEMI, 30, 1, 5, 14);
+		checkNextIsEOF(scanner);
+	}
+	@Test
+	public void testScanOnDemand() throws LexicalException {
+		String input = """
+              ijBLUEc //NAVY screenX screen\nX\n "Example\\'Strin\\ng\\r\\n" 123+
+              int a = b + c * (d - e) / f % g ;
+              """;
+		Scanner eager = new Scanner(input).scan();
+		Scanner scanner = new Scanner(input).scanOnDemand();
+		assertEquals(0, scanner.tokenCount());
+		while (eager.hasTokens()) {
+			assertTrue(scanner.hasTokens());
+			assertEquals(eager.nextToken(), scanner.nextToken());
+		}
+		assertFalse(scanner.hasTokens());
+		// Only the last LOOKAHEAD tokens are kept
+		assertThrows(IllegalStateException.class, () -> scanner.token(0));
+		assertEquals(EOF, scanner.kind(scanner.tokenCount() - 1));
+	}
+
+	@Test
+	public void testScanOnDemandError() throws LexicalException {
+		String input = "a b ~ c";
+		Scanner scanner = new Scanner(input).scanOnDemand();
+		assertEquals(IDENT, scanner.kind(scanner.next()));
+		assertEquals(IDENT, scanner.kind(scanner.next()));
+		assertTrue(scanner.hasTokens());
+		LexicalException e = assertThrows(LexicalException.class, () -> scanner.next());
+		assertEquals(4, e.pos());
+	}
+	@Test
+	public void testWordsAndSymbols() throws LexicalException {
+		String input = "Z REDX screen_height screen_ 2147483647 <<<=->!==//x\n>>>";
+		Scanner scanner = new Scanner(input).scan();
+		show(scanner);
+		assertEquals(255, scanner.intVal(checkNext(scanner, CONST, 0, 1, 1, 1)));
+		checkNext(scanner, IDENT, 2, 4, 1, 3);
+		checkNext(scanner, KW_SCREEN_HEIGHT, 7, 13, 1, 8);
+		checkNext(scanner, IDENT, 21, 7, 1, 22);
+		assertEquals(Integer.MAX_VALUE, scanner.intVal(checkNext(scanner, INTLIT, 29, 10, 1, 30)));
+		checkNext(scanner, LPIXEL, 40, 2, 1, 41);
+		checkNext(scanner, LE, 42, 2, 1, 43);
+		checkNext(scanner, RARROW, 44, 2, 1, 45);
+		checkNext(scanner, NEQ, 46, 2, 1, 47);
+		checkNext(scanner, ASSIGN, 48, 1, 1, 49);
+		checkNext(scanner, RPIXEL, 53, 2, 2, 1);
+		checkNext(scanner, GT, 55, 1, 2, 3);
+		checkNextIsEOF(scanner);
+		LexicalException e = assertThrows(LexicalException.class, () -> new Scanner("a 2147483648").scan());
+		assertEquals(2, e.pos());
+	}
+	@Test
+	public void testScanBytes() throws LexicalException, IOException {
+		String input = """
+              image[400,500] abc <- "file\\t name.png"; // comment
+              abc -> screen;
+              int n = 12345 + RED;
+              """;
+		Path file = Files.createTempFile("scanner", ".plp");
+		try {
+			Files.writeString(file, input);
+			Scanner expected = new Scanner(input).scan();
+			Scanner mapped = new Scanner(file).scan();
+			Scanner buffered = new Scanner(ByteBuffer.wrap(input.getBytes(StandardCharsets.US_ASCII))).scan();
+			assertEquals(expected.toString(), mapped.toString());
+			assertEquals(expected.toString(), buffered.toString());
+			for (int i = 0; i < expected.tokenCount(); i++) {
+				assertEquals(expected.getText(i), mapped.getText(i));
+			}
+			assertEquals("file\t name.png", mapped.getText(8));
+
+			// Sources that are not ASCII are decoded
+			String comment = "int a; // \u00e9t\u00e9\nint b;";
+			Files.writeString(file, comment);
+			assertEquals(new Scanner(comment).scan().toString(), new Scanner(file).scan().toString());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testSkipWhiteSpaceAndComments() throws LexicalException {
+		String banner = "// " + "=".repeat(37) + "\r\n";
+		String input = banner + "                    a //x\r\n\t \f  \t\t\t\t\t\t\t\t\t b ;// last " + "-".repeat(20);
+		show(input);
+		for (Scanner scanner : new Scanner[] { new Scanner(input).scan(),
+				new Scanner(ByteBuffer.wrap(input.getBytes(StandardCharsets.US_ASCII))).scan() }) {
+			checkNext(scanner, IDENT, 62, 1, 2, 21);
+			checkNext(scanner, IDENT, 84, 1, 3, 16);
+			checkNext(scanner, SEMI, 86, 1, 3, 18);
+			checkNextIsEOF(scanner);
+		}
+		// A comment may end at a NUL char, which ends the source
+		assertEquals(2, new Scanner(ByteBuffer.wrap("a //\0xxxxxxxxxx b".getBytes(StandardCharsets.US_ASCII))).scan()
+				.tokenCount());
+	}
 }
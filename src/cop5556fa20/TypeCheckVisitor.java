@@ -4,14 +4,22 @@ import cop5556fa20.AST.*;
 import cop5556fa20.Scanner.Token;
 import cop5556fa20.Scanner.Kind;
 
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+import static cop5556fa20.FlatAST.*;
+
 public class TypeCheckVisitor implements ASTVisitor {
 	
 	Map<String, Dec> symbolTable;
 
+	private static final Type[] typeValues = Type.values();
+
+	// The expression whose subexpressions were just checked by check, which its visit method completes
+	private Expression checked;
+
 	@SuppressWarnings("serial")
 	class TypeException extends Exception {
 		Token first;
@@ -27,8 +35,17 @@ public class TypeCheckVisitor implements ASTVisitor {
 			return message;
 		}	
 	}
-	
-	
+
+	/**
+	 * Checks an expression, which may be empty, with the type expected by its context, and returns its type.
+	 * The rules of declarations and statements check their expressions with it, so that they apply both to
+	 * AST nodes and to the nodes of a FlatAST.
+	 */
+	private interface Check {
+		Type check(Type context) throws Exception;
+	}
+
+
 	public TypeCheckVisitor() {
 		super();
 		symbolTable =  new HashMap<>();
@@ -40,19 +57,26 @@ public class TypeCheckVisitor implements ASTVisitor {
 
 	@Override
 	public Object visitDecImage(DecImage decImage, Object arg) throws Exception {
-		// DecImage ∷= Type ( Expression0 Expression1 | ϵ) IDENT ( OP Expression2  | ϵ )
-
-		Token first = decImage.first();
 		String name = decImage.name();
 
-		Type t0 = (Type) decImage.width().visit(this, Type.Int);
-		Type t1 = (Type) decImage.height().visit(this, Type.Int);
+		checkDecImage(decImage.first(), name, declaredType(name), checker(decImage.width()),
+				checker(decImage.height()), decImage.op(), checker(decImage.source()));
+
+		// Effect: (name,dec) added to symbol table
+		symbolTable.put(name, decImage);
 
+		return Type.Image;
+	}
 
-		Kind op = decImage.op();
+	private void checkDecImage(Token first, String name, Type declared, Check width, Check height, Kind op,
+			Check source) throws Exception {
+		// DecImage ∷= Type ( Expression0 Expression1 | ϵ) IDENT ( OP Expression2  | ϵ )
+
+		Type t0 = width.check(Type.Int);
+		Type t1 = height.check(Type.Int);
 
 		// name has not been previously declared.
-		assertNameNotAlreadyDeclared(first, name);
+		assertNameNotAlreadyDeclared(first, name, declared);
 
 		// Expression0 is Int or Void.
 		assertTypes(first, t0, Type.Int, Type.Void);
@@ -69,70 +93,74 @@ public class TypeCheckVisitor implements ASTVisitor {
 		assertKind(first, op, Kind.LARROW, Kind.ASSIGN, Kind.NOP);
 
 		if (isKind(op, Kind.LARROW)) {
-			Type t2 = (Type) decImage.source().visit(this, Type.String);
+			Type t2 = source.check(Type.String);
 			assertTypes(first, t2, Type.String, Type.Image);
 		} else if (isKind(op,Kind.ASSIGN)) {
-			Type t2 = (Type) decImage.source().visit(this, null);
+			Type t2 = source.check(null);
 			assertTypes(first, t2, Type.Image);
 		}
-
-		// Effect: (name,dec) added to symbol table
-		symbolTable.put(name, decImage);
-
-		return Type.Image;
 	}
 
 	@Override
 	public Object visitDecVar(DecVar decVar, Object arg) throws Exception {
-		// DecVar ::= Type IDENT (Expression | ϵ )
-
-		Token first = decVar.first();
 		String name = decVar.name();
 
-		Type type = decVar.type();
+		checkDecVar(decVar.first(), name, declaredType(name), decVar.type(), checker(decVar.expression()));
 
-		Type t = (Type) decVar.expression().visit(this, type);
+		// Effect:  (name,dec) added to symbol table
+		symbolTable.put(name, decVar);
+
+		return null;
+	}
+
+	private void checkDecVar(Token first, String name, Type declared, Type type, Check e) throws Exception {
+		// DecVar ::= Type IDENT (Expression | ϵ )
+
+		Type t = e.check(type);
 
 		// Name (of IDENT) has not been previously declared.
-		assertNameNotAlreadyDeclared(first, name);
+		assertNameNotAlreadyDeclared(first, name, declared);
 
 		// Type == Expression.type
 		assertTypes(first, t, type, Type.Void);
-
-		// Effect:  (name,dec) added to symbol table
-		symbolTable.put(name, decVar);
-
-		return null;
 	}
 
 	@Override
 	public Object visitExprArg(ExprArg exprArg, Object arg) throws Exception {
 
-		Token first = exprArg.first();
+		if (exprArg != checked) {
+			return check(exprArg, arg);
+		}
 
-		Type t = (Type) exprArg.e().visit(this, Type.Int);
+		exprArg.setType(argType(exprArg.first(), exprArg.e().type(), (Type) arg));
 
+		return exprArg.type();
+	}
+
+	private Type argType(Token first, Type t, Type context) throws Exception {
 		// Expression.type == Int
 		assertTypes(first, t, Type.Int);
 
 		// ExprArg.type = expected type from context (which must be String or Int)
-		assertTypes(first, (Type) arg, Type.Int, Type.String);
-		exprArg.setType((Type) arg);
-
-		return exprArg.type();
+		assertTypes(first, context, Type.Int, Type.String);
+		return context;
 	}
 
 	@Override
 	public Object visitExprBinary(ExprBinary exprBinary, Object arg) throws Exception {
-		// BinaryExpr ::= Expression0 OP Expression1
 
-		Token first = exprBinary.first();
-		// Type t0 = (Type) exprBinary.e0().visit(this, arg);
-		Kind op = exprBinary.op();
-		// Type t1 = (Type) exprBinary.e1().visit(this, arg);
+		if (exprBinary != checked) {
+			return check(exprBinary, arg);
+		}
 
-		Type t0 = (Type) exprBinary.e0().visit(this, arg);
-		Type t1 = (Type) exprBinary.e1().visit(this, arg);
+		exprBinary.setType(binaryType(exprBinary.first(), exprBinary.op(), exprBinary.e0().type(),
+				exprBinary.e1().type()));
+
+		return exprBinary.type();
+	}
+
+	private Type binaryType(Token first, Kind op, Type t0, Type t1) throws Exception {
+		// BinaryExpr ::= Expression0 OP Expression1
 
 		// If OP == AND or OR) then Expression0.type == Boolean, Expression1.type  == Boolean
 		if (isKind(op, Kind.AND, Kind.OR)) {
@@ -140,9 +168,7 @@ public class TypeCheckVisitor implements ASTVisitor {
 			assertTypes(first, t1, Type.Boolean);
 
 			// BinaryExpr.type = Boolean
-			exprBinary.setType(Type.Boolean);
-
-			return exprBinary.type();
+			return Type.Boolean;
 		}
 
 		// If OP == EQ or NEQ then Expression0.type == Expression1.type
@@ -150,9 +176,7 @@ public class TypeCheckVisitor implements ASTVisitor {
 			assertTypes(first, t0, t1);
 
 			// BinaryExpr.type = Boolean
-			exprBinary.setType(Type.Boolean);
-
-			return exprBinary.type();
+			return Type.Boolean;
 		}
 
 		// If OP == LT, GT, LE, GE then Expression0.type == Expression1.type, Expression0.type == Int
@@ -161,9 +185,7 @@ public class TypeCheckVisitor implements ASTVisitor {
 			assertTypes(first, t0, Type.Int);
 
 			// BinaryExpr.type = Boolean
-			exprBinary.setType(Type.Boolean);
-
-			return exprBinary.type();
+			return Type.Boolean;
 		}
 
 		// Expression0.type == Expression1.type
@@ -179,9 +201,7 @@ public class TypeCheckVisitor implements ASTVisitor {
 			}
 
 			// BinaryExpr.type == Expression0.type
-			exprBinary.setType(t0);
-
-			return exprBinary.type();
+			return t0;
 		}
 
 
@@ -192,9 +212,7 @@ public class TypeCheckVisitor implements ASTVisitor {
 			assertTypes(first, t0, Type.Int);
 
 			// BinaryExpr.type = Int
-			exprBinary.setType(Type.Int);
-
-			return exprBinary.type();
+			return Type.Int;
 		}
 
 		// Unreachable code
@@ -203,14 +221,20 @@ public class TypeCheckVisitor implements ASTVisitor {
 
 	@Override
 	public Object visitExprConditional(ExprConditional exprConditional, Object arg) throws Exception {
-		// ExprConditional ::= Expression0 Expression1 Expression2
-		// Expression0 = condition, Expression1 =trueCase, Expression2 = falseCase
 
-		Token first = exprConditional.first();
+		if (exprConditional != checked) {
+			return check(exprConditional, arg);
+		}
+
+		exprConditional.setType(conditionalType(exprConditional.first(), exprConditional.condition().type(),
+				exprConditional.trueCase().type(), exprConditional.falseCase().type()));
+
+		return exprConditional.type();
+	}
 
-		Type t0 = (Type) exprConditional.condition().visit(this, null);
-		Type t1 = (Type) exprConditional.trueCase().visit(this, arg);
-		Type t2 = (Type) exprConditional.falseCase().visit(this, arg);
+	private Type conditionalType(Token first, Type t0, Type t1, Type t2) throws Exception {
+		// ExprConditional ::= Expression0 Expression1 Expression2
+		// Expression0 = condition, Expression1 =trueCase, Expression2 = falseCase
 
 		// Expression0.type == Boolean
 		assertTypes(first, t0, Type.Boolean);
@@ -218,9 +242,7 @@ public class TypeCheckVisitor implements ASTVisitor {
 		// Expression1.type == Expression2.type
 		assertTypes(first, t1, t2);
 
-		exprConditional.setType(t1);
-
-		return exprConditional.type();
+		return t1;
 	}
 
 	@Override
@@ -234,12 +256,18 @@ public class TypeCheckVisitor implements ASTVisitor {
 
 	@Override
 	public Object visitExprHash(ExprHash exprHash, Object arg) throws Exception {
-		// ExprHash ::= Expression Attribute
 
-		Token first = exprHash.first();
+		if (exprHash != checked) {
+			return check(exprHash, arg);
+		}
+
+		exprHash.setType(hashType(exprHash.first(), exprHash.e().type(), exprHash.attr()));
 
-		Type t = (Type) exprHash.e().visit(this, Type.Int);
-		String attr = exprHash.attr();
+		return exprHash.type();
+	}
+
+	private Type hashType(Token first, Type t, String attr) throws Exception {
+		// ExprHash ::= Expression Attribute
 
 		// Expression.type == Int or Image
 		assertTypes(first, t, Type.Int, Type.Image);
@@ -260,9 +288,7 @@ public class TypeCheckVisitor implements ASTVisitor {
 			}
 		}
 
-		exprHash.setType(Type.Int);
-
-		return exprHash.type();
+		return Type.Int;
 	}
 
 	@Override
@@ -274,13 +300,20 @@ public class TypeCheckVisitor implements ASTVisitor {
 
 	@Override
 	public Object visitExprPixelConstructor(ExprPixelConstructor exprPixelConstructor, Object arg) throws Exception {
-		// ExprPixelConstructor ::= Expressionr Expressiong Expressionb
 
-		Token first = exprPixelConstructor.first();
+		if (exprPixelConstructor != checked) {
+			return check(exprPixelConstructor, arg);
+		}
+
+		exprPixelConstructor.setType(pixelConstructorType(exprPixelConstructor.first(),
+				exprPixelConstructor.redExpr().type(), exprPixelConstructor.greenExpr().type(),
+				exprPixelConstructor.blueExpr().type()));
+
+		return exprPixelConstructor.type();
+	}
 
-		Type tR = (Type) exprPixelConstructor.redExpr().visit(this, Type.Int);
-		Type tG = (Type) exprPixelConstructor.greenExpr().visit(this, Type.Int);
-		Type tB = (Type) exprPixelConstructor.blueExpr().visit(this, Type.Int);
+	private Type pixelConstructorType(Token first, Type tR, Type tG, Type tB) throws Exception {
+		// ExprPixelConstructor ::= Expressionr Expressiong Expressionb
 
 		// Expressionr.type == Expressiong.type == Expressionb.type == Int
 		assertTypes(first, tR, Type.Int);
@@ -288,20 +321,24 @@ public class TypeCheckVisitor implements ASTVisitor {
 		assertTypes(first, tB, Type.Int);
 
 		// ExprPixelConstructor.type = Int
-		exprPixelConstructor.setType(Type.Int);
-
-		return exprPixelConstructor.type();
+		return Type.Int;
 	}
 
 	@Override
 	public Object visitExprPixelSelector(ExprPixelSelector exprPixelSelector, Object arg) throws Exception {
-		// ExprPixelSelector ::= Expression ExpressionX  ExpressionY
 
-		Token first = exprPixelSelector.first();
+		if (exprPixelSelector != checked) {
+			return check(exprPixelSelector, arg);
+		}
+
+		exprPixelSelector.setType(pixelSelectorType(exprPixelSelector.first(), exprPixelSelector.image().type(),
+				exprPixelSelector.X().type(), exprPixelSelector.Y().type()));
 
-		Type t = (Type) exprPixelSelector.image().visit(this, null);
-		Type tX = (Type) exprPixelSelector.X().visit(this, Type.Int);
-		Type tY = (Type) exprPixelSelector.Y().visit(this, Type.Int);
+		return exprPixelSelector.type();
+	}
+
+	private Type pixelSelectorType(Token first, Type t, Type tX, Type tY) throws Exception {
+		// ExprPixelSelector ::= Expression ExpressionX  ExpressionY
 
 		// Expression.type == Image
 		assertTypes(first, t, Type.Image);
@@ -311,9 +348,7 @@ public class TypeCheckVisitor implements ASTVisitor {
 		assertTypes(first, tY, Type.Int);
 
 		// ExprPixelSelector.type = Int
-		exprPixelSelector.setType(Type.Int);
-
-		return exprPixelSelector.type();
+		return Type.Int;
 	}
 
 	@Override
@@ -325,35 +360,33 @@ public class TypeCheckVisitor implements ASTVisitor {
 
 	@Override
 	public Object visitExprUnary(ExprUnary exprUnary, Object arg) throws Exception {
-		// ExprUnary ::= OP Expression
 
-		Token first = exprUnary.first();
-		Kind op = exprUnary.op();
+		if (exprUnary != checked) {
+			return check(exprUnary, arg);
+		}
+
+		exprUnary.setType(unaryType(exprUnary.first(), exprUnary.op(), exprUnary.e().type()));
 
+		return exprUnary.type();
+	}
 
+	private Type unaryType(Token first, Kind op, Type t) throws Exception {
+		// ExprUnary ::= OP Expression
 
 		// If OP = PLUS or MINUS Expression.type == Int
 		if (isKind(op, Kind.PLUS, Kind.MINUS)) {
-			Type t = (Type) exprUnary.e().visit(this, Type.Int);
-
 			assertTypes(first, t, Type.Int);
 
 			// ExprUnary.type = Int
-			exprUnary.setType(Type.Int);
-
-			return exprUnary.type();
+			return Type.Int;
 		}
 
 		// if OP == EXCL Expression.type == Boolean
 		if (isKind(op, Kind.EXCL)) {
-			Type t = (Type) exprUnary.e().visit(this, null);
-
 			assertTypes(first, t, Type.Boolean);
 
 			// ExprUnary.type = Boolean
-			exprUnary.setType(Type.Boolean);
-
-			return exprUnary.type();
+			return Type.Boolean;
 		}
 
 		// Unreachable code.
@@ -365,19 +398,83 @@ public class TypeCheckVisitor implements ASTVisitor {
 
 		Token first = exprVar.first();
 		String name = exprVar.name();
+		Type declared = declaredType(name);
 
 		// Name has been declared
-		assertNameAlreadyDeclared(first, name);
-
-		Dec dec = symbolTable.get(name);
+		assertNameAlreadyDeclared(first, name, declared);
 
 		// ExprVar.type = declared type
-		exprVar.setType(dec.type());
+		exprVar.setType(declared);
 
 		return exprVar.type();
 	}
 
 
+	/**
+	 * An expression to check with the type expected by its context, and whether its subexpressions were pushed.
+	 */
+	@SuppressWarnings("preview")
+	private record Pending(Expression e, Object arg, boolean expanded) {
+	}
+
+	/**
+	 * Type checks root and its subexpressions with a stack in the heap instead of recursive visits, so that
+	 * the nesting of expressions is not limited by the size of the thread's stack.  The subexpressions of an
+	 * expression are checked first, in the order of the recursive visit and with the same expected types, and
+	 * then its visit method reads their types.
+	 */
+	private Type check(Expression root, Object arg) throws Exception {
+		ArrayDeque<Pending> stack = new ArrayDeque<>();
+		stack.push(new Pending(root, arg, false));
+		try {
+			checkAll(stack);
+		} finally {
+			checked = null;
+		}
+		return root.type();
+	}
+
+	private void checkAll(ArrayDeque<Pending> stack) throws Exception {
+		while (!stack.isEmpty()) {
+			Pending pending = stack.pop();
+			Expression e = pending.e();
+			if (pending.expanded()) {
+				checked = e;
+				e.visit(this, pending.arg());
+				continue;
+			}
+			stack.push(new Pending(e, pending.arg(), true));
+			// Pushed last to first, so that they are checked first to last
+			if (e instanceof ExprArg) {
+				stack.push(new Pending(((ExprArg) e).e(), Type.Int, false));
+			} else if (e instanceof ExprBinary) {
+				ExprBinary binary = (ExprBinary) e;
+				stack.push(new Pending(binary.e1(), pending.arg(), false));
+				stack.push(new Pending(binary.e0(), pending.arg(), false));
+			} else if (e instanceof ExprConditional) {
+				ExprConditional conditional = (ExprConditional) e;
+				stack.push(new Pending(conditional.falseCase(), pending.arg(), false));
+				stack.push(new Pending(conditional.trueCase(), pending.arg(), false));
+				stack.push(new Pending(conditional.condition(), null, false));
+			} else if (e instanceof ExprHash) {
+				stack.push(new Pending(((ExprHash) e).e(), Type.Int, false));
+			} else if (e instanceof ExprPixelConstructor) {
+				ExprPixelConstructor pixel = (ExprPixelConstructor) e;
+				stack.push(new Pending(pixel.blueExpr(), Type.Int, false));
+				stack.push(new Pending(pixel.greenExpr(), Type.Int, false));
+				stack.push(new Pending(pixel.redExpr(), Type.Int, false));
+			} else if (e instanceof ExprPixelSelector) {
+				ExprPixelSelector selector = (ExprPixelSelector) e;
+				stack.push(new Pending(selector.Y(), Type.Int, false));
+				stack.push(new Pending(selector.X(), Type.Int, false));
+				stack.push(new Pending(selector.image(), null, false));
+			} else if (e instanceof ExprUnary) {
+				ExprUnary unary = (ExprUnary) e;
+				stack.push(new Pending(unary.e(), isKind(unary.op(), Kind.EXCL) ? null : Type.Int, false));
+			}
+		}
+	}
+
 	/**
 	 * First visit method that is called.  It simply visits its children and returns null if no type errors were encountered.  
 	 */
@@ -388,68 +485,214 @@ public class TypeCheckVisitor implements ASTVisitor {
 		}
 		return null;
 	}
-	
+
+	/**
+	 * Type checks the program of ast with the same rules and errors as visitProgram, walking its nodes instead of
+	 * building objects.  Sets the type of each expression and declaration, and the type of the variable of each
+	 * StatementAssign and StatementOutScreen, with the node of its declaration as the value of the statement.
+	 */
+	public void check(FlatAST ast) throws Exception {
+		// The declaration of each name, NONE for X and Y
+		Map<String, Integer> declarations = new HashMap<>();
+		declarations.put("X", NONE);
+		declarations.put("Y", NONE);
+
+		for (int i = 0; i < ast.itemCount(); i++) {
+			int node = ast.item(i);
+			Token first = ast.first(node);
+			String name = ast.name(node);
+			Integer dec = declarations.get(name);
+			Type declared = declaredType(ast, declarations, name);
+			Check e0 = checker(ast, declarations, ast.child(node, 0));
+			Check e1 = checker(ast, declarations, ast.child(node, 1));
+
+			switch (ast.kind(node)) {
+				case DEC_IMAGE -> checkDecImage(first, name, declared, e0, e1, ast.op(node),
+						checker(ast, declarations, ast.child(node, 2)));
+				case DEC_VAR -> checkDecVar(first, name, declared, typeValues[ast.value(node)], e0);
+				case STATEMENT_ASSIGN -> checkStatementAssign(first, name, declared, e0);
+				case STATEMENT_IMAGE_IN -> checkStatementImageIn(first, name, declared, e0);
+				case STATEMENT_LOOP -> checkStatementLoop(first, name, declared, e0, e1);
+				case STATEMENT_OUT_FILE -> checkStatementOutFile(first, name, declared, e0);
+				case STATEMENT_OUT_SCREEN -> checkStatementOutScreen(first, name, declared, e0, e1);
+			}
+
+			if (ast.kind(node) == DEC_IMAGE || ast.kind(node) == DEC_VAR) {
+				ast.setType(node, ast.kind(node) == DEC_IMAGE ? Type.Image : typeValues[ast.value(node)]);
+				declarations.put(name, node);
+			} else if (ast.kind(node) == STATEMENT_ASSIGN || ast.kind(node) == STATEMENT_OUT_SCREEN) {
+				// Like visitStatementAssign and visitStatementOutScreen set their dec
+				ast.setType(node, declared);
+				ast.setValue(node, dec);
+			}
+		}
+	}
+
+	/**
+	 * Type checks the expression root of ast, which may be NONE, and returns its type.  The subtree of root is a
+	 * range of nodes where a node comes after its children: the types expected by the contexts are passed down
+	 * in a backward pass, and the nodes are then checked in a forward pass, in the order of the recursive visit.
+	 */
+	private Type check(FlatAST ast, Map<String, Integer> declarations, int root, Type context) throws Exception {
+		if (root == NONE) {
+			return Type.Void;
+		}
+		int start = ast.start(root);
+		Type[] contexts = new Type[root - start + 1];
+		contexts[root - start] = context;
+		for (int node = root; node >= start; node--) {
+			Type arg = contexts[node - start];
+			switch (ast.kind(node)) {
+				case EXPR_ARG, EXPR_HASH -> contexts[ast.child(node, 0) - start] = Type.Int;
+				case EXPR_BINARY -> {
+					contexts[ast.child(node, 0) - start] = arg;
+					contexts[ast.child(node, 1) - start] = arg;
+				}
+				case EXPR_CONDITIONAL -> {
+					contexts[ast.child(node, 1) - start] = arg;
+					contexts[ast.child(node, 2) - start] = arg;
+				}
+				case EXPR_PIXEL_CONSTRUCTOR -> {
+					contexts[ast.child(node, 0) - start] = Type.Int;
+					contexts[ast.child(node, 1) - start] = Type.Int;
+					contexts[ast.child(node, 2) - start] = Type.Int;
+				}
+				case EXPR_PIXEL_SELECTOR -> {
+					contexts[ast.child(node, 1) - start] = Type.Int;
+					contexts[ast.child(node, 2) - start] = Type.Int;
+				}
+				case EXPR_UNARY -> contexts[ast.child(node, 0) - start] = isKind(ast.op(node), Kind.EXCL) ? null
+						: Type.Int;
+			}
+		}
+
+		for (int node = start; node <= root; node++) {
+			Type t0 = ast.child(node, 0) == NONE ? null : ast.type(ast.child(node, 0));
+			Type t1 = ast.child(node, 1) == NONE ? null : ast.type(ast.child(node, 1));
+			Type t2 = ast.child(node, 2) == NONE ? null : ast.type(ast.child(node, 2));
+			Type type = switch (ast.kind(node)) {
+				case EXPR_ARG -> argType(ast.first(node), t0, contexts[node - start]);
+				case EXPR_BINARY -> binaryType(ast.first(node), ast.op(node), t0, t1);
+				case EXPR_CONDITIONAL -> conditionalType(ast.first(node), t0, t1, t2);
+				case EXPR_CONST, EXPR_INT_LIT -> Type.Int;
+				case EXPR_HASH -> hashType(ast.first(node), t0, ast.name(node));
+				case EXPR_PIXEL_CONSTRUCTOR -> pixelConstructorType(ast.first(node), t0, t1, t2);
+				case EXPR_PIXEL_SELECTOR -> pixelSelectorType(ast.first(node), t0, t1, t2);
+				case EXPR_STRING_LIT -> Type.String;
+				case EXPR_UNARY -> unaryType(ast.first(node), ast.op(node), t0);
+				default -> {
+					// EXPR_VAR
+					Type declared = declaredType(ast, declarations, ast.name(node));
+					assertNameAlreadyDeclared(ast.first(node), ast.name(node), declared);
+					yield declared;
+				}
+			};
+			ast.setType(node, type);
+		}
+		return ast.type(root);
+	}
+
+	/**
+	 * Returns the Check of the expression e.
+	 */
+	private Check checker(Expression e) {
+		return context -> (Type) e.visit(this, context);
+	}
+
+	/**
+	 * Returns the Check of the expression node of ast, which may be NONE.
+	 */
+	private Check checker(FlatAST ast, Map<String, Integer> declarations, int node) {
+		return context -> check(ast, declarations, node, context);
+	}
+
+	/**
+	 * Returns the type of the declaration of name, or null if it is not declared.
+	 */
+	private Type declaredType(String name) {
+		Dec dec = symbolTable.get(name);
+		return dec == null ? null : dec.type();
+	}
+
+	/**
+	 * Returns the type of the declaration of name in ast, or null if it is not declared.
+	 */
+	private Type declaredType(FlatAST ast, Map<String, Integer> declarations, String name) {
+		Integer dec = declarations.get(name);
+		return dec == null ? null : dec == NONE ? Type.Int : ast.type(dec);
+	}
+
 
 	@Override
 	public Object visitStatementAssign(StatementAssign statementAssign, Object arg) throws Exception {
+		String name = statementAssign.name();
+
+		checkStatementAssign(statementAssign.first(), name, declaredType(name),
+				checker(statementAssign.expression()));
+
+		statementAssign.setDec(symbolTable.get(name));
+		return null;
+	}
+
+	private void checkStatementAssign(Token first, String name, Type declared, Check e) throws Exception {
 		// StatementAssign ::= IDENT Expression
 
-		Token first = statementAssign.first();
-		String name = statementAssign.name();
 		// name has been declared.
-		assertNameAlreadyDeclared(first, name);
+		assertNameAlreadyDeclared(first, name, declared);
 
-		Dec dec = symbolTable.get(name);
-
-		Type t = (Type) statementAssign.expression().visit(this, dec.type());
+		Type t = e.check(declared);
 
 		// IDENT.type == Expression.type
-		assertTypes(first, dec.type(), t);
-
-		statementAssign.setDec(dec);
-		return null;
+		assertTypes(first, declared, t);
 	}
 
 	@Override
 	public Object visitStatementImageIn(StatementImageIn statementImageIn, Object arg) throws Exception {
-		// StatementImageIn ::= IDENT Expression
-
-		Token first = statementImageIn.first();
 		String name = statementImageIn.name();
 
-		// name has been declared.
-		assertNameAlreadyDeclared(first, name);
+		checkStatementImageIn(statementImageIn.first(), name, declaredType(name),
+				checker(statementImageIn.source()));
 
-		Dec dec = symbolTable.get(name);
+		return null;
+	}
+
+	private void checkStatementImageIn(Token first, String name, Type declared, Check source) throws Exception {
+		// StatementImageIn ::= IDENT Expression
+
+		// name has been declared.
+		assertNameAlreadyDeclared(first, name, declared);
 
 		// IDENT.type == Image
-		assertTypes(first, dec.type(), Type.Image);
+		assertTypes(first, declared, Type.Image);
 
-		Type t = (Type) statementImageIn.source().visit(this, Type.String);
+		Type t = source.check(Type.String);
 
 		// Expression.type == Image or String
 		assertTypes(first, t, Type.Image, Type.String);
-
-		return null;
 	}
 
 	@Override
 	public Object visitStatementLoop(StatementLoop statementLoop, Object arg) throws Exception {
-		// StatementLoop ::= IDENT (Expression0 | ϵ ) Expression1
-
-		Token first = statementLoop.first();
 		String name = statementLoop.name();
 
-		// name has been declared.
-		assertNameAlreadyDeclared(first, name);
+		checkStatementLoop(statementLoop.first(), name, declaredType(name), checker(statementLoop.cond()),
+				checker(statementLoop.e()));
 
-		Dec dec = symbolTable.get(name);
+		return null;
+	}
+
+	private void checkStatementLoop(Token first, String name, Type declared, Check cond, Check e)
+			throws Exception {
+		// StatementLoop ::= IDENT (Expression0 | ϵ ) Expression1
+
+		// name has been declared.
+		assertNameAlreadyDeclared(first, name, declared);
 
 		// IDENT.type == Image
-		assertTypes(first, dec.type(), Type.Image);
+		assertTypes(first, declared, Type.Image);
 
-		Type t0 = (Type) statementLoop.cond().visit(this, null);
-		Type t1 = (Type) statementLoop.e().visit(this, Type.Int);
+		Type t0 = cond.check(null);
+		Type t1 = e.check(Type.Int);
 
 
 
@@ -458,8 +701,6 @@ public class TypeCheckVisitor implements ASTVisitor {
 
 		// Expression1.type == Int
 		assertTypes(first, t1, Type.Int);
-
-		return null;
 	}
 
 	@Override
@@ -471,42 +712,52 @@ public class TypeCheckVisitor implements ASTVisitor {
 
 	@Override
 	public Object visitStatementOutFile(StatementOutFile statementOutFile, Object arg) throws Exception {
-		// StatementOutFile ::= IDENT Expression
-
-		Token first = statementOutFile.first();
 		String name = statementOutFile.name();
 
-		// name has been declared.
-		assertNameAlreadyDeclared(first, name);
+		checkStatementOutFile(statementOutFile.first(), name, declaredType(name),
+				checker(statementOutFile.filename()));
 
-		Dec dec = symbolTable.get(name);
+		return null;
+	}
+
+	private void checkStatementOutFile(Token first, String name, Type declared, Check filename) throws Exception {
+		// StatementOutFile ::= IDENT Expression
+
+		// name has been declared.
+		assertNameAlreadyDeclared(first, name, declared);
 
 		// IDENT.type == Image
-		assertTypes(first, dec.type(), Type.Image);
+		assertTypes(first, declared, Type.Image);
 
-		Type t = (Type) statementOutFile.filename().visit(this,  Type.String);
+		Type t = filename.check(Type.String);
 
 		// Expression.type = String
 		assertTypes(first, t, Type.String);
-
-		return null;
 	}
 
 	@Override
 	public Object visitStatementOutScreen(StatementOutScreen statementOutScreen, Object arg) throws Exception {
-		// StatementOutScreen ::= IDENT (Expression0 Expression1 | ϵ )
-
-		Token first = statementOutScreen.first();
 		String name = statementOutScreen.name();
+		Type declared = declaredType(name);
 
-		// name has been declared.
-		assertNameAlreadyDeclared(first, name);
+		if (declared != null) {
+			statementOutScreen.setDec(symbolTable.get(name));
+		}
+		checkStatementOutScreen(statementOutScreen.first(), name, declared, checker(statementOutScreen.X()),
+				checker(statementOutScreen.Y()));
 
-		Dec dec = symbolTable.get(name);
-		statementOutScreen.setDec(dec);
+		return null;
+	}
+
+	private void checkStatementOutScreen(Token first, String name, Type declared, Check x, Check y)
+			throws Exception {
+		// StatementOutScreen ::= IDENT (Expression0 Expression1 | ϵ )
+
+		// name has been declared.
+		assertNameAlreadyDeclared(first, name, declared);
 
 		// IDENT.type == Int || IDENT.type == String || IDENT.type == Image
-		assertTypes(first, dec.type(), Type.Int, Type.String, Type.Image);
+		assertTypes(first, declared, Type.Int, Type.String, Type.Image);
 
 
 
@@ -514,40 +765,37 @@ public class TypeCheckVisitor implements ASTVisitor {
 		// If (IDENT.type == Int || IDENT.type == String) Expression0.type == Void
 		// else if (IDENT.type == Image) then Expression0.type = Int or Void
 		// else error.
-		if (isType(dec.type(), Type.Int, Type.String)) {
-			Type t0 = (Type) statementOutScreen.X().visit(this, null);
-			Type t1 = (Type) statementOutScreen.Y().visit(this, null);
+		if (isType(declared, Type.Int, Type.String)) {
+			Type t0 = x.check(null);
+			Type t1 = y.check(null);
 			// Expression0.type == Expression1.type
 			assertTypes(first, t0, t1);
 			assertTypes(first, t0, Type.Void);
-		} else if (isType(dec.type(), Type.Image)) {
-			Type t0 = (Type) statementOutScreen.X().visit(this, Type.Int);
-			Type t1 = (Type) statementOutScreen.Y().visit(this, Type.Int);
+		} else if (isType(declared, Type.Image)) {
+			Type t0 = x.check(Type.Int);
+			Type t1 = y.check(Type.Int);
 			// Expression0.type == Expression1.type
 			assertTypes(first, t0, t1);
 			assertTypes(first, t0, Type.Int, Type.Void);
 		}
-
-		return null;
 	}
 
 	/*
 		All private methods
 	*/
-	private void assertNameNotAlreadyDeclared(Token first, String name) throws Exception {
-		if (symbolTable.containsKey(name)) {
+	private void assertNameNotAlreadyDeclared(Token first, String name, Type declared) throws Exception {
+		if (declared != null) {
 			String errorMessage = "Symbol" + name + " is already declared";
 			throw new TypeException(first, errorMessage);
 		}
 	}
 
-	private void assertNameAlreadyDeclared(Token first, String name) throws Exception {
-		if (!symbolTable.containsKey(name)) {
+	private void assertNameAlreadyDeclared(Token first, String name, Type declared) throws Exception {
+		if (declared == null) {
 			String errorMessage = "Name '" + name + "' is not declared";
 			throw new TypeException(first, errorMessage);
 		}
 	}
-
 	private boolean isType(Type actual, Type ...expectedTypes) {
 		for (Type expected : expectedTypes) {
 			if (actual == expected) {
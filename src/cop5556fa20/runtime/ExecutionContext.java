@@ -0,0 +1,88 @@
+package cop5556fa20.runtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+
+import cop5556fa20.resources.ImageResources;
+import cop5556fa20.runtime.LoggedIO.PLPImageFile;
+
+/**
+ * The output sink of one execution of a program generated with instance programs enabled, see
+ * CodeGenVisitorComplete.setInstancePrograms.  Like LoggedIO, the outputs of the program are added to a log,
+ * and optionally printed or shown, but each execution has a context of its own, so several executions of the
+ * same program may run at once on different threads.
+ *
+ * A context is not thread safe: it must not be used by two executions at the same time.
+ */
+public class ExecutionContext {
+
+	public static final String className = "cop5556fa20/runtime/ExecutionContext";
+	public static final String desc = "Lcop5556fa20/runtime/ExecutionContext;";
+
+	/**
+	 * The context used by the main method of instance programs, which behaves like LoggedIO: outputs are added
+	 * to LoggedIO.globalLog, printed to System.out and images are shown in frames.
+	 */
+	public static final ExecutionContext global = new ExecutionContext(LoggedIO.globalLog, true, true);
+
+	final List<Object> log;
+	final boolean print;
+	final boolean showImages;
+
+	/**
+	 * Creates a context that adds the outputs to log, prints them to System.out if print is true, and shows
+	 * the images sent to the screen in frames if showImages is true.  Images sent to files are always written.
+	 */
+	public ExecutionContext(List<Object> log, boolean print, boolean showImages) {
+		this.log = log;
+		this.print = print;
+		this.showImages = showImages;
+	}
+
+	/**
+	 * Creates a context that only logs the outputs in a new log, and writes the images sent to files.
+	 */
+	public ExecutionContext() {
+		this(new ArrayList<>(), false, false);
+	}
+
+	public List<Object> getLog() {
+		return log;
+	}
+
+	public static final String stringToScreenSig = "(Ljava/lang/String;)V";
+	public void stringToScreen(String s) {
+		log.add(s);
+		if (print) {
+			System.out.println(s);
+		}
+	}
+
+	public static final String intToScreenSig = "(I)V";
+	public void intToScreen(int n) {
+		log.add(Integer.valueOf(n));
+		if (print) {
+			System.out.println(n);
+		}
+	}
+
+	public static final String imageToScreenSig = "(" + PLPImage.desc + "II)V";
+	public void imageToScreen(PLPImage m, int xloc, int yloc) throws InvocationTargetException, InterruptedException {
+		log.add(m);
+		if (showImages) {
+			BufferedImageUtils.makeFrame(m.image, xloc, yloc);
+		}
+	}
+
+	public static final String imageToFileSig = "(" + PLPImage.desc + "Ljava/lang/String;)V";
+	public void imageToFile(PLPImage m, String name) throws IOException {
+		log.add(new PLPImageFile(m, name));
+		if (print) {
+			System.out.println(ImageResources.binDir + File.separator + name);
+		}
+		BufferedImageUtils.write(m.image, ImageResources.binDir + File.separator + name);
+	}
+}
@@ -14,13 +14,10 @@
 
 package cop5556fa20.runtime;
 
-import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 
-import cop5556fa20.resources.ImageResources;
-
 public class LoggedIO {
 	
 	public static final ArrayList<Object> globalLog = new ArrayList<Object>();
@@ -72,14 +69,12 @@ public class LoggedIO {
 
 
 	public static void stringToScreen(String s) {
-		globalLog.add(s);
-		System.out.println(s);
+		ExecutionContext.global.stringToScreen(s);
 	}
 	
 	public final static String intToScreenSig = "(I)V";
 	public static void intToScreen(int n) {
-		globalLog.add(Integer.valueOf(n));
-		System.out.println(n);
+		ExecutionContext.global.intToScreen(n);
 	}
 	
 	public static void clearGlobalLog() {
@@ -88,14 +83,11 @@ public class LoggedIO {
 	
 	public final static String imageToScreenSig = "("+PLPImage.desc + "II)V";
 	public static void imageToScreen(PLPImage m, int xloc, int yloc) throws InvocationTargetException, InterruptedException {
-		globalLog.add(m);
-		BufferedImageUtils.makeFrame(m.image, xloc, yloc);
+		ExecutionContext.global.imageToScreen(m, xloc, yloc);
 	}
 
 	public final static String imageToFileSig = "(" + PLPImage.desc + "Ljava/lang/String;)V";
 	public static void imageToFile(PLPImage m, String name) throws IOException {
-		globalLog.add(new PLPImageFile(m,  name));
-		System.out.println(ImageResources.binDir + File.separator + name);
-		BufferedImageUtils.write(m.image, ImageResources.binDir + File.separator + name);
+		ExecutionContext.global.imageToFile(m, name);
 	}
 }
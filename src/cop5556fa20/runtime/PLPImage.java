@@ -15,6 +15,11 @@ package cop5556fa20.runtime;
 
 import java.awt.Dimension;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.util.Arrays;
 
 
@@ -108,6 +113,14 @@ public class PLPImage {
 		throw new PLPImageException(line, posInLine, "attempting to get height of uninitialized image");
 	}
 
+	/**
+	 * Returns true if image is not null and this PLPImage has the given size.
+	 */
+	public static final String hasSizeSig = "(II)Z";
+	public boolean hasSize(int width, int height) {
+		return image != null && getWidth() == width && getHeight() == height;
+	}
+
 	public static final String selectPixelSig = "(II)I";
 	public int selectPixel(int x, int y) {
 		return image.getRGB(x, y);
@@ -118,6 +131,45 @@ public class PLPImage {
 		image.setRGB(x, y, value);
 	}
 	
+	/**
+	 * Returns the int[] backing image, or null if image is not a TYPE_INT_ARGB image of the size of this PLPImage
+	 * stored with one int per pixel in raster order.  Pixel [x,y] of such an image is data[y * width + x], so
+	 * generated code may read and write it directly.
+	 */
+	public static final String pixelDataSig = "()[I";
+	public int[] pixelData() {
+		if (image == null || image.getType() != BufferedImage.TYPE_INT_ARGB) {
+			return null;
+		}
+		WritableRaster raster = image.getRaster();
+		if (raster.getParent() != null || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+				|| raster.getWidth() != getWidth() || raster.getHeight() != getHeight()) {
+			return null;
+		}
+		SampleModel sampleModel = raster.getSampleModel();
+		if (!(sampleModel instanceof SinglePixelPackedSampleModel)
+				|| ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride() != raster.getWidth()) {
+			return null;
+		}
+		DataBuffer dataBuffer = raster.getDataBuffer();
+		if (!(dataBuffer instanceof DataBufferInt) || dataBuffer.getNumBanks() != 1 || dataBuffer.getOffset() != 0) {
+			return null;
+		}
+		return ((DataBufferInt) dataBuffer).getData();
+	}
+
+	/**
+	 * Returns pixel [x,y] of an image whose pixelData is data.  Like BufferedImage.getRGB, throws an
+	 * ArrayIndexOutOfBoundsException if [x,y] is outside the image.
+	 */
+	public static final String selectPixelDataSig = "([IIIII)I";
+	public static int selectPixel(int[] data, int width, int height, int x, int y) {
+		if (x < 0 || x >= width || y < 0 || y >= height) {
+			throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+		}
+		return data[y * width + x];
+	}
+
 	public static final String ensureImageAllocatedSig= "(II)V";
 	public void ensureImageAllocated(int line, int posInLine) throws PLPImageException {
 		if (image == null) {
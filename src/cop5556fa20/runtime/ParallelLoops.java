@@ -0,0 +1,114 @@
+package cop5556fa20.runtime;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the rows of a pixel loop in parallel.  Used by generated code for loops that may visit
+ * their pixels in any order.
+ *
+ * The number of threads is given by the system property cop5556fa20.parallelism, and defaults to
+ * the number of available processors.  It may be changed with setParallelism.
+ */
+public class ParallelLoops {
+
+	public static final String className = "cop5556fa20/runtime/ParallelLoops";
+
+	public static final String PARALLELISM_PROPERTY = "cop5556fa20.parallelism";
+
+	// Images with fewer pixels than this are not worth splitting.
+	public static final int MIN_PARALLEL_PIXELS = 1 << 14;
+
+	// Number of bands per thread, so that threads that finish early can take over the remaining bands.
+	static final int BANDS_PER_THREAD = 4;
+
+	/**
+	 * Computes the pixels of rows yStart (inclusive) to yEnd (exclusive) of a pixel loop.
+	 */
+	public interface RowBand {
+		void run(int yStart, int yEnd) throws Exception;
+	}
+
+	public static final String RowBandClassName = "cop5556fa20/runtime/ParallelLoops$RowBand";
+	public static final String RowBandDesc = "Lcop5556fa20/runtime/ParallelLoops$RowBand;";
+
+	// Read once by each loop, so a loop runs all its bands on the same pool.
+	private static volatile ForkJoinPool pool = new ForkJoinPool(
+			Math.max(1, Integer.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors())));
+
+	/**
+	 * Runs the loops started from now on with the given number of threads.  The previous pool is not shut
+	 * down, since loops running at the same time may still submit their bands to it: it completes them,
+	 * and its worker threads, which are daemon threads, terminate once they have been idle for a while.
+	 */
+	public static void setParallelism(int parallelism) {
+		pool = new ForkJoinPool(Math.max(1, parallelism));
+	}
+
+	public static int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Runs band on disjoint bands of rows covering [0,height), in parallel, and returns when all have completed.
+	 * If several bands throw an exception, one of them is rethrown.
+	 */
+	public static final String forEachRowBandSig = "(II" + RowBandDesc + ")V";
+	public static void forEachRowBand(int width, int height, RowBand band) throws Exception {
+		ForkJoinPool pool = ParallelLoops.pool;
+		int parallelism = pool.getParallelism();
+		if (parallelism == 1 || height == 1 || (long) width * height < MIN_PARALLEL_PIXELS) {
+			band.run(0, height);
+			return;
+		}
+		int bandHeight = Math.max(1, height / (parallelism * BANDS_PER_THREAD));
+		try {
+			pool.invoke(new RowBandAction(band, 0, height, bandHeight));
+		} catch (RuntimeException e) {
+			// ForkJoinPool may rethrow a copy of the exception, with the original one as its cause
+			for (Throwable t = e; t != null; t = t.getCause()) {
+				if (t instanceof RowBandException) {
+					throw (Exception) t.getCause();
+				}
+			}
+			throw e;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static class RowBandException extends RuntimeException {
+		RowBandException(Exception cause) {
+			super(cause);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static class RowBandAction extends RecursiveAction {
+		final RowBand band;
+		final int yStart;
+		final int yEnd;
+		final int bandHeight;
+
+		RowBandAction(RowBand band, int yStart, int yEnd, int bandHeight) {
+			this.band = band;
+			this.yStart = yStart;
+			this.yEnd = yEnd;
+			this.bandHeight = bandHeight;
+		}
+
+		@Override
+		protected void compute() {
+			if (yEnd - yStart <= bandHeight) {
+				try {
+					band.run(yStart, yEnd);
+				} catch (Exception e) {
+					throw new RowBandException(e);
+				}
+				return;
+			}
+			int yMiddle = (yStart + yEnd) >>> 1;
+			invokeAll(new RowBandAction(band, yStart, yMiddle, bandHeight),
+					new RowBandAction(band, yMiddle, yEnd, bandHeight));
+		}
+	}
+}